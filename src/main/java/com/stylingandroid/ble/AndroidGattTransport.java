@@ -0,0 +1,207 @@
+package com.stylingandroid.ble;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.content.Context;
+
+import java.util.List;
+import java.util.UUID;
+
+/*
+ * GattTransport on top of the platform Bluetooth stack. Each link is its own
+ * BluetoothGattCallback, so callbacks need no lookup by address.
+ */
+class AndroidGattTransport implements GattTransport {
+	private final Context mContext;
+	private final BluetoothAdapter mAdapter;
+
+	AndroidGattTransport(Context context, BluetoothAdapter adapter) {
+		mContext = context;
+		mAdapter = adapter;
+	}
+
+	@Override
+	public boolean isEnabled() {
+		return mAdapter != null && mAdapter.isEnabled();
+	}
+
+	@Override
+	public boolean isValidAddress(String address) {
+		return mAdapter != null && BluetoothAdapter.checkBluetoothAddress(address);
+	}
+
+	@Override
+	public Link connect(String address, boolean autoConnect, Callback callback) {
+		if (!isValidAddress(address)) {
+			return null;
+		}
+		// No need to have seen it in a scan, the address is all a connect needs
+		BluetoothDevice device = mAdapter.getRemoteDevice(address);
+		AndroidLink link = new AndroidLink(address, callback);
+		BluetoothGatt gatt = device.connectGatt(mContext, autoConnect, link);
+		if (gatt == null) {
+			return null;
+		}
+		link.setGatt(gatt);
+		return link;
+	}
+
+	private static class AndroidLink extends BluetoothGattCallback implements Link {
+		private final String mAddress;
+		private final Callback mCallback;
+		private volatile BluetoothGatt mGatt = null;
+
+		AndroidLink(String address, Callback callback) {
+			mAddress = address;
+			mCallback = callback;
+		}
+
+		void setGatt(BluetoothGatt gatt) {
+			mGatt = gatt;
+		}
+
+		// Callbacks can beat connectGatt() returning
+		private void onGatt(BluetoothGatt gatt) {
+			if (mGatt == null) {
+				mGatt = gatt;
+			}
+		}
+
+		@Override
+		public String getAddress() {
+			return mAddress;
+		}
+
+		@Override
+		public boolean discoverServices() {
+			BluetoothGatt gatt = mGatt;
+			return gatt != null && gatt.discoverServices();
+		}
+
+		// Services and characteristics with their instance ids, in the order the stack reports them
+		@Override
+		public String getLayout() {
+			BluetoothGatt gatt = mGatt;
+			List<BluetoothGattService> services = gatt != null ? gatt.getServices() : null;
+			if (services == null || services.isEmpty()) {
+				return null;
+			}
+			StringBuilder layout = new StringBuilder();
+			for (BluetoothGattService service : services) {
+				layout.append(service.getUuid()).append('/').append(service.getInstanceId()).append('{');
+				for (BluetoothGattCharacteristic characteristic : service.getCharacteristics()) {
+					layout.append(characteristic.getUuid()).append('/').append(characteristic.getInstanceId()).append(';');
+				}
+				layout.append('}');
+			}
+			return layout.toString();
+		}
+
+		private BluetoothGattCharacteristic getCharacteristic(UUID service, UUID characteristic) {
+			BluetoothGatt gatt = mGatt;
+			BluetoothGattService gattService = gatt != null ? gatt.getService(service) : null;
+			return gattService != null ? gattService.getCharacteristic(characteristic) : null;
+		}
+
+		private BluetoothGattDescriptor getDescriptor(UUID service, UUID characteristic, UUID descriptor) {
+			BluetoothGattCharacteristic gattCharacteristic = getCharacteristic(service, characteristic);
+			return gattCharacteristic != null ? gattCharacteristic.getDescriptor(descriptor) : null;
+		}
+
+		@Override
+		public boolean hasCharacteristic(UUID service, UUID characteristic) {
+			return getCharacteristic(service, characteristic) != null;
+		}
+
+		@Override
+		public boolean hasDescriptor(UUID service, UUID characteristic, UUID descriptor) {
+			return getDescriptor(service, characteristic, descriptor) != null;
+		}
+
+		@Override
+		public boolean setNotification(UUID service, UUID characteristic, boolean enable) {
+			BluetoothGattCharacteristic gattCharacteristic = getCharacteristic(service, characteristic);
+			return gattCharacteristic != null && mGatt.setCharacteristicNotification(gattCharacteristic, enable);
+		}
+
+		@Override
+		public boolean write(UUID service, UUID characteristic, byte[] value) {
+			BluetoothGattCharacteristic gattCharacteristic = getCharacteristic(service, characteristic);
+			if (gattCharacteristic == null) {
+				return false;
+			}
+			gattCharacteristic.setValue(value);
+			return mGatt.writeCharacteristic(gattCharacteristic);
+		}
+
+		@Override
+		public boolean writeDescriptor(UUID service, UUID characteristic, UUID descriptor, byte[] value) {
+			BluetoothGattDescriptor gattDescriptor = getDescriptor(service, characteristic, descriptor);
+			if (gattDescriptor == null) {
+				return false;
+			}
+			gattDescriptor.setValue(value);
+			return mGatt.writeDescriptor(gattDescriptor);
+		}
+
+		@Override
+		public boolean read(UUID service, UUID characteristic) {
+			BluetoothGattCharacteristic gattCharacteristic = getCharacteristic(service, characteristic);
+			return gattCharacteristic != null && mGatt.readCharacteristic(gattCharacteristic);
+		}
+
+		@Override
+		public void disconnect() {
+			BluetoothGatt gatt = mGatt;
+			if (gatt != null) {
+				gatt.disconnect();
+			}
+		}
+
+		@Override
+		public void close() {
+			BluetoothGatt gatt = mGatt;
+			if (gatt != null) {
+				gatt.close();
+			}
+		}
+
+		@Override
+		public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+			onGatt(gatt);
+			mCallback.onConnectionStateChange(this, status, newState);
+		}
+
+		@Override
+		public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+			onGatt(gatt);
+			mCallback.onServicesDiscovered(this, status);
+		}
+
+		@Override
+		public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+			mCallback.onOperationComplete(this, OP_WRITE_CHARACTERISTIC, characteristic.getUuid(), null, status);
+		}
+
+		@Override
+		public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+			mCallback.onOperationComplete(this, OP_READ_CHARACTERISTIC, characteristic.getUuid(), null, status);
+		}
+
+		@Override
+		public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
+			mCallback.onOperationComplete(this, OP_WRITE_DESCRIPTOR, descriptor.getCharacteristic().getUuid(),
+					descriptor.getUuid(), status);
+		}
+
+		@Override
+		public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
+			mCallback.onNotification(this, characteristic.getUuid(), characteristic.getValue());
+		}
+	}
+}
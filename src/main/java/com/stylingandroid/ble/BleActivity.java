@@ -6,12 +6,14 @@ import android.bluetooth.BluetoothAdapter;
 import android.content.ComponentName;
 import android.content.Intent;
 import android.content.ServiceConnection;
+import android.location.Location;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.Message;
 import android.os.Messenger;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
@@ -22,6 +24,7 @@ import java.lang.ref.WeakReference;
 public class BleActivity extends Activity implements DeviceListFragment.OnDeviceListFragmentInteractionListener {
 	public static final String TAG = "BluetoothLE";
 	private final int ENABLE_BT = 1;
+	private static final float DISPLAY_RATE = 5;	//sample batches per second
 
 	private final Messenger mMessenger;	//message handler
 	private Messenger mService = null;	//send message to BleService
@@ -30,9 +33,13 @@ public class BleActivity extends Activity implements DeviceListFragment.OnDevice
 	private BleService.State mState = BleService.State.UNKNOWN;
 
 	private MenuItem mRefreshItem = null;
+	private MenuItem mDisconnectItem = null;
 
 	private DeviceListFragment mDeviceList = DeviceListFragment.newInstance();
 	private MapFragment mMap = MapFragment.newInstance();
+	private boolean mShowingMap = false;	//stays on the map while a dropped tag reconnects
+	private float mShownTemperature = Float.NaN;	//last value of each sensor, a batch may carry only one
+	private float mShownHumidity = Float.NaN;
 
 	private ServiceConnection mConnection = new ServiceConnection() {
 		@Override
@@ -42,6 +49,9 @@ public class BleActivity extends Activity implements DeviceListFragment.OnDevice
 				Message msg = Message.obtain(null, BleService.MSG_REGISTER);
 				if (msg != null) {
 					msg.replyTo = mMessenger;
+					msg.arg1 = BleService.DELIVERY_BATCHED;
+					// The display only shows the newest value of each sensor, rounded well past the filter thresholds
+					msg.setData(Subscription.toBundle(Subscription.ALL_SENSORS, null, DISPLAY_RATE, true, true));
 					mService.send(msg);
 				} else {
 					mService = null;
@@ -104,6 +114,7 @@ public class BleActivity extends Activity implements DeviceListFragment.OnDevice
 		// Inflate the menu; this adds items to the action bar if it is present.
 		getMenuInflater().inflate(R.menu.main, menu);
 		mRefreshItem = menu.findItem(R.id.action_refresh);
+		mDisconnectItem = menu.findItem(R.id.action_disconnect);
 		//mDeviceListFragment = DeviceListFragment.newInstance(null);
 		return true;
 	}
@@ -120,12 +131,17 @@ public class BleActivity extends Activity implements DeviceListFragment.OnDevice
 			}
 			return true;
 		}
+		if (id == R.id.action_disconnect) {
+			if (mService != null) {
+				disconnect();
+			}
+			return true;
+		}
 		return super.onOptionsItemSelected(item);
 	}
 
 	private void startScan() {
 		mRefreshItem.setEnabled(false);
-		mDeviceList.setDevices(this, null);
 		mDeviceList.setScanning(true);
 		Message msg = Message.obtain(null, BleService.MSG_START_SCAN);
 		if (msg != null) {
@@ -138,11 +154,26 @@ public class BleActivity extends Activity implements DeviceListFragment.OnDevice
 		}
 	}
 
+	private void disconnect() {
+		Message msg = Message.obtain(null, BleService.MSG_DEVICE_DISCONNECT);
+		if (msg != null) {
+			try {
+				mService.send(msg);
+			} catch (RemoteException e) {
+				Log.w(TAG, "Lost connection to service", e);
+				unbindService(mConnection);
+			}
+		}
+	}
+
 	@Override
 	public boolean onPrepareOptionsMenu(Menu menu) {
 		if (mRefreshItem != null) {
 			mRefreshItem.setEnabled(mState == BleService.State.IDLE || mState == BleService.State.UNKNOWN);
 		}
+		if (mDisconnectItem != null) {
+			mDisconnectItem.setVisible(mState == BleService.State.CONNECTED || mState == BleService.State.CONNECTING);
+		}
 		return super.onPrepareOptionsMenu(menu);
 	}
 
@@ -171,14 +202,18 @@ public class BleActivity extends Activity implements DeviceListFragment.OnDevice
 		public void handleMessage(Message msg) {
 			BleActivity activity = mActivity.get();
 			if (activity != null) {
+				long start = Metrics.now();
 				switch (msg.what) {
 					case BleService.MSG_STATE_CHANGED:
 						activity.stateChanged(BleService.State.values()[msg.arg1]);
 						break;
 					case BleService.MSG_DEVICE_FOUND:
+					case BleService.MSG_DEVICE_UPDATED:
+					case BleService.MSG_DEVICE_LOST:
 						Bundle data = msg.getData();
-						if (data != null && data.containsKey(BleService.KEY_MAC_ADDRESSES)) {
-							activity.mDeviceList.setDevices(activity, data.getStringArray(BleService.KEY_MAC_ADDRESSES));
+						if (data != null && data.containsKey(BleService.KEY_MAC_ADDRESS)) {
+							activity.onDeviceEvent(msg.what, data.getString(BleService.KEY_MAC_ADDRESS), data.getInt(BleService.KEY_RSSI),
+										data.getLong(BleService.KEY_LAST_SEEN));
 						}
 						break;
 					case BleService.MSG_DEVICE_DATA:
@@ -190,18 +225,86 @@ public class BleActivity extends Activity implements DeviceListFragment.OnDevice
 						float luxometer = msg.arg1 / 100f;
 						activity.mMap.setLuxometerData(luxometer);
 						break;
+					case BleService.MSG_SAMPLE_BATCH:
+						activity.onSampleBatch(SampleBatch.unpack(msg.getData()));
+						break;
+					case BleService.MSG_LOCATION:
+						Bundle location = msg.getData();
+						if (location != null && location.containsKey(BleService.KEY_LOCATION)) {
+							location.setClassLoader(Location.class.getClassLoader());
+							activity.mMap.setLocation((Location) location.getParcelable(BleService.KEY_LOCATION));
+						}
+						break;
 				}
+				Metrics.UI_HANDLE.recordSince(start);
 			}
 			super.handleMessage(msg);
 		}
 	}
 
+	private void onDeviceEvent(int what, String macAddress, int rssi, long lastSeen) {
+		switch (what) {
+			case BleService.MSG_DEVICE_FOUND:
+				mDeviceList.addDevice(macAddress, rssi, lastSeen);
+				break;
+			case BleService.MSG_DEVICE_UPDATED:
+				mDeviceList.updateDevice(macAddress, rssi, lastSeen);
+				break;
+			case BleService.MSG_DEVICE_LOST:
+				mDeviceList.removeDevice(macAddress);
+				break;
+		}
+	}
+
+	private void onSampleBatch(SampleBatch batch) {
+		if (batch == null || batch.size() == 0) {
+			return;
+		}
+		// Age of the newest sample, notification to UI including the batching delay
+		Metrics.UI_AGE.recordMillis(SystemClock.elapsedRealtime() - batch.getTime(batch.size() - 1));
+		// Only the newest value of each sensor is worth drawing
+		float temperature = Float.NaN;
+		float humidity = Float.NaN;
+		float luxometer = Float.NaN;
+		for (int i = batch.size() - 1; i >= 0; i--) {
+			switch (batch.getSensor(i)) {
+				case SensorType.TEMPERATURE:
+					if (Float.isNaN(temperature)) {
+						temperature = batch.getValue(i);
+					}
+					break;
+				case SensorType.HUMIDITY:
+					if (Float.isNaN(humidity)) {
+						humidity = batch.getValue(i);
+					}
+					break;
+				case SensorType.LIGHT:
+					if (Float.isNaN(luxometer)) {
+						luxometer = batch.getValue(i);
+					}
+					break;
+			}
+		}
+		if (!Float.isNaN(temperature)) {
+			mShownTemperature = temperature;
+		}
+		if (!Float.isNaN(humidity)) {
+			mShownHumidity = humidity;
+		}
+		if ((!Float.isNaN(temperature) || !Float.isNaN(humidity))
+				&& !Float.isNaN(mShownTemperature) && !Float.isNaN(mShownHumidity)) {
+			mMap.setData(mShownTemperature, mShownHumidity);
+		}
+		if (!Float.isNaN(luxometer)) {
+			mMap.setLuxometerData(luxometer);
+		}
+	}
+
 	private void stateChanged(BleService.State newState) {
-		boolean disconnected = mState == BleService.State.CONNECTED;
 		mState = newState;
+		invalidateOptionsMenu();
 		switch (mState) {
 			case SCANNING:
-				mRefreshItem.setEnabled(true);
 				mDeviceList.setScanning(true);
 				break;
 			case BLUETOOTH_OFF:
@@ -209,18 +312,21 @@ public class BleActivity extends Activity implements DeviceListFragment.OnDevice
 				startActivityForResult(enableBtIntent, ENABLE_BT);
 				break;
 			case IDLE:
-				if (disconnected) {
+				if (mShowingMap) {
 					FragmentTransaction tx = getFragmentManager().beginTransaction();
 					tx.replace(R.id.main_content, mDeviceList);
 					tx.commit();
+					mShowingMap = false;
 				}
-				mRefreshItem.setEnabled(true);
 				mDeviceList.setScanning(false);
 				break;
 			case CONNECTED:
-				FragmentTransaction tx = getFragmentManager().beginTransaction();
-				tx.replace(R.id.main_content, mMap);
-				tx.commit();
+				if (!mShowingMap) {
+					FragmentTransaction tx = getFragmentManager().beginTransaction();
+					tx.replace(R.id.main_content, mMap);
+					tx.commit();
+					mShowingMap = true;
+				}
 				break;
 		}
 	}
@@ -1,41 +1,45 @@
 package com.stylingandroid.ble;
 
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
 import android.app.Service;
 import android.bluetooth.BluetoothAdapter;
-import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothGatt;
-import android.bluetooth.BluetoothGattCallback;
-import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothGattDescriptor;
-import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothManager;
 import android.bluetooth.BluetoothProfile;
 import android.content.Intent;
+import android.location.Location;
+import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.Message;
 import android.os.Messenger;
+import android.os.ParcelFileDescriptor;
 import android.os.RemoteException;
 import android.util.Log;
 
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.PrintWriter;
 import java.lang.ref.WeakReference;
-import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
-import java.util.Queue;
 import java.util.UUID;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 
-import static java.lang.Math.pow;
-
-public class BleService extends Service implements BluetoothAdapter.LeScanCallback {
+public class BleService extends Service {
 	public static final String TAG = "BleService";
 
 	private final IncomingHandler mHandler;							//handle message
 	private final Messenger mMessenger;								//receive message
-	private final List<Messenger> mClients = new LinkedList<Messenger>();	//send message to activities
+	private final Object mClientsLock = new Object();
+	private volatile Client[] mClients = new Client[0];	//send message to activities; copy on write, read without locking
 
 	static final int MSG_REGISTER = 1;
 	static final int MSG_UNREGISTER = 2;
@@ -46,28 +50,55 @@ public class BleService extends Service implements BluetoothAdapter.LeScanCallba
 	static final int MSG_DEVICE_DISCONNECT = 7;
 	static final int MSG_DEVICE_DATA = 8;
 	static final int MSG_LUXOMETER_DATA = 9;
+	static final int MSG_SAMPLE_BATCH = 10;
+	static final int MSG_LOCATION = 11;
+	static final int MSG_DEVICE_UPDATED = 12;
+	static final int MSG_DEVICE_LOST = 13;
+	static final int MSG_SET_SCAN_MODE = 14;
+	static final int MSG_SET_SAMPLING_PERIOD = 15;	//arg1 sensor, arg2 period in ms or 0 for speed adaptive
+	static final int MSG_SHARED_RING = 16;			//reply to a shared registration: ring descriptor and device table
+	static final int MSG_SHARED_RING_WAKEUP = 17;	//new samples in the ring; the device table when it has grown
+	static final int MSG_SET_LOCATION_INTERVAL = 18;	//arg1 minimum time between fixes in ms
+	static final int MSG_SET_SAMPLE_FILTER = 19;	//arg1 sensor, arg2 filter mode, data thresholds and heartbeat
+
+	static final int DELIVERY_LEGACY = 0;
+	static final int DELIVERY_BATCHED = 1;
+	static final int DELIVERY_SHARED = 2;
 
 	private static final long SCAN_PERIOD = 3000;
+	private static final long SHARED_WAKEUP_INTERVAL = 100;
+	private static final String SHARED_RING_FILE = "samples.ring";
 
-	public static final String KEY_MAC_ADDRESSES = "KEY_MAC_ADDRESSES";
+	public static final String KEY_MAC_ADDRESS = "KEY_MAC_ADDRESS";
+	public static final String KEY_RSSI = "KEY_RSSI";
+	public static final String KEY_LAST_SEEN = "KEY_LAST_SEEN";
+	public static final String KEY_BATCH_SIZE = "KEY_BATCH_SIZE";
+	public static final String KEY_BATCH_INTERVAL = "KEY_BATCH_INTERVAL";
+	public static final String KEY_LOCATION = "KEY_LOCATION";
+	public static final String KEY_SHARED_RING = "KEY_SHARED_RING";
+	public static final String KEY_FILTER_ABSOLUTE = "KEY_FILTER_ABSOLUTE";
+	public static final String KEY_FILTER_RELATIVE = "KEY_FILTER_RELATIVE";
+	public static final String KEY_FILTER_HEARTBEAT = "KEY_FILTER_HEARTBEAT";
 
-	private static final String DEVICE_NAME = "CC1350 SensorTag";
-	private static final UUID UUID_HUMIDITY_SERVICE = UUID.fromString("f000aa20-0451-4000-b000-000000000000");
-	private static final UUID UUID_HUMIDITY_DATA = UUID.fromString("f000aa21-0451-4000-b000-000000000000");
-	private static final UUID UUID_HUMIDITY_CONF = UUID.fromString("f000aa22-0451-4000-b000-000000000000");
+	private static final int NOTIFICATION_ID = 1;
+	private static final String NOTIFICATION_CHANNEL = "collection";
 
-	private static final UUID UUID_LUXOMETER_SERVICE = UUID.fromString("f000aa70-0451-4000-b000-000000000000");
-	private static final UUID UUID_LUXOMETER_DATA = UUID.fromString("f000aa71-0451-4000-b000-000000000000");
-	private static final UUID UUID_LUXOMETER_CONF = UUID.fromString("f000aa72-0451-4000-b000-000000000000");
+	static final UUID UUID_HUMIDITY_SERVICE = UUID.fromString("f000aa20-0451-4000-b000-000000000000");
+	static final UUID UUID_HUMIDITY_DATA = UUID.fromString("f000aa21-0451-4000-b000-000000000000");
+	static final UUID UUID_HUMIDITY_CONF = UUID.fromString("f000aa22-0451-4000-b000-000000000000");
+	static final UUID UUID_HUMIDITY_PERIOD = UUID.fromString("f000aa23-0451-4000-b000-000000000000");
+
+	static final UUID UUID_LUXOMETER_SERVICE = UUID.fromString("f000aa70-0451-4000-b000-000000000000");
+	static final UUID UUID_LUXOMETER_DATA = UUID.fromString("f000aa71-0451-4000-b000-000000000000");
+	static final UUID UUID_LUXOMETER_CONF = UUID.fromString("f000aa72-0451-4000-b000-000000000000");
+	static final UUID UUID_LUXOMETER_PERIOD = UUID.fromString("f000aa73-0451-4000-b000-000000000000");
 
 	private static final UUID UUID_CCC = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
 	private static final byte[] ENABLE_SENSOR = {0x01};
 
-	private static final Queue<Object> sWriteQueue = new ConcurrentLinkedQueue<Object>();
-	private static boolean sIsWriting = false;
-
-	private final Map<String, BluetoothDevice> mDevices = new HashMap<String, BluetoothDevice>();
-	private BluetoothGatt mGatt = null;
+	private final Map<String, GattSession> mSessions = new ConcurrentHashMap<String, GattSession>();	//one per connected tag, keyed by MAC
+	private final List<String> mDeviceIds = new ArrayList<String>();	//index is the device id carried in samples
+	private KnownDevices mKnownDevices = null;
 
 	public enum State {
 		UNKNOWN,
@@ -80,66 +111,170 @@ public class BleService extends Service implements BluetoothAdapter.LeScanCallba
 	}
 
 	private BluetoothAdapter mBluetooth = null;
-	private State mState = State.UNKNOWN;
+	private GattTransport mTransport = null;
+	private SensorTagScanner mScanner = null;
+	private ScanScheduler mScanScheduler = null;
+	private ScanScheduler.Mode mScanMode = ScanScheduler.Mode.BALANCED;
+	private boolean mBackgroundScan = false;	//a bound client or a reconnecting tag wants discovery
+	private volatile State mState = State.UNKNOWN;	//written on the main thread only, dump() reads it from a binder thread
+
+	private final SensorDecoders mDecoders = SensorDecoders.createDefault();
+	private final MessageSampleSink mSampleSink = new MessageSampleSink();
+	private final SampleFilter mSampleFilter = new SampleFilter();
+	private final SampleProcessor mProcessor;
+	private volatile CollectionPipeline mPipeline = null;	//set before the processor thread starts
+	private final SamplingPolicy mSamplingPolicy = new SamplingPolicy();
+	private final int[] mFixedPeriods = new int[SensorType.COUNT];	//0 where the period follows the speed
+	private volatile SharedSampleRing.Writer mSharedRing = null;	//mapped when the first shared client registers
+	private final AtomicBoolean mWakeupPending = new AtomicBoolean(false);
+	private final List<String> mGauges = new ArrayList<String>();	//names registered with Metrics
+
+	// Collects the samples of one notification and hands each client the part of it it subscribed to
+	private class MessageSampleSink implements SampleSink, SampleFilter.Listener {
+		private int mDevice;
+		private long mTime;
+		private Client[] mTargets = new Client[0];
+		private float mTemperature;
+		private float mHumidity;
+		private float mLux;
+		private boolean mHasClimate = false;
+		private boolean mHasLux = false;
+		private boolean mSharedWritten = false;
+
+		void begin(int device, long time) {
+			mDevice = device;
+			mTime = time;
+			mTargets = mClients;
+		}
 
-	private BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
+		// Clients that did not ask for filtered samples, legacy ones and the shared ring get every sample
 		@Override
-		public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
-			super.onConnectionStateChange(gatt, status, newState);
-			Log.v(TAG, "Connection State Changed: " + (newState == BluetoothProfile.STATE_CONNECTED ? "Connected" : "Disconnected"));
-			if (newState == BluetoothProfile.STATE_CONNECTED) {
-				setState(State.CONNECTED);
-				gatt.discoverServices();
-			} else {
-				setState(State.IDLE);
-			}
+		public void onSample(int sensor, float value) {
+			Metrics.SAMPLES.inc();
+			deliver(sensor, mTime, value, false);
+			mSampleFilter.filter(mDevice, sensor, mTime, value, this);
 		}
 
+		// Only what passes the filter is recorded; a held sample is passed late with its own, earlier, time
 		@Override
-		public void onServicesDiscovered(BluetoothGatt gatt, int status) {
-			Log.v(TAG, "onServicesDiscovered: " + status);
-			if (status == BluetoothGatt.GATT_SUCCESS) {
-				subscribe(gatt);
+		public void onPassed(int sensor, long time, float value) {
+			mPipeline.onSample(mDevice, sensor, time, value);
+			deliver(sensor, time, value, true);
+		}
+
+		private void deliver(int sensor, long time, float value, boolean filtered) {
+			boolean legacy = false;
+			boolean shared = false;
+			for (Client client : mTargets) {
+				if (client.shared) {
+					shared = true;
+				} else if (client.batcher == null) {
+					legacy |= !filtered && client.subscription.accepts(mDevice, sensor);
+				} else if (client.subscription.isFiltered() == filtered && client.subscription.accepts(mDevice, sensor)) {
+					client.batcher.add(time, mDevice, sensor, value);
+				}
+			}
+			// Read once: onDestroy clears the field while this thread may still be running
+			SharedSampleRing.Writer ring = mSharedRing;
+			if (shared && !filtered && ring != null) {
+				// One ring for every shared client, so it carries the full stream and readers pick their part
+				ring.write(time, SampleBatch.key(mDevice, sensor), value);
+				mSharedWritten = true;
+			}
+			if (!legacy) {
+				return;
+			}
+			switch (sensor) {
+				case SensorType.TEMPERATURE:
+					mTemperature = value;
+					mHasClimate = true;
+					break;
+				case SensorType.HUMIDITY:
+					mHumidity = value;
+					mHasClimate = true;
+					break;
+				case SensorType.LIGHT:
+					mLux = value;
+					mHasLux = true;
+					break;
 			}
 		}
 
+		void flush() {
+			if (mSharedWritten) {
+				mSharedWritten = false;
+				scheduleWakeup();
+			}
+			if (!mHasClimate && !mHasLux) {
+				return;
+			}
+			long start = Metrics.now();
+			for (Client client : mTargets) {
+				if (client.batcher != null || client.shared || !client.subscription.acceptsDevice(mDevice)) {
+					continue;
+				}
+				if (mHasClimate && (client.subscription.acceptsSensor(SensorType.TEMPERATURE) || client.subscription.acceptsSensor(SensorType.HUMIDITY))
+						&& client.isDue(Client.CHANNEL_CLIMATE, mTime)) {
+					Message msg = Message.obtain(null, MSG_DEVICE_DATA);
+					msg.arg1 = (int) (mTemperature * 100);
+					msg.arg2 = (int) (mHumidity * 100);
+					sendMessage(client, msg);
+				}
+				if (mHasLux && client.subscription.acceptsSensor(SensorType.LIGHT) && client.isDue(Client.CHANNEL_LUX, mTime)) {
+					Message msg = Message.obtain(null, MSG_LUXOMETER_DATA);
+					msg.arg1 = (int) (mLux * 100);
+					sendMessage(client, msg);
+				}
+			}
+			mHasClimate = false;
+			mHasLux = false;
+			Metrics.FANOUT.recordSince(start);
+		}
+	}
+
+	private final GattTransport.Callback mGattCallback = new GattTransport.Callback() {
 		@Override
-		public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
-			Log.v(TAG, "onCharacteristicWrite: " + status);
-			sIsWriting = false;
-			nextWrite();
+		public void onConnectionStateChange(GattTransport.Link link, int status, int newState) {
+			Log.v(TAG, "Connection State Changed: " + link.getAddress() + " " + (newState == BluetoothProfile.STATE_CONNECTED ? "Connected" : "Disconnected"));
+			GattSession session = mSessions.get(link.getAddress());
+			if (session == null) {
+				link.close();
+				return;
+			}
+			session.onConnectionStateChange(link, status, newState);
 		}
 
 		@Override
-		public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
-			Log.v(TAG, "onDescriptorWrite: " + status);
-			sIsWriting = false;
-			nextWrite();
+		public void onServicesDiscovered(GattTransport.Link link, int status) {
+			Log.v(TAG, "onServicesDiscovered: " + status);
+			GattSession session = mSessions.get(link.getAddress());
+			if (session != null) {
+				session.onServicesDiscovered(link, status);
+			}
 		}
 
 		@Override
-		public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
-			Log.v(TAG, "onCharacteristicChanged: " + characteristic.getUuid());
-			if (characteristic.getUuid().equals(UUID_HUMIDITY_DATA)) {
-				int t = shortUnsignedAtOffset(characteristic, 0);
-				int h = shortUnsignedAtOffset(characteristic, 2);
-				float humidity = ((float)h / 65536f)*100f;
-				float temperature = ((float)t / 65536f)*165f - 40f;
-				Log.d(TAG, "Value: " + humidity + ":" + temperature);
-				Message msg = Message.obtain(null, MSG_DEVICE_DATA);
-				msg.arg1 = (int) (temperature * 100);
-				msg.arg2 = (int) (humidity * 100);
-				sendMessage(msg);
+		public void onOperationComplete(GattTransport.Link link, int type, UUID characteristic, UUID descriptor, int status) {
+			Log.v(TAG, "onOperationComplete: " + type + " " + status);
+			GattSession session = mSessions.get(link.getAddress());
+			if (session != null) {
+				session.onOperationComplete(type, characteristic, descriptor, status);
 			}
-			if (characteristic.getUuid().equals(UUID_LUXOMETER_DATA)){
-				int lux = shortUnsignedAtOffset(characteristic, 0);
-				int m = lux & 0x0FFF;
-				int e = (lux & 0xF000) >> 12;
-				double luxometer = (double) m * (0.01d * pow(2.0d, (double)e));
-				Log.d(TAG, "Lux Value: " + luxometer);
-				Message msg = Message.obtain(null, MSG_LUXOMETER_DATA);
-				msg.arg1 = (int)(luxometer * 100);
-				sendMessage(msg);
+		}
+
+		@Override
+		public void onNotification(GattTransport.Link link, UUID characteristic, byte[] value) {
+			CharacteristicDecoder decoder = mDecoders.get(characteristic);
+			GattSession session = mSessions.get(link.getAddress());
+			if (decoder != null && session != null && session.getLink() == link) {
+				Metrics.NOTIFICATIONS.inc();
+				session.onNotification();
+				// Decoding and fan-out happen on the processor thread, the binder thread returns straight away
+				if (session.getRing().offer(decoder, session.getId(), Metrics.now(), value)) {
+					mProcessor.wake();
+				} else {
+					Metrics.RING_DROPPED.inc();
+				}
 			}
 		}
 	};
@@ -147,6 +282,161 @@ public class BleService extends Service implements BluetoothAdapter.LeScanCallba
 	public BleService() {
 		mHandler = new IncomingHandler(this);
 		mMessenger = new Messenger(mHandler);
+		mProcessor = new SampleProcessor(new SampleRing.Consumer() {
+			@Override
+			public void onRawSample(CharacteristicDecoder decoder, int device, long time, byte[] value, int length) {
+				Metrics.HANDOFF.recordSince(time);
+				long start = Metrics.now();
+				mSampleSink.begin(device, time / 1000000);
+				decoder.decode(value, length, mSampleSink);
+				Metrics.DECODE.recordSince(start);
+				mSampleSink.flush();
+			}
+		});
+	}
+
+	// One bound activity and how it wants its samples; batched clients have a batcher of their own,
+	// shared clients read the mapped ring and only get wake-ups
+	private static class Client {
+		static final int CHANNEL_CLIMATE = 0;
+		static final int CHANNEL_LUX = 1;
+
+		final Messenger messenger;
+		final Subscription subscription;
+		final SampleBatcher batcher;
+		final boolean shared;
+		int devicesSent = 0;	//device table entries a shared client has been sent
+		private final long[] mLastSent = {Long.MIN_VALUE, Long.MIN_VALUE};	//legacy messages, per channel
+
+		Client(Messenger messenger, Subscription subscription, SampleBatcher batcher, boolean shared) {
+			this.messenger = messenger;
+			this.subscription = subscription;
+			this.batcher = batcher;
+			this.shared = shared;
+		}
+
+		// Legacy delivery decimates to the subscribed rate; only the processor thread calls this
+		boolean isDue(int channel, long time) {
+			long interval = subscription.getMinInterval();
+			if (interval > 0 && time - mLastSent[channel] < interval) {
+				return false;
+			}
+			mLastSent[channel] = time;
+			return true;
+		}
+	}
+
+	@Override
+	public void onCreate() {
+		super.onCreate();
+		// Resumes any upload a previous process left unfinished
+		ReadingUploader.getInstance(this);
+		// Before anything can produce a sample: the processor hands every one to the pipeline
+		mPipeline = new CollectionPipeline(this, mHandler, new CollectionPipeline.Listener() {
+			@Override
+			public void onLocation(Location location) {
+				Message msg = Message.obtain(null, MSG_LOCATION);
+				Bundle bundle = new Bundle();
+				bundle.putParcelable(KEY_LOCATION, location);
+				msg.setData(bundle);
+				sendMessage(msg);
+			}
+
+			@Override
+			public void onSpeed(float speed) {
+				if (mSamplingPolicy.onSpeed(speed)) {
+					updateSamplingPeriods();
+				}
+			}
+		});
+		mProcessor.start();
+		getScanner();
+		mTransport = createTransport();
+		mKnownDevices = new KnownDevices(this);
+		connectKnownDevices();
+		gauge("gatt.sessions", new Metrics.Gauge() {
+			@Override
+			public long get() {
+				return mSessions.size();
+			}
+		});
+		gauge("gatt.ring_depth", new Metrics.Gauge() {
+			@Override
+			public long get() {
+				return mProcessor.getDepth();
+			}
+		});
+		gauge("gatt.write_queue", new Metrics.Gauge() {
+			@Override
+			public long get() {
+				long size = 0;
+				for (GattSession session : mSessions.values()) {
+					size += session.getQueueSize();
+				}
+				return size;
+			}
+		});
+		gauge("upload.pending", new Metrics.Gauge() {
+			@Override
+			public long get() {
+				return ReadingUploader.getInstance(BleService.this).getPending();
+			}
+		});
+	}
+
+	private void gauge(String name, Metrics.Gauge gauge) {
+		Metrics.gauge(name, gauge);
+		mGauges.add(name);
+	}
+
+	@Override
+	public int onStartCommand(Intent intent, int flags, int startId) {
+		return START_STICKY;
+	}
+
+	@Override
+	public void onDestroy() {
+		mHandler.removeCallbacks(mUpdateConnectionState);
+		mHandler.removeCallbacks(mUpdateBackgroundScan);
+		if (mScanScheduler != null) {
+			mScanScheduler.stop();
+		}
+		for (GattSession session : new ArrayList<GattSession>(mSessions.values())) {
+			session.close();
+		}
+		mSessions.clear();
+		// Joins the processor thread, so the pipeline and the ring are no longer in use below
+		mProcessor.stop();
+		mPipeline.release();
+		mHandler.removeCallbacks(mWakeupRunnable);
+		// The registry is static; left there, the gauges would keep this instance alive and dumpsys reading it
+		for (String name : mGauges) {
+			Metrics.removeGauge(name);
+		}
+		mGauges.clear();
+		SharedSampleRing.Writer ring = mSharedRing;
+		mSharedRing = null;
+		if (ring != null) {
+			ring.close();
+		}
+		super.onDestroy();
+	}
+
+	@Override
+	protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+		writer.println("State: " + mState + ", scan mode " + mScanMode);
+		writer.println("Sessions:");
+		for (GattSession session : mSessions.values()) {
+			writer.println("  " + session.getAddress() + " " + session.getState()
+					+ " queue " + session.getQueueSize()
+					+ " first sample " + session.getFirstSampleTime() + "ms"
+					+ " reconnects " + session.getReconnects()
+					+ " (last " + session.getLastReconnectTime() + "ms, mean " + session.getMeanReconnectTime()
+					+ "ms, max " + session.getMaxReconnectTime() + "ms)");
+		}
+		writer.println("Sampling period: " + getSamplingPeriod(SensorType.HUMIDITY) + "ms humidity, "
+				+ getSamplingPeriod(SensorType.LIGHT) + "ms light");
+		Metrics.dump(writer);
 	}
 
 	@Override
@@ -167,26 +457,43 @@ public class BleService extends Service implements BluetoothAdapter.LeScanCallba
 			if (service != null) {
 				switch (msg.what) {
 					case MSG_REGISTER:
-						service.mClients.add(msg.replyTo);
+						service.register(msg.replyTo, msg.arg1, msg.getData());
 						Log.d(TAG, "Registered");
 						break;
 					case MSG_UNREGISTER:
-						service.mClients.remove(msg.replyTo);
-						if (service.mState == State.CONNECTED && service.mGatt != null) {
-							service.mGatt.disconnect();
-						}
+						// Collection carries on without the UI
+						service.unregister(msg.replyTo);
 						Log.d(TAG, "Unegistered");
 						break;
 					case MSG_START_SCAN:
 						service.startScan();
 						Log.d(TAG, "Start Scan");
 						break;
+					case MSG_SET_SCAN_MODE:
+						ScanScheduler.Mode[] modes = ScanScheduler.Mode.values();
+						if (msg.arg1 >= 0 && msg.arg1 < modes.length) {
+							service.setScanMode(modes[msg.arg1]);
+						} else {
+							Log.w(TAG, "Ignoring unknown scan mode " + msg.arg1);
+						}
+						break;
+					case MSG_SET_SAMPLING_PERIOD:
+						service.setSamplingPeriod(msg.arg1, msg.arg2);
+						break;
+					case MSG_SET_LOCATION_INTERVAL:
+						service.setLocationInterval(msg.arg1);
+						break;
+					case MSG_SET_SAMPLE_FILTER:
+						service.setSampleFilter(msg.arg1, msg.arg2, msg.getData());
+						break;
 					case MSG_DEVICE_CONNECT:
 						service.connect((String) msg.obj);
 						break;
 					case MSG_DEVICE_DISCONNECT:
-						if (service.mState == State.CONNECTED && service.mGatt != null) {
-							service.mGatt.disconnect();
+						if (msg.obj != null) {
+							service.disconnect((String) msg.obj);
+						} else {
+							service.disconnectAll();
 						}
 						break;
 					default:
@@ -196,109 +503,481 @@ public class BleService extends Service implements BluetoothAdapter.LeScanCallba
 		}
 	}
 
-	private void startScan() {
-		mDevices.clear();
-		setState(State.SCANNING);
+	private void register(Messenger client, int delivery, Bundle options) {
+		Message state = getStateMessage();
+		if (state != null) {
+			sendMessage(client, state);
+		}
+		if (mScanner != null) {
+			// Incremental device events only make sense on top of a snapshot
+			for (SensorTagScanner.DiscoveredDevice device : mScanner.getDevices()) {
+				sendMessage(client, getDeviceMessage(MSG_DEVICE_FOUND, device));
+			}
+		}
+		Subscription subscription = Subscription.fromBundle(options);
+		String[] devices = getDevices();
+		subscription.setDevices(devices);
+		boolean shared = delivery == DELIVERY_SHARED && sendSharedRing(client, devices);
+		SampleBatcher batcher = null;
+		if (delivery == DELIVERY_BATCHED || (delivery == DELIVERY_SHARED && !shared)) {
+			// A ring that cannot be mapped falls back to batches, which carry the same samples
+			batcher = createBatcher(client, subscription, options);
+			batcher.setDevices(devices);
+		}
+		Client entry = new Client(client, subscription, batcher, shared);
+		if (shared) {
+			entry.devicesSent = devices.length;
+		}
+		synchronized (mClientsLock) {
+			Client[] clients = new Client[mClients.length + 1];
+			System.arraycopy(mClients, 0, clients, 0, mClients.length);
+			clients[mClients.length] = entry;
+			mClients = clients;
+		}
+		mHandler.post(mUpdateBackgroundScan);
+	}
+
+	// Each client gets a read-only descriptor of its own and owns it from here on
+	private boolean sendSharedRing(Messenger client, String[] devices) {
+		ParcelFileDescriptor descriptor;
+		try {
+			if (mSharedRing == null) {
+				mSharedRing = new SharedSampleRing.Writer(new File(getCacheDir(), SHARED_RING_FILE), SharedSampleRing.DEFAULT_CAPACITY);
+			}
+			descriptor = mSharedRing.open();
+		} catch (IOException e) {
+			Log.w(TAG, "Unable to map the shared sample ring", e);
+			return false;
+		}
+		Message msg = Message.obtain(null, MSG_SHARED_RING);
+		Bundle bundle = new Bundle();
+		bundle.putParcelable(KEY_SHARED_RING, descriptor);
+		bundle.putStringArray(SampleBatch.KEY_DEVICES, devices);
+		msg.setData(bundle);
+		return sendMessage(client, msg);
+	}
+
+	// Called by the processor thread; at most one wake-up per interval however fast the ring fills
+	private void scheduleWakeup() {
+		if (mWakeupPending.compareAndSet(false, true)) {
+			mHandler.postDelayed(mWakeupRunnable, SHARED_WAKEUP_INTERVAL);
+		}
+	}
+
+	private final Runnable mWakeupRunnable = new Runnable() {
+		@Override
+		public void run() {
+			mWakeupPending.set(false);
+			for (Client client : mClients) {
+				if (!client.shared) {
+					continue;
+				}
+				Message msg = Message.obtain(null, MSG_SHARED_RING_WAKEUP);
+				if (client.devicesSent < mDeviceIds.size()) {
+					Bundle bundle = new Bundle();
+					bundle.putStringArray(SampleBatch.KEY_DEVICES, getDevices());
+					msg.setData(bundle);
+					client.devicesSent = mDeviceIds.size();
+				}
+				sendMessage(client, msg);
+			}
+		}
+	};
+
+	// With a rate limit the flush interval paces the batches, so the size limit only guards the arrays
+	private SampleBatcher createBatcher(final Messenger client, Subscription subscription, Bundle options) {
+		int batchSize = SampleBatcher.DEFAULT_BATCH_SIZE;
+		long interval = SampleBatcher.DEFAULT_INTERVAL;
+		if (options != null) {
+			batchSize = options.getInt(KEY_BATCH_SIZE, batchSize);
+			interval = options.getLong(KEY_BATCH_INTERVAL, interval);
+		}
+		long minInterval = subscription.getMinInterval();
+		if (minInterval > 0) {
+			batchSize = SampleBatcher.MAX_BATCH_SIZE;
+			interval = options != null && options.containsKey(KEY_BATCH_INTERVAL) ? Math.max(interval, minInterval) : minInterval;
+		}
+		SampleBatcher batcher = new SampleBatcher(mHandler, new SampleBatcher.Listener() {
+			@Override
+			public void onBatch(Bundle batch) {
+				Message msg = Message.obtain(null, MSG_SAMPLE_BATCH);
+				msg.setData(batch);
+				long start = Metrics.now();
+				if (!sendMessage(client, msg)) {
+					unregister(client);
+				}
+				Metrics.FANOUT.recordSince(start);
+			}
+		});
+		batcher.configure(batchSize, interval, subscription.isLatestOnly());
+		return batcher;
+	}
+
+	private void unregister(Messenger client) {
+		synchronized (mClientsLock) {
+			Client[] current = mClients;
+			for (int i = 0; i < current.length; i++) {
+				if (current[i].messenger.equals(client)) {
+					if (current[i].batcher != null) {
+						current[i].batcher.clear();
+					}
+					Client[] clients = new Client[current.length - 1];
+					System.arraycopy(current, 0, clients, 0, i);
+					System.arraycopy(current, i + 1, clients, i, current.length - i - 1);
+					mClients = clients;
+					// May be called from the processor thread
+					mHandler.post(mUpdateBackgroundScan);
+					return;
+				}
+			}
+		}
+	}
+
+	private SensorTagScanner getScanner() {
 		if (mBluetooth == null) {
 			BluetoothManager bluetoothMgr = (BluetoothManager) getSystemService(BLUETOOTH_SERVICE);
 			mBluetooth = bluetoothMgr.getAdapter();
 		}
-		if (mBluetooth == null || !mBluetooth.isEnabled()) {
+		if (mScanner == null && mBluetooth != null) {
+			mScanner = new SensorTagScanner(mBluetooth, mHandler, mScanListener);
+			mScanScheduler = new ScanScheduler(mHandler, mScanner, mScanSchedulerListener);
+			if (mBackgroundScan) {
+				mScanScheduler.setMode(mScanMode);
+			}
+		}
+		return mScanner;
+	}
+
+	// Background discovery, so tags coming into range are seen without a refresh; only while
+	// a client shows the device list or a dropped tag is being reconnected
+	private final Runnable mUpdateBackgroundScan = new Runnable() {
+		@Override
+		public void run() {
+			boolean needed = mClients.length > 0 || isReconnecting();
+			if (needed == mBackgroundScan) {
+				return;
+			}
+			mBackgroundScan = needed;
+			if (getScanner() != null) {
+				mScanScheduler.setMode(needed ? mScanMode : ScanScheduler.Mode.OFF);
+			}
+		}
+	};
+
+	private boolean isReconnecting() {
+		for (GattSession session : mSessions.values()) {
+			GattSession.State state = session.getState();
+			if (state == GattSession.State.CONNECTING || state == GattSession.State.BACKOFF) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void setLocationInterval(long interval) {
+		mPipeline.setLocationInterval(interval);
+	}
+
+	// Thresholds not given keep their current values
+	private void setSampleFilter(int sensor, int mode, Bundle options) {
+		if (sensor < 0 || sensor >= SensorType.COUNT || !SampleFilter.isValidMode(mode)) {
+			Log.w(TAG, "Ignoring sample filter mode " + mode + " for sensor " + sensor);
+			return;
+		}
+		SampleFilter.Settings current = mSampleFilter.getSettings(sensor);
+		float absolute = current.absolute;
+		float relative = current.relative;
+		long heartbeat = current.heartbeat;
+		if (options != null) {
+			absolute = options.getFloat(KEY_FILTER_ABSOLUTE, absolute);
+			relative = options.getFloat(KEY_FILTER_RELATIVE, relative);
+			heartbeat = options.getLong(KEY_FILTER_HEARTBEAT, heartbeat);
+		}
+		mSampleFilter.setSettings(sensor, new SampleFilter.Settings(mode, absolute, relative, heartbeat));
+	}
+
+	private void setScanMode(ScanScheduler.Mode mode) {
+		mScanMode = mode;
+		if (mBackgroundScan && getScanner() != null) {
+			mScanScheduler.setMode(mode);
+		}
+	}
+
+	private void startScan() {
+		setState(State.SCANNING);
+		SensorTagScanner scanner = getScanner();
+		if (scanner == null || !mBluetooth.isEnabled()) {
 			setState(State.BLUETOOTH_OFF);
 		} else {
-			mHandler.postDelayed(new Runnable() {
-				@Override
-				public void run() {
-					if (mState == State.SCANNING) {
-						mBluetooth.stopLeScan(BleService.this);
-						setState(State.IDLE);
-					}
-				}
-			}, SCAN_PERIOD);
-			mBluetooth.startLeScan(this);
+			mScanScheduler.scanNow(SCAN_PERIOD);
 		}
 	}
 
-	@Override
-	public void onLeScan(final BluetoothDevice device, int rssi, byte[] scanRecord) {
-		if (device != null && !mDevices.containsValue(device) && device.getName() != null && device.getName().equals(DEVICE_NAME)) {
-			mDevices.put(device.getAddress(), device);
-			Message msg = Message.obtain(null, MSG_DEVICE_FOUND);
-			if (msg != null) {
-				Bundle bundle = new Bundle();
-				String[] addresses = mDevices.keySet().toArray(new String[mDevices.size()]);
-				bundle.putStringArray(KEY_MAC_ADDRESSES, addresses);
-				msg.setData(bundle);
-                sendMessage(msg);
+	private final ScanScheduler.Listener mScanSchedulerListener = new ScanScheduler.Listener() {
+		@Override
+		public boolean isBluetoothReady() {
+			return mBluetooth != null && mBluetooth.isEnabled();
+		}
+
+		@Override
+		public void onWindowFinished(boolean requested) {
+			if (requested && mState == State.SCANNING) {
+				setState(getConnectionState());
 			}
-			Log.d(TAG, "Added " + device.getName() + ": " + device.getAddress());
+		}
+	};
+
+	private final SensorTagScanner.Listener mScanListener = new SensorTagScanner.Listener() {
+		@Override
+		public void onDeviceAdded(SensorTagScanner.DiscoveredDevice device) {
+			mScanScheduler.onDeviceAdded();
+			sendMessage(getDeviceMessage(MSG_DEVICE_FOUND, device));
+		}
+
+		@Override
+		public void onDeviceUpdated(SensorTagScanner.DiscoveredDevice device) {
+			sendMessage(getDeviceMessage(MSG_DEVICE_UPDATED, device));
+		}
+
+		@Override
+		public void onDeviceLost(SensorTagScanner.DiscoveredDevice device) {
+			sendMessage(getDeviceMessage(MSG_DEVICE_LOST, device));
+		}
+
+		@Override
+		public boolean isActive(String address) {
+			return mSessions.containsKey(address);
+		}
+	};
+
+	private Message getDeviceMessage(int what, SensorTagScanner.DiscoveredDevice device) {
+		Message msg = Message.obtain(null, what);
+		Bundle bundle = new Bundle();
+		bundle.putString(KEY_MAC_ADDRESS, device.address);
+		bundle.putInt(KEY_RSSI, device.rssi);
+		bundle.putLong(KEY_LAST_SEEN, device.lastSeen);
+		msg.setData(bundle);
+		return msg;
+	}
+
+	// Called once from onCreate, after the adapter is looked up; a test overrides it on its own
+	// instance to run this service over a SimulatedGattTransport instead of the Bluetooth stack
+	GattTransport createTransport() {
+		return new AndroidGattTransport(this, mBluetooth);
+	}
+
+	private void connectKnownDevices() {
+		if (!mTransport.isEnabled()) {
+			return;
+		}
+		for (String macAddress : mKnownDevices.getAddresses()) {
+			connect(macAddress);
 		}
 	}
 
 	public void connect(String macAddress) {
-		BluetoothDevice device = mDevices.get(macAddress);
-		if (device != null) {
-			mGatt = device.connectGatt(this, true, mGattCallback);
-		}
-	}
-
-	private void subscribe(BluetoothGatt gatt) {
-		BluetoothGattService humidityService = gatt.getService(UUID_HUMIDITY_SERVICE);
-		if (humidityService != null) {
-			BluetoothGattCharacteristic humidityCharacteristic = humidityService.getCharacteristic(UUID_HUMIDITY_DATA);
-			BluetoothGattCharacteristic humidityConf = humidityService.getCharacteristic(UUID_HUMIDITY_CONF);
-			if (humidityCharacteristic != null && humidityConf != null) {
-				BluetoothGattDescriptor config = humidityCharacteristic.getDescriptor(UUID_CCC);
-				if (config != null) {
-					gatt.setCharacteristicNotification(humidityCharacteristic, true);
-					humidityConf.setValue(ENABLE_SENSOR);
-					write(humidityConf);
-					config.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-					write(config);
+		if (mSessions.containsKey(macAddress) || !mTransport.isValidAddress(macAddress)) {
+			return;
+		}
+		GattSession session = new GattSession(macAddress, getDeviceId(macAddress), mTransport, mGattCallback, mHandler,
+				mKnownDevices, mSessionListener);
+		mSessions.put(macAddress, session);
+		mProcessor.add(session.getRing());
+		session.connect();
+	}
+
+	private final GattSession.Listener mSessionListener = new GattSession.Listener() {
+		@Override
+		public void onStateChanged(GattSession session, GattSession.State state) {
+			if (state == GattSession.State.DISCONNECTED) {
+				mSessions.remove(session.getAddress());
+				mProcessor.remove(session.getRing());
+			}
+			updateConnectionState();
+		}
+
+		@Override
+		public void onSubscribe(GattSession session, GattTransport.Link link) {
+			subscribe(session, link);
+		}
+	};
+
+	// Device id to address table, as carried in sample batches
+	private String[] getDevices() {
+		return mDeviceIds.toArray(new String[mDeviceIds.size()]);
+	}
+
+	private int getDeviceId(String macAddress) {
+		int id = mDeviceIds.indexOf(macAddress);
+		if (id < 0) {
+			id = mDeviceIds.size();
+			mDeviceIds.add(macAddress);
+			String[] devices = getDevices();
+			for (Client client : mClients) {
+				client.subscription.setDevices(devices);
+				if (client.batcher != null) {
+					client.batcher.setDevices(devices);
 				}
 			}
 		}
+		return id;
+	}
+
+	public void disconnect(String macAddress) {
+		GattSession session = mSessions.get(macAddress);
+		if (session != null) {
+			disconnect(session);
+		}
+	}
+
+	public void disconnectAll() {
+		for (GattSession session : mSessions.values()) {
+			disconnect(session);
+		}
+	}
+
+	// User initiated, so the tag is no longer reconnected on start either
+	private void disconnect(GattSession session) {
+		mKnownDevices.forget(session.getAddress());
+		session.disconnect();
+	}
+
+	// A tag in back-off counts as connecting, so a brief dropout does not take the UI back to the device list
+	private State getConnectionState() {
+		State state = State.IDLE;
+		for (GattSession session : mSessions.values()) {
+			switch (session.getState()) {
+				case STREAMING:
+				case SUBSCRIBING:
+				case DISCOVERING:
+					return State.CONNECTED;
+				case CONNECTING:
+				case BACKOFF:
+					state = State.CONNECTING;
+					break;
+				case DISCONNECTING:
+					if (state == State.IDLE) {
+						state = State.DISCONNECTING;
+					}
+					break;
+			}
+		}
+		return state;
+	}
+
+	// Session callbacks arrive on binder and transport threads; mState belongs to the main thread
+	private void updateConnectionState() {
+		mHandler.post(mUpdateConnectionState);
+	}
+
+	private final Runnable mUpdateConnectionState = new Runnable() {
+		@Override
+		public void run() {
+			State state = getConnectionState();
+			if (state != State.IDLE || (mState != State.SCANNING && mState != State.BLUETOOTH_OFF)) {
+				setState(state);
+			}
+			mUpdateCollection.run();
+			mUpdateBackgroundScan.run();
+		}
+	};
 
-		BluetoothGattService LuxometerService = gatt.getService(UUID_LUXOMETER_SERVICE);
-		if (LuxometerService != null){
-			BluetoothGattCharacteristic LuxometerCharacteristic = LuxometerService.getCharacteristic(UUID_LUXOMETER_DATA);
-			BluetoothGattCharacteristic LuxometerConf = LuxometerService.getCharacteristic(UUID_LUXOMETER_CONF);
-			if(LuxometerCharacteristic != null && LuxometerConf != null){
-				BluetoothGattDescriptor config = LuxometerCharacteristic.getDescriptor(UUID_CCC);
-				if(config != null){
-					gatt.setCharacteristicNotification(LuxometerCharacteristic, true);
-					LuxometerConf.setValue(ENABLE_SENSOR);
-					write(LuxometerConf);
-					config.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-					write(config);
+	private final Runnable mUpdateCollection = new Runnable() {
+		@Override
+		public void run() {
+			if (!mSessions.isEmpty() && !mPipeline.isRunning()) {
+				// Keep running, and collecting, after the activity unbinds. From O a plain
+				// startService throws while the app is in the background, which a reconnect can be
+				Intent intent = new Intent(BleService.this, BleService.class);
+				if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+					startForegroundService(intent);
+				} else {
+					startService(intent);
 				}
+				startForeground(NOTIFICATION_ID, buildNotification());
+				mSamplingPolicy.reset();
+				mPipeline.start();
+			} else if (mSessions.isEmpty() && mPipeline.isRunning()) {
+				mPipeline.stop();
+				stopForeground(true);
+				stopSelf();
 			}
 		}
+	};
+
+	private Notification buildNotification() {
+		Notification.Builder builder;
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+			NotificationManager manager = (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
+			manager.createNotificationChannel(new NotificationChannel(NOTIFICATION_CHANNEL,
+					getString(R.string.notification_channel), NotificationManager.IMPORTANCE_LOW));
+			builder = new Notification.Builder(this, NOTIFICATION_CHANNEL);
+		} else {
+			builder = new Notification.Builder(this);
+		}
+		PendingIntent intent = PendingIntent.getActivity(this, 0, new Intent(this, BleActivity.class), 0);
+		return builder.setSmallIcon(R.drawable.ic_launcher)
+				.setContentTitle(getString(R.string.app_name))
+				.setContentText(getString(R.string.notification_collecting))
+				.setContentIntent(intent)
+				.setOngoing(true)
+				.build();
 	}
 
-	private synchronized void write(Object o) {
-		if (sWriteQueue.isEmpty() && !sIsWriting) {
-			doWrite(o);
+	// Temperature and humidity come from the same HDC1000, so either sets its period
+	public void setSamplingPeriod(int sensor, int period) {
+		if (sensor < 0 || sensor >= SensorType.COUNT || period < 0) {
+			Log.w(TAG, "Ignoring sampling period " + period + " for sensor " + sensor);
+			return;
+		}
+		if (sensor == SensorType.TEMPERATURE || sensor == SensorType.HUMIDITY) {
+			mFixedPeriods[SensorType.TEMPERATURE] = period;
+			mFixedPeriods[SensorType.HUMIDITY] = period;
 		} else {
-			sWriteQueue.add(o);
+			mFixedPeriods[sensor] = period;
 		}
+		updateSamplingPeriods();
 	}
 
-	private synchronized void nextWrite() {
-		if (!sWriteQueue.isEmpty() && !sIsWriting) {
-			doWrite(sWriteQueue.poll());
+	private int getSamplingPeriod(int sensor) {
+		if (sensor < 0 || sensor >= SensorType.COUNT) {
+			return mSamplingPolicy.getPeriod();
 		}
+		return mFixedPeriods[sensor] > 0 ? mFixedPeriods[sensor] : mSamplingPolicy.getPeriod();
 	}
 
-	private synchronized void doWrite(Object o) {
-		if (o instanceof BluetoothGattCharacteristic) {
-			sIsWriting = true;
-			mGatt.writeCharacteristic((BluetoothGattCharacteristic) o);
-		} else if (o instanceof BluetoothGattDescriptor) {
-			sIsWriting = true;
-			mGatt.writeDescriptor((BluetoothGattDescriptor) o);
-		} else {
-			nextWrite();
+	private void updateSamplingPeriods() {
+		for (GattSession session : mSessions.values()) {
+			GattTransport.Link link = session.getLink();
+			if (link != null && (session.getState() == GattSession.State.SUBSCRIBING || session.getState() == GattSession.State.STREAMING)) {
+				writeSamplingPeriods(session, link);
+			}
+		}
+	}
+
+	// The operation queue drops a write whose value the tag has already acknowledged
+	private void writeSamplingPeriods(GattSession session, GattTransport.Link link) {
+		writePeriod(session, link, UUID_HUMIDITY_SERVICE, UUID_HUMIDITY_PERIOD, getSamplingPeriod(SensorType.HUMIDITY));
+		writePeriod(session, link, UUID_LUXOMETER_SERVICE, UUID_LUXOMETER_PERIOD, getSamplingPeriod(SensorType.LIGHT));
+	}
+
+	private void writePeriod(GattSession session, GattTransport.Link link, UUID service, UUID period, int value) {
+		if (link.hasCharacteristic(service, period)) {
+			session.write(service, period, SamplingPolicy.encode(value));
+		}
+	}
+
+	private void subscribe(GattSession session, GattTransport.Link link) {
+		writeSamplingPeriods(session, link);
+		enableSensor(session, link, UUID_HUMIDITY_SERVICE, UUID_HUMIDITY_DATA, UUID_HUMIDITY_CONF);
+		enableSensor(session, link, UUID_LUXOMETER_SERVICE, UUID_LUXOMETER_DATA, UUID_LUXOMETER_CONF);
+	}
+
+	private void enableSensor(GattSession session, GattTransport.Link link, UUID service, UUID data, UUID conf) {
+		if (link.hasCharacteristic(service, data) && link.hasCharacteristic(service, conf) && link.hasDescriptor(service, data, UUID_CCC)) {
+			link.setNotification(service, data, true);
+			session.write(service, conf, ENABLE_SENSOR);
+			session.writeDescriptor(service, data, UUID_CCC, BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
 		}
 	}
 
@@ -320,12 +999,19 @@ public class BleService extends Service implements BluetoothAdapter.LeScanCallba
 		return msg;
 	}
 
+	// A Message can only sit in one queue at a time, so every client is sent its own copy
 	private void sendMessage(Message msg) {
-		for (int i = mClients.size() - 1; i >= 0; i--) {
-			Messenger messenger = mClients.get(i);
-			if (!sendMessage(messenger, msg)) {
-				mClients.remove(messenger);
-			}
+		long start = Metrics.now();
+		for (Client client : mClients) {
+			sendMessage(client, Message.obtain(msg));
+		}
+		msg.recycle();
+		Metrics.FANOUT.recordSince(start);
+	}
+
+	private void sendMessage(Client client, Message msg) {
+		if (!sendMessage(client.messenger, msg)) {
+			unregister(client.messenger);
 		}
 	}
 
@@ -333,17 +1019,12 @@ public class BleService extends Service implements BluetoothAdapter.LeScanCallba
 		boolean success = true;
 		try {
 			messenger.send(msg);
+			Metrics.MESSAGES_SENT.inc();
 		} catch (RemoteException e) {
 			Log.w(TAG, "Lost connection to client", e);
+			Metrics.MESSAGES_FAILED.inc();
 			success = false;
 		}
 		return success;
 	}
-
-	private static Integer shortUnsignedAtOffset(BluetoothGattCharacteristic characteristic, int offset) {
-		Integer lowerByte = characteristic.getIntValue(BluetoothGattCharacteristic.FORMAT_UINT8, offset);
-		Integer upperByte = characteristic.getIntValue(BluetoothGattCharacteristic.FORMAT_UINT8, offset + 1);
-
-		return (upperByte << 8) + lowerByte;
-	}
 }
\ No newline at end of file
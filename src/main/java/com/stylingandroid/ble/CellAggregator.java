@@ -0,0 +1,215 @@
+package com.stylingandroid.ble;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/*
+ * Buckets readings by geohash cell and fixed time window. Each cell keeps running
+ * min, max, sum and count per sensor, the mean position of its readings and a
+ * fixed-size reservoir sample per sensor for approximate percentiles, all in
+ * primitive arrays that grow when a batch opens more cells than they hold, so a
+ * cell is never split across two batches. Sensors are indexed as in SensorType.
+ * Not thread safe.
+ */
+class CellAggregator {
+	static final int DEFAULT_PRECISION = 7;	//about 150 m by 150 m
+	static final long DEFAULT_WINDOW = 5 * 60 * 1000;
+	static final int DEFAULT_CAPACITY = 256;
+	static final int SKETCH_SIZE = 16;
+
+	private static final int SENSORS = SensorType.COUNT;
+
+	private int mCapacity;
+	private long[] mCells;
+	private long[] mWindows;
+	private long[] mLastTimes;
+	private int[] mCounts;
+	private double[] mLatitudes;	//sums until read
+	private double[] mLongitudes;
+	private double[] mMin;
+	private double[] mMax;
+	private double[] mSum;
+	private int[] mSensorCounts;
+	private float[] mSketch;
+	private final float[] mScratch = new float[SKETCH_SIZE];
+	private final Random mRandom = new Random();
+
+	private int mPrecision = DEFAULT_PRECISION;
+	private long mWindow = DEFAULT_WINDOW;
+	private int mSize = 0;
+	private int mLast = 0;	//consecutive readings usually land in the same cell
+
+	CellAggregator() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	CellAggregator(int capacity) {
+		mCapacity = Math.max(1, capacity);
+		mCells = new long[mCapacity];
+		mWindows = new long[mCapacity];
+		mLastTimes = new long[mCapacity];
+		mCounts = new int[mCapacity];
+		mLatitudes = new double[mCapacity];
+		mLongitudes = new double[mCapacity];
+		mMin = new double[mCapacity * SENSORS];
+		mMax = new double[mCapacity * SENSORS];
+		mSum = new double[mCapacity * SENSORS];
+		mSensorCounts = new int[mCapacity * SENSORS];
+		mSketch = new float[mCapacity * SENSORS * SKETCH_SIZE];
+	}
+
+	private void grow() {
+		mCapacity *= 2;
+		mCells = Arrays.copyOf(mCells, mCapacity);
+		mWindows = Arrays.copyOf(mWindows, mCapacity);
+		mLastTimes = Arrays.copyOf(mLastTimes, mCapacity);
+		mCounts = Arrays.copyOf(mCounts, mCapacity);
+		mLatitudes = Arrays.copyOf(mLatitudes, mCapacity);
+		mLongitudes = Arrays.copyOf(mLongitudes, mCapacity);
+		mMin = Arrays.copyOf(mMin, mCapacity * SENSORS);
+		mMax = Arrays.copyOf(mMax, mCapacity * SENSORS);
+		mSum = Arrays.copyOf(mSum, mCapacity * SENSORS);
+		mSensorCounts = Arrays.copyOf(mSensorCounts, mCapacity * SENSORS);
+		mSketch = Arrays.copyOf(mSketch, mCapacity * SENSORS * SKETCH_SIZE);
+	}
+
+	public void configure(int precision, long window) {
+		mPrecision = Math.max(1, Math.min(precision, Geohash.MAX_PRECISION));
+		mWindow = Math.max(1, window);
+		clear();
+	}
+
+	public int getPrecision() {
+		return mPrecision;
+	}
+
+	public long getWindow() {
+		return mWindow;
+	}
+
+	public long getWindowStart(long time) {
+		return time - ((time % mWindow) + mWindow) % mWindow;
+	}
+
+	public int size() {
+		return mSize;
+	}
+
+	public void clear() {
+		mSize = 0;
+		mLast = 0;
+	}
+
+	public void add(long time, double temperature, double humidity, double light, double latitude, double longitude) {
+		long cell = Geohash.encode(latitude, longitude, mPrecision);
+		long window = getWindowStart(time);
+		int index = find(cell, window);
+		if (index < 0) {
+			if (mSize == mCapacity) {
+				grow();
+			}
+			index = mSize++;
+			mCells[index] = cell;
+			mWindows[index] = window;
+			mLastTimes[index] = time;
+			mCounts[index] = 0;
+			mLatitudes[index] = 0;
+			mLongitudes[index] = 0;
+			for (int sensor = 0; sensor < SENSORS; sensor++) {
+				int slot = index * SENSORS + sensor;
+				mMin[slot] = Double.POSITIVE_INFINITY;
+				mMax[slot] = Double.NEGATIVE_INFINITY;
+				mSum[slot] = 0;
+				mSensorCounts[slot] = 0;
+			}
+		}
+		mLast = index;
+		mCounts[index]++;
+		mLatitudes[index] += latitude;
+		mLongitudes[index] += longitude;
+		mLastTimes[index] = Math.max(mLastTimes[index], time);
+		accumulate(index, SensorType.TEMPERATURE, temperature);
+		accumulate(index, SensorType.HUMIDITY, humidity);
+		accumulate(index, SensorType.LIGHT, light);
+	}
+
+	private int find(long cell, long window) {
+		if (mSize > 0 && mCells[mLast] == cell && mWindows[mLast] == window) {
+			return mLast;
+		}
+		for (int i = 0; i < mSize; i++) {
+			if (mCells[i] == cell && mWindows[i] == window) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private void accumulate(int index, int sensor, double value) {
+		if (Double.isNaN(value)) {
+			return;
+		}
+		int slot = index * SENSORS + sensor;
+		mMin[slot] = Math.min(mMin[slot], value);
+		mMax[slot] = Math.max(mMax[slot], value);
+		mSum[slot] += value;
+		int count = ++mSensorCounts[slot];
+		// Reservoir sampling keeps a uniform sample of every value the cell has seen
+		int position = count <= SKETCH_SIZE ? count - 1 : mRandom.nextInt(count);
+		if (position < SKETCH_SIZE) {
+			mSketch[slot * SKETCH_SIZE + position] = (float) value;
+		}
+	}
+
+	public long getCell(int index) {
+		return mCells[index];
+	}
+
+	public long getWindowStartAt(int index) {
+		return mWindows[index];
+	}
+
+	public long getLastTime(int index) {
+		return mLastTimes[index];
+	}
+
+	public int getCount(int index) {
+		return mCounts[index];
+	}
+
+	public double getLatitude(int index) {
+		return mLatitudes[index] / mCounts[index];
+	}
+
+	public double getLongitude(int index) {
+		return mLongitudes[index] / mCounts[index];
+	}
+
+	// The statistics below are NaN for a sensor with no values in the cell
+	public double getMin(int index, int sensor) {
+		int slot = index * SENSORS + sensor;
+		return mSensorCounts[slot] > 0 ? mMin[slot] : Double.NaN;
+	}
+
+	public double getMax(int index, int sensor) {
+		int slot = index * SENSORS + sensor;
+		return mSensorCounts[slot] > 0 ? mMax[slot] : Double.NaN;
+	}
+
+	public double getMean(int index, int sensor) {
+		int slot = index * SENSORS + sensor;
+		return mSensorCounts[slot] > 0 ? mSum[slot] / mSensorCounts[slot] : Double.NaN;
+	}
+
+	// fraction in [0, 1]; exact while the cell has no more values than the sketch holds
+	public double getPercentile(int index, int sensor, double fraction) {
+		int slot = index * SENSORS + sensor;
+		int count = Math.min(mSensorCounts[slot], SKETCH_SIZE);
+		if (count == 0) {
+			return Double.NaN;
+		}
+		System.arraycopy(mSketch, slot * SKETCH_SIZE, mScratch, 0, count);
+		Arrays.sort(mScratch, 0, count);
+		return mScratch[(int) Math.round(fraction * (count - 1))];
+	}
+}
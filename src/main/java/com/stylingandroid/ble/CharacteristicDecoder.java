@@ -0,0 +1,10 @@
+package com.stylingandroid.ble;
+
+/*
+ * Turns the raw bytes of a characteristic notification into samples. Implementations
+ * read straight from the value array and must not allocate; only the first length
+ * bytes are valid, as the array may be a reused ring slot.
+ */
+interface CharacteristicDecoder {
+	void decode(byte[] value, int length, SampleSink sink);
+}
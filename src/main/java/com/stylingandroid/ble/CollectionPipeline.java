@@ -0,0 +1,297 @@
+package com.stylingandroid.ble;
+
+import android.Manifest;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.location.Location;
+import android.location.LocationListener;
+import android.location.LocationManager;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+/*
+ * Headless data collection owned by BleService: joins BLE samples with location
+ * fixes in time, hands scheduled readings to the uploader and feeds the UI a
+ * throttled view of the location stream. Runs for as long as a tag is connected,
+ * whether or not any activity is bound.
+ *
+ * Fixes arrive and are fused on a thread of the pipeline's own; only a coalesced
+ * snapshot of the newest fix and speed is posted to the service's handler.
+ */
+class CollectionPipeline implements LocationListener {
+	private static final String TAG = "CollectionPipeline";
+
+	static final long DEFAULT_UI_INTERVAL = 1000;
+	static final long DEFAULT_LOCATION_INTERVAL = 1000;
+	private static final float LOCATION_MIN_DISTANCE = 1;
+
+	interface Listener {
+		void onLocation(Location location);
+
+		// Ground speed in m/s, as of the newest fix
+		void onSpeed(float speed);
+	}
+
+	private final Context mContext;
+	private final Handler mHandler;
+	private final Listener mListener;
+	private final ReadingScheduler mScheduler = new ReadingScheduler();
+	private final ReadingFusion mFusion = new ReadingFusion();
+
+	private final Handler mLocationHandler;	//fixes, speed and fusion state belong to this thread
+	private volatile boolean mRunning = false;
+	private long mLocationInterval = DEFAULT_LOCATION_INTERVAL;
+	private long mUiInterval = DEFAULT_UI_INTERVAL;
+	private volatile long mLastUiUpdate = 0;
+	private Location mPendingLocation = null;	//snapshot handed to mHandler, guarded by this
+	private float mPendingSpeed = 0;
+	private boolean mUiScheduled = false;
+	private Location mLastFix = null;
+
+	private final Runnable mUiRunnable = new Runnable() {
+		@Override
+		public void run() {
+			publish();
+		}
+	};
+
+	private final Runnable mFusionRunnable = new Runnable() {
+		@Override
+		public void run() {
+			emitReadings(SystemClock.elapsedRealtime());
+		}
+	};
+
+	CollectionPipeline(Context context, Handler handler, Listener listener) {
+		mContext = context;
+		mHandler = handler;
+		mListener = listener;
+		HandlerThread thread = new HandlerThread(TAG);
+		thread.start();
+		mLocationHandler = new Handler(thread.getLooper());
+	}
+
+	public boolean isRunning() {
+		return mRunning;
+	}
+
+	public void start() {
+		if (mRunning) {
+			return;
+		}
+		LocationManager locManager = (LocationManager) mContext.getSystemService(Context.LOCATION_SERVICE);
+		if (locManager == null || !hasLocationPermission()) {
+			Log.w(TAG, "Location unavailable, collection not started");
+			return;
+		}
+		mLocationHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				// Queued behind whatever the last stop left to finish
+				mScheduler.reset();
+				mFusion.reset();
+				mLastFix = null;
+			}
+		});
+		mRunning = true;
+		requestUpdates(locManager);
+	}
+
+	// Minimum time between fixes from each provider; applies straight away when running
+	public void setLocationInterval(long interval) {
+		mLocationInterval = Math.max(0, interval);
+		if (mRunning) {
+			LocationManager locManager = (LocationManager) mContext.getSystemService(Context.LOCATION_SERVICE);
+			if (locManager == null) {
+				return;
+			}
+			locManager.removeUpdates(this);
+			requestUpdates(locManager);
+		}
+	}
+
+	private void requestUpdates(LocationManager locManager) {
+		Looper looper = mLocationHandler.getLooper();
+		try {
+			locManager.requestLocationUpdates(LocationManager.GPS_PROVIDER, mLocationInterval, LOCATION_MIN_DISTANCE, this, looper);
+			locManager.requestLocationUpdates(LocationManager.NETWORK_PROVIDER, mLocationInterval, LOCATION_MIN_DISTANCE, this, looper);
+		} catch (SecurityException e) {
+			Log.w(TAG, "Location permission revoked", e);
+		} catch (IllegalArgumentException e) {
+			Log.w(TAG, "Location provider missing", e);
+		}
+	}
+
+	public void stop() {
+		if (!mRunning) {
+			return;
+		}
+		LocationManager locManager = (LocationManager) mContext.getSystemService(Context.LOCATION_SERVICE);
+		if (locManager != null) {
+			locManager.removeUpdates(this);
+		}
+		mRunning = false;
+		mHandler.removeCallbacks(mUiRunnable);
+		synchronized (this) {
+			mPendingLocation = null;
+			mUiScheduled = false;
+		}
+		mLocationHandler.removeCallbacks(mFusionRunnable);
+		mLocationHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				// Windows still held open for late fixes are closed with what they have
+				emitReadings(Long.MAX_VALUE);
+				ReadingUploader.getInstance(mContext).flush();
+			}
+		});
+	}
+
+	// Stops for good and ends the location thread once the final drain queued by stop() has run
+	public void release() {
+		stop();
+		mLocationHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				mLocationHandler.getLooper().quitSafely();
+			}
+		});
+	}
+
+	private boolean hasLocationPermission() {
+		if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+			return true;
+		}
+		return mContext.checkSelfPermission(Manifest.permission.ACCESS_FINE_LOCATION) == PackageManager.PERMISSION_GRANTED
+				|| mContext.checkSelfPermission(Manifest.permission.ACCESS_COARSE_LOCATION) == PackageManager.PERMISSION_GRANTED;
+	}
+
+	// Called on the sample processor thread; time is elapsedRealtime milliseconds
+	public void onSample(int device, int sensor, long time, float value) {
+		mFusion.onSample(device, sensor, time, value);
+	}
+
+	@Override
+	public void onLocationChanged(Location location) {
+		if (!mRunning) {
+			// Delivered after stop, already queued on this thread
+			return;
+		}
+		Metrics.LOCATIONS.inc();
+		float speed = getSpeed(location);
+		if (mFusion.addFix(location)) {
+			scheduleFusion();
+		}
+		publishLater(location, speed);
+	}
+
+	// Replaces the pending snapshot; at most one is queued on mHandler per UI interval
+	private synchronized void publishLater(Location location, float speed) {
+		mPendingLocation = location;
+		mPendingSpeed = speed;
+		if (!mUiScheduled) {
+			mUiScheduled = true;
+			long wait = mLastUiUpdate + mUiInterval - SystemClock.elapsedRealtime();
+			mHandler.postDelayed(mUiRunnable, Math.max(0, wait));
+		}
+	}
+
+	private void scheduleFusion() {
+		long due = mFusion.getNextDue();
+		mLocationHandler.removeCallbacks(mFusionRunnable);
+		if (due >= 0) {
+			mLocationHandler.postDelayed(mFusionRunnable, Math.max(0, due - SystemClock.elapsedRealtime()));
+		}
+	}
+
+	private void emitReadings(long now) {
+		Location fix;
+		while ((fix = mFusion.nextFix(now)) != null) {
+			record(fix);
+		}
+		if (now != Long.MAX_VALUE) {
+			scheduleFusion();
+		}
+	}
+
+	/*
+	 * One reading per tag and closed window, with its sensors as they were at the
+	 * fix's own time. Only a fix that will be recorded is offered to the scheduler,
+	 * which restarts its distance and time gates on every fix it accepts.
+	 */
+	private void record(Location fix) {
+		long time = ReadingFusion.getTime(fix);
+		int devices = mFusion.getDeviceCount();
+		boolean measured = false;
+		for (int device = 0; device < devices && !measured; device++) {
+			measured = hasMeasurement(device, time);
+		}
+		if (!measured || !mScheduler.offer(fix.getLatitude(), fix.getLongitude(), fix.getAccuracy(), time)) {
+			return;
+		}
+		for (int device = 0; device < devices; device++) {
+			if (hasMeasurement(device, time)) {
+				new JsonData(mFusion.valueAt(device, SensorType.TEMPERATURE, time),
+						mFusion.valueAt(device, SensorType.HUMIDITY, time),
+						mFusion.valueAt(device, SensorType.LIGHT, time), fix).pushToSever(mContext);
+			}
+		}
+	}
+
+	// Nothing measured near the fix leaves a bare position, of no use to the weather map
+	private boolean hasMeasurement(int device, long time) {
+		return !Float.isNaN(mFusion.valueAt(device, SensorType.TEMPERATURE, time))
+				|| !Float.isNaN(mFusion.valueAt(device, SensorType.LIGHT, time));
+	}
+
+	// Network fixes carry no speed, so fall back to the distance from the previous fix
+	private float getSpeed(Location location) {
+		float speed;
+		if (location.hasSpeed()) {
+			speed = location.getSpeed();
+		} else if (mLastFix != null && location.getElapsedRealtimeNanos() > mLastFix.getElapsedRealtimeNanos()) {
+			float seconds = (location.getElapsedRealtimeNanos() - mLastFix.getElapsedRealtimeNanos()) / 1e9f;
+			speed = location.distanceTo(mLastFix) / seconds;
+		} else {
+			speed = 0;
+		}
+		mLastFix = location;
+		return speed;
+	}
+
+	// Runs on mHandler
+	private void publish() {
+		Location location;
+		float speed;
+		synchronized (this) {
+			location = mPendingLocation;
+			speed = mPendingSpeed;
+			mPendingLocation = null;
+			mUiScheduled = false;
+		}
+		if (location != null) {
+			mLastUiUpdate = SystemClock.elapsedRealtime();
+			mListener.onSpeed(speed);
+			mListener.onLocation(location);
+		}
+	}
+
+	@Override
+	public void onStatusChanged(String provider, int status, Bundle extras) {
+	}
+
+	@Override
+	public void onProviderEnabled(String provider) {
+		Log.d(TAG, "Provider enabled: " + provider);
+	}
+
+	@Override
+	public void onProviderDisabled(String provider) {
+		Log.d(TAG, "Provider disabled: " + provider);
+	}
+}
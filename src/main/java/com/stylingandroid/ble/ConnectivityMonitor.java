@@ -0,0 +1,84 @@
+package com.stylingandroid.ble;
+
+import android.annotation.TargetApi;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.NetworkInfo;
+import android.net.NetworkRequest;
+import android.os.Build;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/*
+ * Caches whether any network with internet access is up, so callers on hot paths
+ * read a field instead of asking ConnectivityManager each time. Lollipop and later
+ * follow a network callback; older releases listen for the connectivity broadcast.
+ */
+class ConnectivityMonitor {
+	private static ConnectivityMonitor sInstance = null;
+
+	private final ConnectivityManager mConnectivity;
+	private final Set<Object> mNetworks = new HashSet<Object>();
+	private volatile boolean mConnected;
+
+	public static synchronized ConnectivityMonitor getInstance(Context context) {
+		if (sInstance == null) {
+			sInstance = new ConnectivityMonitor(context.getApplicationContext());
+		}
+		return sInstance;
+	}
+
+	private ConnectivityMonitor(Context context) {
+		mConnectivity = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+		mConnected = query();
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+			registerCallback();
+		} else {
+			context.registerReceiver(new BroadcastReceiver() {
+				@Override
+				public void onReceive(Context context, Intent intent) {
+					mConnected = query();
+				}
+			}, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+		}
+	}
+
+	public boolean isConnected() {
+		return mConnected;
+	}
+
+	@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+	private void registerCallback() {
+		NetworkRequest request = new NetworkRequest.Builder()
+				.addCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET)
+				.build();
+		mConnectivity.registerNetworkCallback(request, new ConnectivityManager.NetworkCallback() {
+			@Override
+			public void onAvailable(Network network) {
+				synchronized (mNetworks) {
+					mNetworks.add(network);
+					mConnected = true;
+				}
+			}
+
+			@Override
+			public void onLost(Network network) {
+				synchronized (mNetworks) {
+					mNetworks.remove(network);
+					mConnected = !mNetworks.isEmpty();
+				}
+			}
+		});
+	}
+
+	private boolean query() {
+		NetworkInfo networkInfo = mConnectivity != null ? mConnectivity.getActiveNetworkInfo() : null;
+		return networkInfo != null && networkInfo.isConnected();
+	}
+}
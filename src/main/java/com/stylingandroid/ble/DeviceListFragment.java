@@ -2,16 +2,14 @@ package com.stylingandroid.ble;
 
 import android.app.Activity;
 import android.app.Fragment;
-import android.content.Context;
-import android.content.Intent;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.AbsListView;
 import android.widget.AdapterView;
-import android.widget.ListAdapter;
-import android.widget.SimpleAdapter;
+import android.widget.BaseAdapter;
 import android.widget.TextView;
 
 import java.util.ArrayList;
@@ -20,18 +18,12 @@ import java.util.List;
 import java.util.Map;
 
 public class DeviceListFragment extends Fragment implements AbsListView.OnItemClickListener {
-	private static final String KEY_MAC_ADDRESS = "KEY_MAC_ADDRESS";
-	private static final String[] KEYS = {"KEY_MAC_ADDRESS"};
-	private static final int[] IDS = {android.R.id.text1};
-
 	private OnDeviceListFragmentInteractionListener mListener;
 
 	private AbsListView mListView;
 	private TextView mEmptyView;
 
-	private ListAdapter mAdapter;
-
-	private String[] mDevices = null;
+	private final DeviceAdapter mAdapter = new DeviceAdapter();
 
 	private String mScanning;
 	private String mNoDevices;
@@ -93,24 +85,36 @@ public class DeviceListFragment extends Fragment implements AbsListView.OnItemCl
 		if (null != mListener) {
 			// Notify the active callbacks interface (the activity, if the
 			// fragment is attached to one) that an item has been selected.
-			mListener.onDeviceListFragmentInteraction(mDevices[position]);
+			mListener.onDeviceListFragmentInteraction(mAdapter.getItem(position).address);
 			//Intent i = new Intent(getActivity(), MapsActivity.class);
 			//startActivity(i);
 		}
 	}
 
-	public void setDevices(Context context, String[] devices) {
-		mDevices = devices;
-		List<Map<String, String>> items = new ArrayList<Map<String, String>>();
-		if (devices != null) {
-			for (String device : devices) {
-				Map<String, String> item = new HashMap<String, String>();
-				item.put(KEY_MAC_ADDRESS, device);
-				items.add(item);
-			}
+	public void addDevice(String macAddress, int rssi, long lastSeen) {
+		if (mAdapter.add(macAddress, rssi, lastSeen)) {
+			mAdapter.notifyDataSetChanged();
+		} else {
+			updateDevice(macAddress, rssi, lastSeen);
+		}
+	}
+
+	public void updateDevice(String macAddress, int rssi, long lastSeen) {
+		int position = mAdapter.update(macAddress, rssi, lastSeen);
+		if (position < 0 || mListView == null) {
+			return;
+		}
+		// Rebind the one row in place; a data set change would rebind every visible row
+		int child = position - mListView.getFirstVisiblePosition();
+		if (child >= 0 && child < mListView.getChildCount()) {
+			mAdapter.getView(position, mListView.getChildAt(child), mListView);
+		}
+	}
+
+	public void removeDevice(String macAddress) {
+		if (mAdapter.remove(macAddress)) {
+			mAdapter.notifyDataSetChanged();
 		}
-		mAdapter = new SimpleAdapter(context, items, android.R.layout.simple_list_item_1, KEYS, IDS);
-		mListView.setAdapter(mAdapter);
 	}
 
 	public void setEmptyText(CharSequence emptyText) {
@@ -127,4 +131,91 @@ public class DeviceListFragment extends Fragment implements AbsListView.OnItemCl
 		mListView.setEnabled(!scanning);
 		setEmptyText(scanning ? mScanning : mNoDevices);
 	}
+
+	private static class Device {
+		final String address;
+		final long id;
+		int rssi;
+		long lastSeen;
+
+		Device(String address, long id) {
+			this.address = address;
+			this.id = id;
+		}
+	}
+
+	/*
+	 * Each address keeps the same row id for as long as it is listed, so adds and
+	 * removes keep the scroll position and recycled rows, and RSSI updates rebind
+	 * only the row that changed.
+	 */
+	private static class DeviceAdapter extends BaseAdapter {
+		private final List<Device> mDevices = new ArrayList<Device>();
+		private final Map<String, Device> mByAddress = new HashMap<String, Device>();
+		private long mNextId = 0;
+
+		boolean add(String address, int rssi, long lastSeen) {
+			if (mByAddress.containsKey(address)) {
+				return false;
+			}
+			Device device = new Device(address, mNextId++);
+			device.rssi = rssi;
+			device.lastSeen = lastSeen;
+			mDevices.add(device);
+			mByAddress.put(address, device);
+			return true;
+		}
+
+		// Position of the changed row, or -1 if nothing shown changed
+		int update(String address, int rssi, long lastSeen) {
+			Device device = mByAddress.get(address);
+			if (device == null || (device.rssi == rssi && device.lastSeen == lastSeen)) {
+				return -1;
+			}
+			device.rssi = rssi;
+			device.lastSeen = lastSeen;
+			return mDevices.indexOf(device);
+		}
+
+		boolean remove(String address) {
+			Device device = mByAddress.remove(address);
+			return device != null && mDevices.remove(device);
+		}
+
+		@Override
+		public int getCount() {
+			return mDevices.size();
+		}
+
+		@Override
+		public Device getItem(int position) {
+			return mDevices.get(position);
+		}
+
+		@Override
+		public long getItemId(int position) {
+			return mDevices.get(position).id;
+		}
+
+		@Override
+		public boolean hasStableIds() {
+			return true;
+		}
+
+		@Override
+		public View getView(int position, View convertView, ViewGroup parent) {
+			View view = convertView;
+			if (view == null) {
+				view = LayoutInflater.from(parent.getContext()).inflate(android.R.layout.simple_list_item_2, parent, false);
+			}
+			Device device = mDevices.get(position);
+			TextView address = (TextView) view.findViewById(android.R.id.text1);
+			TextView details = (TextView) view.findViewById(android.R.id.text2);
+			address.setText(device.address);
+			// lastSeen is elapsedRealtime, which the service and the UI share
+			long seen = Math.max(0, SystemClock.elapsedRealtime() - device.lastSeen) / 1000;
+			details.setText(view.getContext().getString(R.string.device_details, device.rssi, seen));
+			return view;
+		}
+	}
 }
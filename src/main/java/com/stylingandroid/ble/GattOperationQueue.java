@@ -0,0 +1,218 @@
+package com.stylingandroid.ble;
+
+import android.bluetooth.BluetoothGatt;
+import android.os.Handler;
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.UUID;
+
+/*
+ * Serialises the reads and writes of a single GATT link. Android only allows
+ * one outstanding GATT operation per connection, so the operation on the air sits
+ * in an explicit in-flight slot guarded by a timeout and a bounded number of retries.
+ * Each connection has its own queue, so a hung write only stalls its own tag.
+ */
+class GattOperationQueue {
+	private static final String TAG = "GattOperationQueue";
+
+	static final long DEFAULT_TIMEOUT = 2000;
+	static final int DEFAULT_MAX_RETRIES = 2;
+	private static final long BUSY_RETRY_DELAY = 50;
+
+	private static final int OP_WRITE_CHARACTERISTIC = GattTransport.OP_WRITE_CHARACTERISTIC;
+	private static final int OP_WRITE_DESCRIPTOR = GattTransport.OP_WRITE_DESCRIPTOR;
+	private static final int OP_READ_CHARACTERISTIC = GattTransport.OP_READ_CHARACTERISTIC;
+
+	// A characteristic, or one descriptor of it; the link's completion callbacks identify ops by type, characteristic and descriptor
+	private static class Operation {
+		final int type;
+		final UUID service;
+		final UUID characteristic;
+		final UUID descriptor;
+		byte[] value;
+		int attempts = 0;
+
+		Operation(int type, UUID service, UUID characteristic, UUID descriptor, byte[] value) {
+			this.type = type;
+			this.service = service;
+			this.characteristic = characteristic;
+			this.descriptor = descriptor;
+			this.value = value;
+		}
+
+		boolean matches(int type, UUID characteristic, UUID descriptor) {
+			return this.type == type && this.characteristic.equals(characteristic)
+					&& (this.descriptor == null ? descriptor == null : this.descriptor.equals(descriptor));
+		}
+
+		String key() {
+			return type + "/" + characteristic + "/" + descriptor;
+		}
+	}
+
+	private final GattTransport.Link mLink;
+	private final Handler mHandler;
+	private final long mTimeout;
+	private final int mMaxRetries;
+
+	private final LinkedList<Operation> mPending = new LinkedList<Operation>();
+	private final Map<String, byte[]> mAcknowledged = new HashMap<String, byte[]>();	//last value the peer confirmed, per target
+	private Operation mInFlight = null;
+	private boolean mClosed = false;
+
+	private final Runnable mTimeoutRunnable = new Runnable() {
+		@Override
+		public void run() {
+			onTimeout();
+		}
+	};
+
+	private final Runnable mDispatchRunnable = new Runnable() {
+		@Override
+		public void run() {
+			synchronized (GattOperationQueue.this) {
+				dispatchNext();
+			}
+		}
+	};
+
+	GattOperationQueue(GattTransport.Link link, Handler handler) {
+		this(link, handler, DEFAULT_TIMEOUT, DEFAULT_MAX_RETRIES);
+	}
+
+	GattOperationQueue(GattTransport.Link link, Handler handler, long timeout, int maxRetries) {
+		mLink = link;
+		mHandler = handler;
+		mTimeout = timeout;
+		mMaxRetries = maxRetries;
+	}
+
+	public void write(UUID service, UUID characteristic, byte[] value) {
+		enqueue(new Operation(OP_WRITE_CHARACTERISTIC, service, characteristic, null, value));
+	}
+
+	public void writeDescriptor(UUID service, UUID characteristic, UUID descriptor, byte[] value) {
+		enqueue(new Operation(OP_WRITE_DESCRIPTOR, service, characteristic, descriptor, value));
+	}
+
+	public void read(UUID service, UUID characteristic) {
+		enqueue(new Operation(OP_READ_CHARACTERISTIC, service, characteristic, null, null));
+	}
+
+	public synchronized int size() {
+		return mPending.size() + (mInFlight != null ? 1 : 0);
+	}
+
+	private synchronized void enqueue(Operation operation) {
+		if (mClosed) {
+			return;
+		}
+		if (operation.type != OP_READ_CHARACTERISTIC) {
+			// A queued write to the same target is superseded rather than repeated,
+			// so a burst of config changes costs one round trip
+			for (Operation op : mPending) {
+				if (op.matches(operation.type, operation.characteristic, operation.descriptor)) {
+					op.value = operation.value;
+					return;
+				}
+			}
+		}
+		mPending.add(operation);
+		dispatchNext();
+	}
+
+	public synchronized void onComplete(int type, UUID characteristic, UUID descriptor, int status) {
+		if (mInFlight == null || !mInFlight.matches(type, characteristic, descriptor)) {
+			// Late callback for an operation that already timed out
+			return;
+		}
+		mHandler.removeCallbacks(mTimeoutRunnable);
+		Operation op = mInFlight;
+		mInFlight = null;
+		if (status == BluetoothGatt.GATT_SUCCESS) {
+			if (op.type != OP_READ_CHARACTERISTIC) {
+				mAcknowledged.put(op.key(), op.value);
+			}
+		} else {
+			Metrics.GATT_OPS_FAILED.inc();
+			retryOrDrop(op, "status " + status);
+		}
+		dispatchNext();
+	}
+
+	private synchronized void onTimeout() {
+		if (mInFlight != null) {
+			Operation op = mInFlight;
+			mInFlight = null;
+			retryOrDrop(op, "timeout");
+			dispatchNext();
+		}
+	}
+
+	private void retryOrDrop(Operation op, String reason) {
+		if (op.attempts < mMaxRetries) {
+			op.attempts++;
+			mPending.addFirst(op);
+		} else {
+			Log.w(TAG, "Dropping GATT operation " + op.type + " after " + reason);
+		}
+	}
+
+	private void dispatchNext() {
+		while (mInFlight == null && !mClosed && !mPending.isEmpty()) {
+			Operation op = mPending.peek();
+			if (op.type != OP_READ_CHARACTERISTIC && Arrays.equals(op.value, mAcknowledged.get(op.key()))) {
+				mPending.poll();
+				continue;
+			}
+			if (execute(op)) {
+				mPending.poll();
+				mInFlight = op;
+				mHandler.postDelayed(mTimeoutRunnable, mTimeout);
+			} else if (op.attempts < mMaxRetries) {
+				// The stack is still busy with something we did not issue
+				op.attempts++;
+				mHandler.removeCallbacks(mDispatchRunnable);
+				mHandler.postDelayed(mDispatchRunnable, BUSY_RETRY_DELAY);
+				return;
+			} else {
+				Log.w(TAG, "Dropping GATT operation " + op.type + ", stack refused it");
+				mPending.poll();
+			}
+		}
+	}
+
+	private boolean execute(Operation op) {
+		switch (op.type) {
+			case OP_WRITE_CHARACTERISTIC:
+				return mLink.write(op.service, op.characteristic, op.value);
+			case OP_WRITE_DESCRIPTOR:
+				return mLink.writeDescriptor(op.service, op.characteristic, op.descriptor, op.value);
+			case OP_READ_CHARACTERISTIC:
+				return mLink.read(op.service, op.characteristic);
+			default:
+				return false;
+		}
+	}
+
+	public synchronized void close() {
+		mClosed = true;
+		mPending.clear();
+		mInFlight = null;
+		mHandler.removeCallbacks(mTimeoutRunnable);
+		mHandler.removeCallbacks(mDispatchRunnable);
+	}
+
+	public synchronized void reset() {
+		// The link went down: nothing is in flight and the peer forgot its configuration
+		mPending.clear();
+		mInFlight = null;
+		mAcknowledged.clear();
+		mHandler.removeCallbacks(mTimeoutRunnable);
+		mHandler.removeCallbacks(mDispatchRunnable);
+	}
+}
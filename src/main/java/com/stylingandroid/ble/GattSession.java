@@ -0,0 +1,351 @@
+package com.stylingandroid.ble;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothProfile;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.Random;
+import java.util.UUID;
+
+/*
+ * One GATT connection to one SensorTag. Every session owns its own operation
+ * queue and runs its own connection state machine, so several tags can stream
+ * side by side and each recovers from dropouts on its own:
+ *
+ * CONNECTING -> DISCOVERING -> SUBSCRIBING -> STREAMING
+ *      ^                                         |
+ *      +------------ BACKOFF <-------------------+  (link lost)
+ *
+ * A lost link is always closed before the next attempt, so dropped
+ * tags do not pile up client registrations in the stack. Direct connects are retried
+ * with jittered exponential back-off; after MAX_DIRECT_ATTEMPTS the session leaves
+ * a single autoConnect request with the stack to wait for the tag.
+ */
+class GattSession {
+	private static final String TAG = "GattSession";
+
+	static final long DIRECT_CONNECT_TIMEOUT = 5000;
+	private static final long DISCONNECT_TIMEOUT = 2000;
+	private static final long BACKOFF_BASE = 500;
+	private static final long BACKOFF_MAX = 30 * 1000;
+	private static final int MAX_DIRECT_ATTEMPTS = 6;
+
+	public enum State {
+		CONNECTING,
+		DISCOVERING,
+		SUBSCRIBING,
+		STREAMING,
+		BACKOFF,
+		DISCONNECTING,
+		DISCONNECTED
+	}
+
+	interface Listener {
+		void onStateChanged(GattSession session, State state);
+
+		// Services are known; queue the writes that turn the sensors on
+		void onSubscribe(GattSession session, GattTransport.Link link);
+	}
+
+	private final String mAddress;
+	private final int mId;
+	private final GattTransport mTransport;
+	private final GattTransport.Callback mCallback;
+	private final Handler mHandler;
+	private final KnownDevices mKnownDevices;
+	private final Listener mListener;
+	private final Random mRandom = new Random();
+	private final SampleRing mRing = new SampleRing();	//raw notifications, filled on the callback thread
+
+	private volatile GattTransport.Link mLink = null;
+	private GattOperationQueue mQueue = null;
+	private boolean mAutoConnect = false;
+	private volatile State mState = State.DISCONNECTED;
+	private int mAttempts = 0;
+
+	// Reconnect metrics, in elapsedRealtime milliseconds
+	private long mLinkDownAt = 0;
+	private boolean mReconnecting = false;
+	private long mFirstSampleTime = -1;
+	private int mReconnects = 0;
+	private long mLastReconnectTime = -1;
+	private long mMaxReconnectTime = 0;
+	private long mTotalReconnectTime = 0;
+
+	private final Runnable mReconnectRunnable = new Runnable() {
+		@Override
+		public void run() {
+			synchronized (GattSession.this) {
+				if (mState == State.BACKOFF) {
+					openLink(mAttempts > MAX_DIRECT_ATTEMPTS);
+				}
+			}
+		}
+	};
+
+	private final Runnable mConnectTimeoutRunnable = new Runnable() {
+		@Override
+		public void run() {
+			synchronized (GattSession.this) {
+				if (mState == State.CONNECTING && !mAutoConnect) {
+					Log.d(TAG, "Direct connect to " + mAddress + " timed out");
+					onLinkLost();
+				}
+			}
+		}
+	};
+
+	private final Runnable mCloseRunnable = new Runnable() {
+		@Override
+		public void run() {
+			close();
+		}
+	};
+
+	GattSession(String address, int id, GattTransport transport, GattTransport.Callback callback, Handler handler,
+				KnownDevices knownDevices, Listener listener) {
+		mAddress = address;
+		mId = id;
+		mTransport = transport;
+		mCallback = callback;
+		mHandler = handler;
+		mKnownDevices = knownDevices;
+		mListener = listener;
+	}
+
+	public String getAddress() {
+		return mAddress;
+	}
+
+	public int getId() {
+		return mId;
+	}
+
+	public State getState() {
+		return mState;
+	}
+
+	public SampleRing getRing() {
+		return mRing;
+	}
+
+	public GattTransport.Link getLink() {
+		return mLink;
+	}
+
+	public boolean isLinkUp() {
+		return mState == State.DISCOVERING || mState == State.SUBSCRIBING || mState == State.STREAMING;
+	}
+
+	private void setState(State state) {
+		if (mState != state) {
+			Log.v(TAG, mAddress + ": " + mState + " -> " + state);
+			mState = state;
+			mListener.onStateChanged(this, state);
+		}
+	}
+
+	public synchronized void connect() {
+		mAttempts = 0;
+		mLinkDownAt = SystemClock.elapsedRealtime();
+		mReconnecting = false;
+		openLink(false);
+	}
+
+	// A direct connect (autoConnect false) is fast but gives up; autoConnect waits for the tag indefinitely
+	private void openLink(boolean autoConnect) {
+		closeLink();
+		mAutoConnect = autoConnect;
+		setState(State.CONNECTING);
+		GattTransport.Link link = mTransport.connect(mAddress, autoConnect, mCallback);
+		if (link == null) {
+			onLinkLost();
+			return;
+		}
+		mLink = link;
+		mQueue = new GattOperationQueue(link, mHandler);
+		if (!autoConnect) {
+			mHandler.postDelayed(mConnectTimeoutRunnable, DIRECT_CONNECT_TIMEOUT);
+		}
+	}
+
+	private void closeLink() {
+		mHandler.removeCallbacks(mConnectTimeoutRunnable);
+		if (mQueue != null) {
+			mQueue.close();
+			mQueue = null;
+		}
+		if (mLink != null) {
+			mLink.close();
+			mLink = null;
+		}
+	}
+
+	public synchronized void onConnectionStateChange(GattTransport.Link link, int status, int newState) {
+		if (link != mLink) {
+			// Callback for a handle that has already been closed
+			return;
+		}
+		if (newState == BluetoothProfile.STATE_CONNECTED) {
+			mHandler.removeCallbacks(mConnectTimeoutRunnable);
+			String known = mKnownDevices.getLayout(mAddress);
+			if (known != null && known.equals(link.getLayout())) {
+				// An autoConnect link coming back keeps the services it discovered last time
+				setState(State.SUBSCRIBING);
+				mListener.onSubscribe(this, link);
+			} else {
+				setState(State.DISCOVERING);
+				if (!link.discoverServices()) {
+					onLinkLost();
+				}
+			}
+		} else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
+			if (mState == State.DISCONNECTING) {
+				close();
+			} else {
+				Log.d(TAG, mAddress + " link lost while " + mState + ", status " + status);
+				onLinkLost();
+			}
+		}
+	}
+
+	public synchronized void onServicesDiscovered(GattTransport.Link link, int status) {
+		if (link != mLink || mState != State.DISCOVERING) {
+			return;
+		}
+		if (status != BluetoothGatt.GATT_SUCCESS) {
+			onLinkLost();
+			return;
+		}
+		String layout = link.getLayout();
+		if (layout != null) {
+			mKnownDevices.remember(mAddress, layout);
+		}
+		setState(State.SUBSCRIBING);
+		mListener.onSubscribe(this, link);
+	}
+
+	// Called for every notification, so the common case is a single volatile read
+	public void onNotification() {
+		if (mState != State.STREAMING) {
+			onStreaming();
+		}
+	}
+
+	private synchronized void onStreaming() {
+		if (mState != State.SUBSCRIBING) {
+			return;
+		}
+		long elapsed = SystemClock.elapsedRealtime() - mLinkDownAt;
+		if (mReconnecting) {
+			mReconnects++;
+			mLastReconnectTime = elapsed;
+			mTotalReconnectTime += elapsed;
+			mMaxReconnectTime = Math.max(mMaxReconnectTime, elapsed);
+			Log.d(TAG, mAddress + " streaming again after " + elapsed + "ms");
+		} else if (mFirstSampleTime < 0) {
+			mFirstSampleTime = elapsed;
+			Log.d(TAG, mAddress + " first sample after " + elapsed + "ms");
+		}
+		mReconnecting = false;
+		mAttempts = 0;
+		setState(State.STREAMING);
+	}
+
+	private void onLinkLost() {
+		if (!mReconnecting && mFirstSampleTime >= 0) {
+			// The clock for the reconnect metrics starts at the first drop, not at each retry
+			mReconnecting = true;
+			mLinkDownAt = SystemClock.elapsedRealtime();
+		}
+		if (mAutoConnect && mLink != null) {
+			// The pending autoConnect request brings the link back by itself
+			mQueue.reset();
+			setState(State.CONNECTING);
+			return;
+		}
+		closeLink();
+		mAttempts++;
+		setState(State.BACKOFF);
+		mHandler.postDelayed(mReconnectRunnable, getBackoff(mAttempts));
+	}
+
+	private long getBackoff(int attempt) {
+		long delay = Math.min(BACKOFF_MAX, BACKOFF_BASE << Math.min(attempt - 1, 16));
+		// +/-50% jitter so tags dropped by the same interference do not retry in lockstep
+		return delay / 2 + (long) (mRandom.nextDouble() * delay);
+	}
+
+	public synchronized void disconnect() {
+		mHandler.removeCallbacks(mReconnectRunnable);
+		if (isLinkUp() && mLink != null) {
+			setState(State.DISCONNECTING);
+			mLink.disconnect();
+			mHandler.postDelayed(mCloseRunnable, DISCONNECT_TIMEOUT);
+		} else {
+			close();
+		}
+	}
+
+	public synchronized void close() {
+		mHandler.removeCallbacks(mReconnectRunnable);
+		mHandler.removeCallbacks(mCloseRunnable);
+		closeLink();
+		setState(State.DISCONNECTED);
+	}
+
+	public synchronized int getReconnects() {
+		return mReconnects;
+	}
+
+	public synchronized long getLastReconnectTime() {
+		return mLastReconnectTime;
+	}
+
+	public synchronized long getMaxReconnectTime() {
+		return mMaxReconnectTime;
+	}
+
+	public synchronized long getMeanReconnectTime() {
+		return mReconnects > 0 ? mTotalReconnectTime / mReconnects : -1;
+	}
+
+	public synchronized long getFirstSampleTime() {
+		return mFirstSampleTime;
+	}
+
+	public int getQueueSize() {
+		GattOperationQueue queue = mQueue;
+		return queue != null ? queue.size() : 0;
+	}
+
+	public void write(UUID service, UUID characteristic, byte[] value) {
+		GattOperationQueue queue = mQueue;
+		if (queue != null) {
+			queue.write(service, characteristic, value);
+		}
+	}
+
+	public void writeDescriptor(UUID service, UUID characteristic, UUID descriptor, byte[] value) {
+		GattOperationQueue queue = mQueue;
+		if (queue != null) {
+			queue.writeDescriptor(service, characteristic, descriptor, value);
+		}
+	}
+
+	public void read(UUID service, UUID characteristic) {
+		GattOperationQueue queue = mQueue;
+		if (queue != null) {
+			queue.read(service, characteristic);
+		}
+	}
+
+	public void onOperationComplete(int type, UUID characteristic, UUID descriptor, int status) {
+		GattOperationQueue queue = mQueue;
+		if (queue != null) {
+			queue.onComplete(type, characteristic, descriptor, status);
+		}
+	}
+}
@@ -0,0 +1,60 @@
+package com.stylingandroid.ble;
+
+import java.util.UUID;
+
+/*
+ * The GATT operations BleService needs, addressed by UUID rather than by stack
+ * objects. AndroidGattTransport maps them onto BluetoothGatt; SimulatedGattTransport
+ * plays recorded or synthetic SensorTags so the whole pipeline can be driven off-device.
+ * Callbacks arrive on transport threads, just as BluetoothGattCallback does.
+ */
+interface GattTransport {
+	int OP_WRITE_CHARACTERISTIC = 1;
+	int OP_WRITE_DESCRIPTOR = 2;
+	int OP_READ_CHARACTERISTIC = 3;
+
+	interface Callback {
+		// newState is one of the BluetoothProfile STATE_ constants
+		void onConnectionStateChange(Link link, int status, int newState);
+
+		void onServicesDiscovered(Link link, int status);
+
+		// type is one of the OP_ constants, status a BluetoothGatt GATT_ status; descriptor is null unless type is OP_WRITE_DESCRIPTOR
+		void onOperationComplete(Link link, int type, UUID characteristic, UUID descriptor, int status);
+
+		void onNotification(Link link, UUID characteristic, byte[] value);
+	}
+
+	interface Link {
+		String getAddress();
+
+		boolean discoverServices();
+
+		// Signature of the discovered services, null until discovery has completed
+		String getLayout();
+
+		boolean hasCharacteristic(UUID service, UUID characteristic);
+
+		boolean hasDescriptor(UUID service, UUID characteristic, UUID descriptor);
+
+		// Local only, the CCC descriptor write is a separate operation
+		boolean setNotification(UUID service, UUID characteristic, boolean enable);
+
+		boolean write(UUID service, UUID characteristic, byte[] value);
+
+		boolean writeDescriptor(UUID service, UUID characteristic, UUID descriptor, byte[] value);
+
+		boolean read(UUID service, UUID characteristic);
+
+		void disconnect();
+
+		void close();
+	}
+
+	boolean isEnabled();
+
+	boolean isValidAddress(String address);
+
+	// A direct connect (autoConnect false) is fast but gives up; autoConnect waits for the device indefinitely
+	Link connect(String address, boolean autoConnect, Callback callback);
+}
@@ -0,0 +1,57 @@
+package com.stylingandroid.ble;
+
+/*
+ * Geohash cells as plain longs, five bits per character, so cells can be keyed and
+ * compared in primitive arrays. Only cells of the same precision compare equal.
+ */
+final class Geohash {
+	static final int MAX_PRECISION = 12;
+
+	private static final char[] BASE32 = "0123456789bcdefghjkmnpqrstuvwxyz".toCharArray();
+
+	private Geohash() {
+	}
+
+	static long encode(double latitude, double longitude, int precision) {
+		double latMin = -90;
+		double latMax = 90;
+		double lonMin = -180;
+		double lonMax = 180;
+		long bits = 0;
+		int count = Math.min(precision, MAX_PRECISION) * 5;
+		for (int i = 0; i < count; i++) {
+			bits <<= 1;
+			// Bits alternate, longitude first
+			if ((i & 1) == 0) {
+				double mid = (lonMin + lonMax) / 2;
+				if (longitude >= mid) {
+					bits |= 1;
+					lonMin = mid;
+				} else {
+					lonMax = mid;
+				}
+			} else {
+				double mid = (latMin + latMax) / 2;
+				if (latitude >= mid) {
+					bits |= 1;
+					latMin = mid;
+				} else {
+					latMax = mid;
+				}
+			}
+		}
+		return bits;
+	}
+
+	static char charAt(long cell, int precision, int index) {
+		return BASE32[(int) ((cell >>> (5 * (precision - 1 - index))) & 31)];
+	}
+
+	static String toString(long cell, int precision) {
+		char[] chars = new char[precision];
+		for (int i = 0; i < precision; i++) {
+			chars[i] = charAt(cell, precision, i);
+		}
+		return new String(chars);
+	}
+}
@@ -0,0 +1,191 @@
+package com.stylingandroid.ble;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.util.ByteArrayBuffer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/*
+ * Process-wide HTTP client for weather uploads. One pooled, keep-alive connection
+ * manager is shared by every caller so TCP and TLS handshakes are paid once per
+ * connection rather than once per request. Request bodies are gzipped and responses
+ * are drained into a per-thread buffer that is reused between requests. Callers post
+ * from their own threads; concurrency bounds the connections they share.
+ *
+ * org.apache.http is deprecated on Android from API 22 and only kept through
+ * useLibrary 'org.apache.http.legacy'. This class is the one place that uses it, so
+ * the deprecation warnings are suppressed here rather than repeated on every line;
+ * the few deprecated types are named in full, as source 7 still warns on imports.
+ */
+@SuppressWarnings("deprecation")
+class HttpUploader {
+	private static final String TAG = "HttpUploader";
+
+	static final int DEFAULT_CONCURRENCY = 2;
+	static final int DEFAULT_CONNECT_TIMEOUT = 15 * 1000;
+	static final int DEFAULT_SOCKET_TIMEOUT = 30 * 1000;
+	private static final long IDLE_TIMEOUT = 60 * 1000;
+	private static final int CHUNK_SIZE = 4096;
+
+	private static HttpUploader sInstance = null;
+
+	private static class Buffers {
+		final ByteArrayBuffer response = new ByteArrayBuffer(CHUNK_SIZE);
+		final byte[] chunk = new byte[CHUNK_SIZE];
+		final ExposedByteArrayOutputStream request = new ExposedByteArrayOutputStream();
+	}
+
+	private static class ExposedByteArrayOutputStream extends ByteArrayOutputStream {
+		byte[] buffer() {
+			return buf;
+		}
+	}
+
+	private static class BufferEntity extends AbstractHttpEntity {
+		private final byte[] mBuffer;
+		private final int mLength;
+
+		BufferEntity(byte[] buffer, int length) {
+			mBuffer = buffer;
+			mLength = length;
+		}
+
+		@Override
+		public boolean isRepeatable() {
+			return true;
+		}
+
+		@Override
+		public long getContentLength() {
+			return mLength;
+		}
+
+		@Override
+		public InputStream getContent() {
+			return new ByteArrayInputStream(mBuffer, 0, mLength);
+		}
+
+		@Override
+		public void writeTo(OutputStream out) throws IOException {
+			out.write(mBuffer, 0, mLength);
+		}
+
+		@Override
+		public boolean isStreaming() {
+			return false;
+		}
+	}
+
+	private final ThreadLocal<Buffers> mBuffers = new ThreadLocal<Buffers>() {
+		@Override
+		protected Buffers initialValue() {
+			return new Buffers();
+		}
+	};
+
+	private final DefaultHttpClient mHttpClient;
+	private final boolean mGzip;
+
+	public static synchronized HttpUploader getInstance() {
+		if (sInstance == null) {
+			sInstance = new HttpUploader(DEFAULT_CONCURRENCY, DEFAULT_CONNECT_TIMEOUT, DEFAULT_SOCKET_TIMEOUT, true);
+		}
+		return sInstance;
+	}
+
+	HttpUploader(int concurrency, int connectTimeout, int socketTimeout, boolean gzip) {
+		mGzip = gzip;
+		BasicHttpParams params = new BasicHttpParams();
+		org.apache.http.params.HttpConnectionParams.setConnectionTimeout(params, connectTimeout);
+		org.apache.http.params.HttpConnectionParams.setSoTimeout(params, socketTimeout);
+		org.apache.http.params.HttpConnectionParams.setStaleCheckingEnabled(params, true);
+		ConnManagerParams.setMaxTotalConnections(params, concurrency);
+		ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(concurrency));
+		ConnManagerParams.setTimeout(params, connectTimeout);
+
+		SchemeRegistry registry = new SchemeRegistry();
+		registry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+		registry.register(new Scheme("https", org.apache.http.conn.ssl.SSLSocketFactory.getSocketFactory(), 443));
+		ClientConnectionManager manager = new ThreadSafeClientConnManager(params, registry);
+
+		mHttpClient = new DefaultHttpClient(manager, params);
+	}
+
+	// Blocking POST of a JSON body, returns the HTTP status. The body is left in getResponse().
+	public int post(String url, byte[] json, int length) throws IOException {
+		Buffers buffers = mBuffers.get();
+		AbstractHttpEntity entity;
+		if (mGzip) {
+			buffers.request.reset();
+			GZIPOutputStream gzip = new GZIPOutputStream(buffers.request);
+			gzip.write(json, 0, length);
+			gzip.close();
+			entity = new BufferEntity(buffers.request.buffer(), buffers.request.size());
+			entity.setContentEncoding("gzip");
+		} else {
+			entity = new BufferEntity(json, length);
+		}
+		entity.setContentType("application/json");
+
+		HttpPost httpPost = new HttpPost(url);
+		httpPost.setEntity(entity);
+		httpPost.setHeader("Accept", "application/json");
+		HttpResponse httpResponse = mHttpClient.execute(httpPost);
+
+		// The response must be read to the end for the connection to go back to the pool
+		buffers.response.clear();
+		HttpEntity responseEntity = httpResponse.getEntity();
+		if (responseEntity != null) {
+			InputStream in = responseEntity.getContent();
+			try {
+				int read;
+				while ((read = in.read(buffers.chunk)) != -1) {
+					buffers.response.append(buffers.chunk, 0, read);
+				}
+			} finally {
+				in.close();
+			}
+		}
+		return httpResponse.getStatusLine().getStatusCode();
+	}
+
+	// Response body of this thread's last post, reused by its next one
+	public ByteArrayBuffer getResponse() {
+		return mBuffers.get().response;
+	}
+
+	public void closeIdleConnections() {
+		mHttpClient.getConnectionManager().closeExpiredConnections();
+		mHttpClient.getConnectionManager().closeIdleConnections(IDLE_TIMEOUT, TimeUnit.MILLISECONDS);
+	}
+
+	static String toString(ByteArrayBuffer buffer) {
+		if (buffer == null) {
+			return "";
+		}
+		try {
+			return new String(buffer.buffer(), 0, buffer.length(), "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new AssertionError(e);
+		}
+	}
+}
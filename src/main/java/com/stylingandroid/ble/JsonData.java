@@ -1,23 +1,14 @@
 package com.stylingandroid.ble;
 
+import android.content.Context;
 import android.location.Location;
-import android.os.AsyncTask;
-import android.util.Log;
 
-import org.apache.http.HttpResponse;
-import org.apache.http.client.HttpClient;
-import org.apache.http.client.methods.HttpPost;
-import org.apache.http.entity.StringEntity;
-import org.apache.http.impl.client.DefaultHttpClient;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-
 public class JsonData {
+    static final String SERVER_URL = "https://weathermap-api.herokuapp.com/v2/weather";
+
     public double m_temp;
     public double m_humi;
     public double m_light;
@@ -30,64 +21,31 @@ public class JsonData {
         m_humi = humi;
         m_light = light;
         m_location = location;
-
-        data = new JSONObject();
-        try{
-            data.put("temperature", m_temp);
-            data.put("humidity", m_humi);
-            data.put("light", m_light);
-            data.put("latitude", m_location.getLatitude());
-            data.put("longitude", m_location.getLongitude());
-        } catch (JSONException e) {
-            e.printStackTrace();
-        }
     }
 
+    // Only built on request; uploads go through ReadingJsonWriter
     public  JSONObject getData(){
-        return this.data;
-    }
-
-    public String post(String url){
-        String result = "";
-        InputStream inputStream = null;
-        try {
-            HttpClient httpClient = new DefaultHttpClient();
-            HttpPost httpPost = new HttpPost(url);
-            String json = this.data.toString();
-            StringEntity se = new StringEntity(json);
-            httpPost.setEntity(se);
-            httpPost.setHeader("Accept", "application/json");
-            httpPost.setHeader("Content-type", "application/json");
-            HttpResponse httpResponse = httpClient.execute(httpPost);
-            inputStream = httpResponse.getEntity().getContent();
-            if(inputStream != null)
-                result = convertInputStreamToString(inputStream);
-            else
-                result = "Did not work!";
-        }catch (Exception e){
-            Log.d("InputStream", e.getLocalizedMessage());
+        if (data == null) {
+            data = new JSONObject();
+            try{
+                data.put("temperature", m_temp);
+                data.put("humidity", m_humi);
+                data.put("light", m_light);
+                data.put("latitude", m_location.getLatitude());
+                data.put("longitude", m_location.getLongitude());
+            } catch (JSONException e) {
+                e.printStackTrace();
+            }
         }
-        return result;
-    }
-
-    public void pushToSever(){
-        new HttpAsyncTask().execute("https://weathermap-api.herokuapp.com/v2/weather");
+        return this.data;
     }
 
-    private class HttpAsyncTask extends AsyncTask<String, Void, String> {
-        @Override
-        protected String doInBackground(String... urls) {
-            return post(urls[0]);
-        }
+    public void write(ReadingJsonWriter writer){
+        writer.writeReading(0, m_temp, m_humi, m_light, m_location.getLatitude(), m_location.getLongitude());
     }
 
-    private static String convertInputStreamToString(InputStream inputStream) throws IOException {
-        BufferedReader bufferedReader = new BufferedReader( new InputStreamReader(inputStream));
-        String line = "";
-        String result = "";
-        while((line = bufferedReader.readLine()) != null)
-            result += line;
-        inputStream.close();
-        return result;
+    public void pushToSever(Context context){
+        ReadingUploader.getInstance(context).add(m_location.getTime(), m_temp, m_humi, m_light,
+                m_location.getLatitude(), m_location.getLongitude());
     }
-}
+}
\ No newline at end of file
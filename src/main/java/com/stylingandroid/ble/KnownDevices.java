@@ -0,0 +1,51 @@
+package com.stylingandroid.ble;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/*
+ * SensorTags we have streamed from before, with a signature of the GATT layout they
+ * exposed, so the service can connect to them on start without scanning first.
+ */
+class KnownDevices {
+	private static final String PREFS = "known_devices";
+	private static final String KEY_ADDRESSES = "addresses";
+	private static final String KEY_LAYOUT = "layout_";
+
+	private final SharedPreferences mPrefs;
+
+	KnownDevices(Context context) {
+		mPrefs = context.getSharedPreferences(PREFS, Context.MODE_PRIVATE);
+	}
+
+	public Set<String> getAddresses() {
+		return new HashSet<String>(mPrefs.getStringSet(KEY_ADDRESSES, new HashSet<String>()));
+	}
+
+	public String getLayout(String address) {
+		return mPrefs.getString(KEY_LAYOUT + address, null);
+	}
+
+	public void remember(String address, String layout) {
+		Set<String> addresses = getAddresses();
+		if (addresses.add(address) || !layout.equals(getLayout(address))) {
+			mPrefs.edit()
+					.putStringSet(KEY_ADDRESSES, addresses)
+					.putString(KEY_LAYOUT + address, layout)
+					.apply();
+		}
+	}
+
+	public void forget(String address) {
+		Set<String> addresses = getAddresses();
+		if (addresses.remove(address)) {
+			mPrefs.edit()
+					.putStringSet(KEY_ADDRESSES, addresses)
+					.remove(KEY_LAYOUT + address)
+					.apply();
+		}
+	}
+}
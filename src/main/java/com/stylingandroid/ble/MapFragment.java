@@ -1,34 +1,21 @@
 package com.stylingandroid.ble;
 
-import android.Manifest;
-import android.app.Activity;
 import android.app.Fragment;
-import android.content.Context;
-import android.content.pm.PackageManager;
 import android.graphics.drawable.Drawable;
 import android.location.Location;
-import android.location.LocationListener;
-import android.location.LocationManager;
-import android.net.ConnectivityManager;
-import android.net.NetworkInfo;
-import android.os.Build;
 import android.os.Bundle;
-import android.util.Log;
+import android.os.SystemClock;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.TextView;
-import android.widget.Toast;
 
 import org.osmdroid.api.IMapController;
 import org.osmdroid.tileprovider.tilesource.TileSourceFactory;
+import org.osmdroid.util.BoundingBox;
 import org.osmdroid.util.GeoPoint;
 import org.osmdroid.views.MapView;
 import org.osmdroid.views.overlay.Marker;
-import org.osmdroid.views.overlay.Overlay;
-
-import java.util.ArrayList;
-import java.util.List;
 
 public class MapFragment extends Fragment {
 	public static MapFragment newInstance() {
@@ -42,13 +29,34 @@ public class MapFragment extends Fragment {
 	private TextView tempSensor = null;
 	private TextView humSensor = null;
 
-	private JsonData data;
-	private double traveledDistance;
-	private boolean firstPost = true;
-
 	public double temp;
 	public double humi;
 	public double lightLevel;
+	private double shownTemp = Double.NaN;	//what the labels currently show
+	private double shownHumi = Double.NaN;
+	private double shownLight = Double.NaN;
+
+	private static final long MARKER_FRAME_INTERVAL = 100;	//at most 10 overlay updates per second
+	private static final double RECENTER_MARGIN = 0.2;		//re-center once the marker is within 20% of an edge
+
+	private Marker marker = null;
+	private final GeoPoint markerPosition = new GeoPoint(0d, 0d);
+	private double pendingLat;
+	private double pendingLon;
+	private boolean markerPending = false;
+	private boolean firstFix = true;
+	private long lastMarkerUpdate = 0;
+	private String markerTitle = null;
+	private double titleTemp = Double.NaN;
+	private double titleHumi = Double.NaN;
+	private double titleLight = Double.NaN;
+
+	private final Runnable markerUpdate = new Runnable() {
+		@Override
+		public void run() {
+			updateMarker();
+		}
+	};
 
 	@Override
 	public View onCreateView(LayoutInflater inflater, ViewGroup container, Bundle savedInstanceState) {
@@ -57,140 +65,156 @@ public class MapFragment extends Fragment {
 			tv = (TextView) v.findViewById(R.id.textView);
 			tv.setText("Not connected");
 
+			shownTemp = Double.NaN;
+			shownHumi = Double.NaN;
+			shownLight = Double.NaN;
 			lightSensor = v.findViewById(R.id.lightLevel);
 			tempSensor = v.findViewById(R.id.temperature);
 			humSensor = v.findViewById(R.id.humidity);
 
-			/* Use the LocationManager class to obtain GPS locations */
-			LocationManager locManager = (LocationManager) getActivity().getSystemService(Context.LOCATION_SERVICE);
-			LocationListener locListener = new MapFragment.MyLocationListener();
-			if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
-				if (getActivity().checkSelfPermission(Manifest.permission.ACCESS_FINE_LOCATION) !=
-						PackageManager.PERMISSION_GRANTED && getActivity().checkSelfPermission(
-						Manifest.permission.ACCESS_COARSE_LOCATION) != PackageManager.PERMISSION_GRANTED) {
-					return null;
-				}
-			}
-			if (locManager != null) {
-				locManager.requestLocationUpdates(LocationManager.GPS_PROVIDER, 0, 1, locListener);
-				locManager.requestLocationUpdates(LocationManager.NETWORK_PROVIDER, 0, 1, locListener);
-			}
-
+			/* Locations are collected by BleService and forwarded through setLocation */
 			map = (MapView) v.findViewById(R.id.googleMap);
 			map.setTileSource(TileSourceFactory.MAPNIK);
 			mapController = map.getController();
 			mapController.setZoom(31);
 			map.setMultiTouchControls(true);
 			map.setBuiltInZoomControls(true);
+
+			Drawable icon;
+			if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.LOLLIPOP) {
+				icon = getResources().getDrawable(R.drawable.ic_location_on_black_24dp, null);
+			} else {
+				icon = getResources().getDrawable(R.drawable.ic_location_on_black_24dp);
+			}
+			marker = new Marker(map);
+			marker.setIcon(icon);
+			markerPending = false;
+			firstFix = true;
+			markerTitle = null;
 		}
 		return v;
 	}
 
+	// The labels show one decimal, so a value that rounds the same is not set again
 	public void setData(float temperature, float humidity) {
-		if(tempSensor != null){
+		double roundedTemp = Math.round(temperature*10) / 10.0;
+		double roundedHumi = Math.round(humidity*10) / 10.0;
+		if(tempSensor != null && !(shownTemp == roundedTemp)){
 			tempSensor.setText(getString(R.string.temp_label) + getString(R.string.temp_format, temperature));
+			shownTemp = roundedTemp;
 		}
-		if(humSensor != null){
+		if(humSensor != null && !(shownHumi == roundedHumi)){
 			humSensor.setText(getString(R.string.humidity_label) + getString(R.string.humidity_format, humidity));
+			shownHumi = roundedHumi;
 		}
-		temp = Math.round(temperature*10) / 10.0;
-		humi = Math.round(humidity*10) / 10.0;
+		temp = roundedTemp;
+		humi = roundedHumi;
 	}
 
 	public void setLuxometerData(float luxometer){
-		if (lightSensor != null){
+		double roundedLight = Math.round(luxometer*10) / 10.0;
+		if (lightSensor != null && !(shownLight == roundedLight)){
 		    lightSensor.setText(getString(R.string.light_level) + getString(R.string.light_level_format, luxometer));
+		    shownLight = roundedLight;
         }
-	    lightLevel = Math.round(luxometer*10) / 10.0;
+	    lightLevel = roundedLight;
 	}
 
-	/* Class My Location Listener */
-
-	public class MyLocationListener implements LocationListener
-	{
-		@Override
-		public void onLocationChanged(Location loc){
-			Log.d("tag", "Finding Latitude");
-			double lat = loc.getLatitude();
-			Log.d("tag", "Lat: "+String.valueOf(lat));
-			Log.d("tag", "Finding Longitude");
-			double lon = loc.getLongitude();
-			Log.d("tag", "Lon: "+String.valueOf(lon));
-
-			data = new JsonData(temp, humi, lightLevel, loc);
-
-			traveledDistance++;
-
-			String connect = "";
-			if(isConnected()){
-				connect = "You are connected";
-
-				//Check for first post on server
-				if(firstPost){
-					data.pushToSever();
-					firstPost = false;
-				}
-				//Then send data for every 1km
-				if(traveledDistance == 1000){
-					data.pushToSever();
-					traveledDistance = 0;
-				}
-			}
-			else{
-				connect = "You are NOT conncted";
-			}
+	/* Throttled location stream from BleService */
 
-			// Display location
-			String Text = "Your current location is: " + "\nLatitude: " + lat + "\nLongitude: " + lon + "\n" + connect;
-			tv.setText(Text);
-
-			GeoPoint curLoc = new GeoPoint(loc.getLatitude(), loc.getLongitude());
-			mapSetMarker(curLoc);
+	public void setLocation(Location loc){
+		if (tv == null || map == null) {
+			return;
 		}
+		double lat = loc.getLatitude();
+		double lon = loc.getLongitude();
 
-		@Override
-		public void onProviderDisabled(String provider){
-			Toast.makeText(getActivity().getApplicationContext(), "Gps Disabled", Toast.LENGTH_SHORT ).show();
+		String connect = "";
+		if(isConnected()){
+			connect = "You are connected";
 		}
-
-		@Override
-		public void onProviderEnabled(String provider){
-			Toast.makeText(getActivity().getApplicationContext(), "Gps Enabled", Toast.LENGTH_SHORT).show();
+		else{
+			connect = "You are NOT conncted";
 		}
 
-		@Override
-		public void onStatusChanged(String provider, int status, Bundle extras){
+		// Display location
+		String Text = "Your current location is: " + "\nLatitude: " + lat + "\nLongitude: " + lon + "\n" + connect;
+		tv.setText(Text);
 
-		}
+		mapSetMarker(lat, lon);
 	}
 
 	public void mapSetMarker(GeoPoint loc){
-		List<Overlay> mapOverlays = new ArrayList<>();
-		Drawable icon = null;
-		if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.LOLLIPOP) {
-			icon = getResources().getDrawable(R.drawable.ic_location_on_black_24dp, null);
-		} else {
-			icon = getResources().getDrawable(R.drawable.ic_location_on_black_24dp);
-		}
+		mapSetMarker(loc.getLatitude(), loc.getLongitude());
+	}
 
-		Marker marker = new Marker(map);
-		marker.setPosition(loc);
-		marker.setTitle("Temperature: "+ temp + "\u2103" + "\nHumidity: " + humi + "%" + "\nLight level: " + lightLevel + "lux");
-		marker.setIcon(icon);
-		mapOverlays.add(marker);
+	// Coalesces fixes so the overlay is redrawn at most once per frame interval
+	private void mapSetMarker(double lat, double lon){
+		if (map == null) {
+			return;
+		}
+		pendingLat = lat;
+		pendingLon = lon;
+		if (!markerPending) {
+			markerPending = true;
+			long wait = lastMarkerUpdate + MARKER_FRAME_INTERVAL - SystemClock.uptimeMillis();
+			map.postDelayed(markerUpdate, Math.max(0, wait));
+		}
+	}
 
-		map.getOverlays().clear();
-		map.getOverlays().addAll(mapOverlays);
+	private void updateMarker(){
+		markerPending = false;
+		if (map == null || marker == null) {
+			return;
+		}
+		lastMarkerUpdate = SystemClock.uptimeMillis();
+		markerPosition.setCoords(pendingLat, pendingLon);
+		marker.setPosition(markerPosition);
+		if (markerTitle == null || titleTemp != temp || titleHumi != humi || titleLight != lightLevel) {
+			titleTemp = temp;
+			titleHumi = humi;
+			titleLight = lightLevel;
+			markerTitle = "Temperature: "+ temp + "\u2103" + "\nHumidity: " + humi + "%" + "\nLight level: " + lightLevel + "lux";
+			marker.setTitle(markerTitle);
+			if (marker.isInfoWindowShown()) {
+				marker.showInfoWindow();
+			}
+		}
+		if (firstFix) {
+			map.getOverlays().clear();
+			map.getOverlays().add(marker);
+		}
 		map.invalidate();
-		mapController.setCenter(loc);
+
+		if (firstFix || nearEdge(pendingLat, pendingLon)) {
+			mapController.setCenter(markerPosition);
+		}
+		firstFix = false;
 	}
 
-	public boolean isConnected(){
-		ConnectivityManager connMgr = (ConnectivityManager) getActivity().getSystemService(Activity.CONNECTIVITY_SERVICE);
-		NetworkInfo networkInfo = connMgr.getActiveNetworkInfo();
-		if (networkInfo != null && networkInfo.isConnected())
+	private boolean nearEdge(double lat, double lon){
+		BoundingBox box = map.getBoundingBox();
+		if (box == null) {
 			return true;
-		else
-			return false;
+		}
+		double latMargin = (box.getLatNorth() - box.getLatSouth()) * RECENTER_MARGIN;
+		double lonMargin = (box.getLonEast() - box.getLonWest()) * RECENTER_MARGIN;
+		return lat > box.getLatNorth() - latMargin || lat < box.getLatSouth() + latMargin
+				|| lon > box.getLonEast() - lonMargin || lon < box.getLonWest() + lonMargin;
+	}
+
+	@Override
+	public void onDestroyView() {
+		if (map != null) {
+			map.removeCallbacks(markerUpdate);
+		}
+		markerPending = false;
+		map = null;
+		marker = null;
+		super.onDestroyView();
+	}
+
+	public boolean isConnected(){
+		return ConnectivityMonitor.getInstance(getActivity()).isConnected();
 	}
 }
\ No newline at end of file
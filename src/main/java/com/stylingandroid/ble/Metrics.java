@@ -0,0 +1,226 @@
+package com.stylingandroid.ble;
+
+import android.os.SystemClock;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * Process wide counters, latency histograms and gauges for the sample and upload
+ * pipelines. Recording is a handful of atomic increments with no allocation or
+ * locking, so it can stay on in the GATT callbacks; BleService.dump() prints the lot,
+ * e.g. adb shell dumpsys activity service com.stylingandroid.ble/.BleService
+ */
+final class Metrics {
+	private static final List<Counter> sCounters = new ArrayList<Counter>();
+	private static final List<Histogram> sHistograms = new ArrayList<Histogram>();
+	private static final List<Gauge> sGauges = new ArrayList<Gauge>();
+	private static final List<String> sGaugeNames = new ArrayList<String>();
+
+	// Sample path: notification -> decode -> fan-out -> UI
+	static final Counter NOTIFICATIONS = counter("gatt.notifications");
+	static final Counter SAMPLES = counter("gatt.samples");
+	static final Counter SAMPLES_SUPPRESSED = counter("gatt.samples_suppressed");
+	static final Counter RING_DROPPED = counter("gatt.ring_dropped");
+	static final Counter GATT_OPS_FAILED = counter("gatt.ops_failed");
+	static final Counter MESSAGES_SENT = counter("ipc.messages_sent");
+	static final Counter MESSAGES_FAILED = counter("ipc.messages_failed");
+	static final Histogram HANDOFF = histogram("gatt.handoff");
+	static final Histogram DECODE = histogram("gatt.decode");
+	static final Histogram FANOUT = histogram("ipc.fanout");
+	static final Histogram UI_AGE = histogram("ui.sample_age");
+	static final Histogram UI_HANDLE = histogram("ui.handle");
+
+	// Upload path: fix -> reading -> HTTP response
+	static final Counter LOCATIONS = counter("location.fixes");
+	static final Counter READINGS = counter("upload.readings");
+	static final Counter UPLOADS = counter("upload.posts");
+	static final Counter UPLOADS_FAILED = counter("upload.posts_failed");
+	static final Counter UPLOADS_REJECTED = counter("upload.readings_rejected");
+	static final Counter UPLOAD_BYTES = counter("upload.json_bytes");
+	static final Histogram UPLOAD_AGE = histogram("upload.reading_age");
+	static final Histogram HTTP = histogram("upload.http");
+
+	private Metrics() {
+	}
+
+	static class Counter {
+		final String name;
+		private final AtomicLong mValue = new AtomicLong();
+
+		Counter(String name) {
+			this.name = name;
+		}
+
+		public void inc() {
+			mValue.incrementAndGet();
+		}
+
+		public void add(long delta) {
+			mValue.addAndGet(delta);
+		}
+
+		public long get() {
+			return mValue.get();
+		}
+	}
+
+	interface Gauge {
+		long get();
+	}
+
+	/*
+	 * Log-linear buckets over nanoseconds in the style of HdrHistogram: values
+	 * below 2^SUB_BITS are exact, above that every power of two is split into
+	 * 2^SUB_BITS buckets, so any value is reported to within about 6%.
+	 */
+	static class Histogram {
+		private static final int SUB_BITS = 4;
+		private static final int SUB_COUNT = 1 << SUB_BITS;
+		private static final int BUCKETS = (64 - SUB_BITS + 1) * SUB_COUNT;
+
+		final String name;
+		private final AtomicLongArray mCounts = new AtomicLongArray(BUCKETS);
+		private final AtomicLong mCount = new AtomicLong();
+		private final AtomicLong mTotal = new AtomicLong();
+		private final AtomicLong mMax = new AtomicLong();
+
+		Histogram(String name) {
+			this.name = name;
+		}
+
+		static int index(long value) {
+			if (value < SUB_COUNT) {
+				return (int) Math.max(0, value);
+			}
+			int exponent = 63 - Long.numberOfLeadingZeros(value);
+			int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_COUNT - 1);
+			return (exponent - SUB_BITS + 1) * SUB_COUNT + sub;
+		}
+
+		// Largest value that lands in the bucket
+		static long upperBound(int index) {
+			if (index < SUB_COUNT) {
+				return index;
+			}
+			int exponent = index / SUB_COUNT + SUB_BITS - 1;
+			long sub = index % SUB_COUNT;
+			return ((SUB_COUNT + sub + 1) << (exponent - SUB_BITS)) - 1;
+		}
+
+		public void record(long nanos) {
+			if (nanos < 0) {
+				nanos = 0;
+			}
+			mCounts.incrementAndGet(index(nanos));
+			mCount.incrementAndGet();
+			mTotal.addAndGet(nanos);
+			long max = mMax.get();
+			while (nanos > max && !mMax.compareAndSet(max, nanos)) {
+				max = mMax.get();
+			}
+		}
+
+		public void recordSince(long startNanos) {
+			record(SystemClock.elapsedRealtimeNanos() - startNanos);
+		}
+
+		public void recordMillis(long millis) {
+			record(millis * 1000000L);
+		}
+
+		public long getCount() {
+			return mCount.get();
+		}
+
+		// Counts are read bucket by bucket, so a percentile taken under load is approximate
+		public long getPercentile(double percentile) {
+			long count = mCount.get();
+			if (count == 0) {
+				return 0;
+			}
+			long target = Math.max(1, (long) Math.ceil(count * percentile / 100));
+			long seen = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				seen += mCounts.get(i);
+				if (seen >= target) {
+					return Math.min(upperBound(i), mMax.get());
+				}
+			}
+			return mMax.get();
+		}
+
+		public long getMean() {
+			long count = mCount.get();
+			return count > 0 ? mTotal.get() / count : 0;
+		}
+
+		public long getMax() {
+			return mMax.get();
+		}
+	}
+
+	static long now() {
+		return SystemClock.elapsedRealtimeNanos();
+	}
+
+	private static synchronized Counter counter(String name) {
+		Counter counter = new Counter(name);
+		sCounters.add(counter);
+		return counter;
+	}
+
+	private static synchronized Histogram histogram(String name) {
+		Histogram histogram = new Histogram(name);
+		sHistograms.add(histogram);
+		return histogram;
+	}
+
+	// A gauge registered under an existing name replaces it, e.g. when the service is recreated
+	static synchronized void gauge(String name, Gauge gauge) {
+		int index = sGaugeNames.indexOf(name);
+		if (index >= 0) {
+			sGauges.set(index, gauge);
+		} else {
+			sGaugeNames.add(name);
+			sGauges.add(gauge);
+		}
+	}
+
+	// Gauges read their owner, so the owner takes them out again when it goes
+	static synchronized void removeGauge(String name) {
+		int index = sGaugeNames.indexOf(name);
+		if (index >= 0) {
+			sGaugeNames.remove(index);
+			sGauges.remove(index);
+		}
+	}
+
+	static synchronized void dump(PrintWriter writer) {
+		writer.println("Counters:");
+		for (Counter counter : sCounters) {
+			writer.println("  " + counter.name + ": " + counter.get());
+		}
+		writer.println("Gauges:");
+		for (int i = 0; i < sGauges.size(); i++) {
+			writer.println("  " + sGaugeNames.get(i) + ": " + sGauges.get(i).get());
+		}
+		writer.println("Latency (us): count mean p50 p90 p99 p99.9 max");
+		for (Histogram histogram : sHistograms) {
+			writer.println("  " + histogram.name + ": " + histogram.getCount()
+					+ " " + micros(histogram.getMean())
+					+ " " + micros(histogram.getPercentile(50))
+					+ " " + micros(histogram.getPercentile(90))
+					+ " " + micros(histogram.getPercentile(99))
+					+ " " + micros(histogram.getPercentile(99.9))
+					+ " " + micros(histogram.getMax()));
+		}
+	}
+
+	private static long micros(long nanos) {
+		return nanos / 1000;
+	}
+}
@@ -0,0 +1,145 @@
+package com.stylingandroid.ble;
+
+import android.location.Location;
+
+/*
+ * Time-aligned join of the sample streams with the location stream. Each sensor of
+ * each tag and the fixes go into rings of their own, so values from different tags
+ * are never blended together. Fixes are grouped into fixed windows
+ * and the most accurate fix of a window stands for it, which also drops a NETWORK
+ * fix that duplicates a GPS one. Sensor values are interpolated to that fix's own
+ * time instead of being whatever arrived last. A window is held open for one more
+ * window length, so late fixes and the samples just after the fix are there when
+ * it closes.
+ *
+ * Samples come from the processor thread, everything else from the pipeline's
+ * handler thread. All times are elapsedRealtime milliseconds.
+ */
+class ReadingFusion {
+	static final long DEFAULT_WINDOW = 2000;
+	static final long DEFAULT_MAX_GAP = 10 * 1000;
+	private static final int FIX_CAPACITY = 32;
+
+	private TimeSeries[] mSamples = new TimeSeries[0];	//indexed by device * SensorType.COUNT + sensor
+	private final long[] mFixTimes = new long[FIX_CAPACITY];
+	private final float[] mFixAccuracies = new float[FIX_CAPACITY];
+	private final Location[] mFixes = new Location[FIX_CAPACITY];
+	private int mFixHead = 0;
+	private int mFixCount = 0;
+
+	private final long mWindow;
+	private final long mMaxGap;
+	private final int mSampleCapacity;
+	private long mNextWindow = Long.MIN_VALUE;	//start of the earliest window not yet closed
+
+	ReadingFusion() {
+		this(DEFAULT_WINDOW, DEFAULT_MAX_GAP);
+	}
+
+	ReadingFusion(long window, long maxGap) {
+		mWindow = window;
+		mMaxGap = maxGap;
+		// A fix is at most two windows old when its window closes, and interpolation looks a gap further back
+		mSampleCapacity = (int) ((2 * window + maxGap) / SamplingPolicy.MIN_PERIOD) + 2;
+	}
+
+	// Fix time on the same clock as the samples
+	static long getTime(Location location) {
+		return location.getElapsedRealtimeNanos() / 1000000;
+	}
+
+	public synchronized void onSample(int device, int sensor, long time, float value) {
+		int stream = device * SensorType.COUNT + sensor;
+		if (stream >= mSamples.length) {
+			TimeSeries[] samples = new TimeSeries[(device + 1) * SensorType.COUNT];
+			System.arraycopy(mSamples, 0, samples, 0, mSamples.length);
+			for (int i = mSamples.length; i < samples.length; i++) {
+				samples[i] = new TimeSeries(mSampleCapacity);
+			}
+			mSamples = samples;
+		}
+		mSamples[stream].add(time, value);
+	}
+
+	// One past the highest device id that has sent a sample
+	public synchronized int getDeviceCount() {
+		return mSamples.length / SensorType.COUNT;
+	}
+
+	// NaN if the sensor of the device has no sample within the maximum gap of time
+	public synchronized float valueAt(int device, int sensor, long time) {
+		int stream = device * SensorType.COUNT + sensor;
+		return stream < mSamples.length ? mSamples[stream].valueAt(time, mMaxGap) : Float.NaN;
+	}
+
+	// False if the fix belongs to a window that has already closed
+	public boolean addFix(Location location) {
+		long time = getTime(location);
+		if (time < mNextWindow) {
+			return false;
+		}
+		int slot = mFixHead;
+		mFixTimes[slot] = time;
+		mFixAccuracies[slot] = location.hasAccuracy() ? location.getAccuracy() : Float.MAX_VALUE;
+		mFixes[slot] = location;
+		mFixHead = (slot + 1) % FIX_CAPACITY;
+		mFixCount = Math.min(mFixCount + 1, FIX_CAPACITY);
+		return true;
+	}
+
+	// When the earliest open window can be closed, or -1 if no fixes are waiting
+	public long getNextDue() {
+		long earliest = getEarliestPending();
+		return earliest == Long.MAX_VALUE ? -1 : getWindowStart(earliest) + 2 * mWindow;
+	}
+
+	// Closes the earliest window if it is due by now and returns its best fix, null if none is due
+	public Location nextFix(long now) {
+		long earliest = getEarliestPending();
+		if (earliest == Long.MAX_VALUE) {
+			return null;
+		}
+		long start = getWindowStart(earliest);
+		long end = start + mWindow;
+		if (now - end < mWindow) {
+			return null;
+		}
+		int best = -1;
+		for (int i = 0; i < mFixCount; i++) {
+			long time = mFixTimes[i];
+			if (time >= start && time < end && (best < 0 || mFixAccuracies[i] < mFixAccuracies[best]
+					|| (mFixAccuracies[i] == mFixAccuracies[best] && time > mFixTimes[best]))) {
+				best = i;
+			}
+		}
+		mNextWindow = end;
+		return mFixes[best];
+	}
+
+	public synchronized void reset() {
+		for (TimeSeries series : mSamples) {
+			series.clear();
+		}
+		for (int i = 0; i < FIX_CAPACITY; i++) {
+			mFixes[i] = null;
+		}
+		mFixHead = 0;
+		mFixCount = 0;
+		mNextWindow = Long.MIN_VALUE;
+	}
+
+	private long getEarliestPending() {
+		long earliest = Long.MAX_VALUE;
+		for (int i = 0; i < mFixCount; i++) {
+			long time = mFixTimes[i];
+			if (time >= mNextWindow && time < earliest) {
+				earliest = time;
+			}
+		}
+		return earliest;
+	}
+
+	private long getWindowStart(long time) {
+		return time - ((time % mWindow) + mWindow) % mWindow;
+	}
+}
@@ -0,0 +1,284 @@
+package com.stylingandroid.ble;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/*
+ * Writes readings as JSON straight into a reusable byte buffer. Doubles are
+ * printed at a fixed number of decimals with integer arithmetic, rounded half up
+ * from their exact binary value as BigDecimal would, so encoding a reading creates
+ * no objects once the buffer has grown to size.
+ */
+class ReadingJsonWriter {
+	static final int SENSOR_DECIMALS = 2;
+	static final int COORDINATE_DECIMALS = 7;
+
+	private static final long[] POW10 = {
+			1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L, 10000000L, 100000000L, 1000000000L
+	};
+	private static final long[] POW5 = {
+			1L, 5L, 25L, 125L, 625L, 3125L, 15625L, 78125L, 390625L, 1953125L
+	};
+	private static final byte[] NULL = {'n', 'u', 'l', 'l'};
+	private static final String[] MIN_NAMES = {"temperature_min", "humidity_min", "light_min"};
+	private static final String[] MAX_NAMES = {"temperature_max", "humidity_max", "light_max"};
+	private static final String[] MEDIAN_NAMES = {"temperature_p50", "humidity_p50", "light_p50"};
+	private static final String[] P90_NAMES = {"temperature_p90", "humidity_p90", "light_p90"};
+
+	private byte[] mBuffer;
+	private int mSize = 0;
+	private boolean mNeedsComma = false;
+	private final byte[] mDigits = new byte[20];
+
+	ReadingJsonWriter() {
+		this(1024);
+	}
+
+	ReadingJsonWriter(int capacity) {
+		mBuffer = new byte[capacity];
+	}
+
+	public void reset() {
+		mSize = 0;
+		mNeedsComma = false;
+	}
+
+	public byte[] getBuffer() {
+		return mBuffer;
+	}
+
+	public int size() {
+		return mSize;
+	}
+
+	public void writeTo(OutputStream out) throws IOException {
+		out.write(mBuffer, 0, mSize);
+	}
+
+	public void beginArray() {
+		separate();
+		append('[');
+		mNeedsComma = false;
+	}
+
+	public void endArray() {
+		append(']');
+		mNeedsComma = true;
+	}
+
+	public void writeReading(long time, double temperature, double humidity, double light,
+							 double latitude, double longitude) {
+		separate();
+		append('{');
+		mNeedsComma = false;
+		field("temperature", temperature, SENSOR_DECIMALS);
+		field("humidity", humidity, SENSOR_DECIMALS);
+		field("light", light, SENSOR_DECIMALS);
+		field("latitude", latitude, COORDINATE_DECIMALS);
+		field("longitude", longitude, COORDINATE_DECIMALS);
+		if (time > 0) {
+			name("timestamp");
+			writeLong(time);
+		}
+		append('}');
+		mNeedsComma = true;
+	}
+
+	public void writeReadings(Readings readings) {
+		beginArray();
+		for (int i = 0; i < readings.size(); i++) {
+			writeReading(readings.times[i], readings.temperatures[i], readings.humidities[i], readings.lights[i],
+					readings.latitudes[i], readings.longitudes[i]);
+		}
+		endArray();
+	}
+
+	/*
+	 * One object per closed cell. The plain sensor and position fields carry the
+	 * cell's means, so a reader of single readings still understands it; the rest
+	 * describe the spread. "cell" is geohash:window start, the same for every
+	 * summary of that cell, so a server can merge summaries of one cell that went up
+	 * separately, as readings stored out of time order can.
+	 */
+	public void writeCells(CellAggregator cells) {
+		beginArray();
+		for (int i = 0; i < cells.size(); i++) {
+			separate();
+			append('{');
+			mNeedsComma = false;
+			for (int sensor = 0; sensor < SensorType.COUNT; sensor++) {
+				field(SensorType.name(sensor), cells.getMean(i, sensor), SENSOR_DECIMALS);
+			}
+			field("latitude", cells.getLatitude(i), COORDINATE_DECIMALS);
+			field("longitude", cells.getLongitude(i), COORDINATE_DECIMALS);
+			name("timestamp");
+			writeLong(cells.getWindowStartAt(i));
+			name("window");
+			writeLong(cells.getWindow());
+			name("count");
+			writeLong(cells.getCount(i));
+			name("geohash");
+			append('"');
+			writeGeohash(cells.getCell(i), cells.getPrecision());
+			append('"');
+			name("cell");
+			append('"');
+			writeGeohash(cells.getCell(i), cells.getPrecision());
+			append(':');
+			writeLong(cells.getWindowStartAt(i));
+			append('"');
+			for (int sensor = 0; sensor < SensorType.COUNT; sensor++) {
+				field(MIN_NAMES[sensor], cells.getMin(i, sensor), SENSOR_DECIMALS);
+				field(MAX_NAMES[sensor], cells.getMax(i, sensor), SENSOR_DECIMALS);
+				field(MEDIAN_NAMES[sensor], cells.getPercentile(i, sensor, 0.5), SENSOR_DECIMALS);
+				field(P90_NAMES[sensor], cells.getPercentile(i, sensor, 0.9), SENSOR_DECIMALS);
+			}
+			append('}');
+			mNeedsComma = true;
+		}
+		endArray();
+	}
+
+	private void writeGeohash(long cell, int precision) {
+		ensureCapacity(precision);
+		for (int c = 0; c < precision; c++) {
+			mBuffer[mSize++] = (byte) Geohash.charAt(cell, precision, c);
+		}
+	}
+
+	private void field(String name, double value, int decimals) {
+		name(name);
+		writeDouble(value, decimals);
+	}
+
+	// Field names are ASCII constants
+	private void name(String name) {
+		separate();
+		append('"');
+		int length = name.length();
+		ensureCapacity(length + 2);
+		for (int i = 0; i < length; i++) {
+			mBuffer[mSize++] = (byte) name.charAt(i);
+		}
+		mBuffer[mSize++] = '"';
+		mBuffer[mSize++] = ':';
+	}
+
+	private void separate() {
+		if (mNeedsComma) {
+			append(',');
+		}
+		mNeedsComma = true;
+	}
+
+	void writeDouble(double value, int decimals) {
+		if (Double.isNaN(value) || Double.isInfinite(value)) {
+			ensureCapacity(NULL.length);
+			System.arraycopy(NULL, 0, mBuffer, mSize, NULL.length);
+			mSize += NULL.length;
+			return;
+		}
+		double scaled = Math.abs(value) * POW10[decimals];
+		if (scaled >= Long.MAX_VALUE / 10) {
+			// Far outside anything a sensor reports; not worth a fast path
+			writeAscii(Double.toString(value));
+			return;
+		}
+		long units = roundHalfUp(Math.abs(value), decimals);
+		if (value < 0 && units != 0) {
+			append('-');
+		}
+		long integer = units / POW10[decimals];
+		long fraction = units % POW10[decimals];
+		writeLong(integer);
+		if (fraction != 0) {
+			int digits = decimals;
+			while (fraction % 10 == 0) {
+				fraction /= 10;
+				digits--;
+			}
+			append('.');
+			ensureCapacity(digits);
+			for (int i = mSize + digits - 1; i >= mSize; i--) {
+				mBuffer[i] = (byte) ('0' + fraction % 10);
+				fraction /= 10;
+			}
+			mSize += digits;
+		}
+	}
+
+	/*
+	 * value * 10^decimals rounded half up, exactly. A double is mantissa * 2^exponent,
+	 * so the scaled value is mantissa * 5^decimals * 2^(exponent + decimals): a product
+	 * under 2^74, held in two longs, shifted right with the last bit shifted out
+	 * deciding the rounding. Multiplying in floating point instead rounds values just
+	 * below a half up. The caller has checked the result fits in a long.
+	 */
+	private static long roundHalfUp(double value, int decimals) {
+		long bits = Double.doubleToRawLongBits(value);
+		int exponent = (int) ((bits >>> 52) & 0x7ff);
+		long mantissa = bits & 0xfffffffffffffL;
+		if (exponent == 0) {
+			exponent = 1;	//subnormal
+		} else {
+			mantissa |= 1L << 52;
+		}
+		int shift = 1075 - exponent - decimals;	//right shift of mantissa * 5^decimals
+		long low = (mantissa & 0xffffffffL) * POW5[decimals];
+		long high = (mantissa >>> 32) * POW5[decimals];
+		long productLow = low + (high << 32);
+		long productHigh = (high >>> 32) + ((productLow ^ Long.MIN_VALUE) < (low ^ Long.MIN_VALUE) ? 1 : 0);
+		if (shift <= 0) {
+			// Already an integer; only small enough ones get here
+			return productLow << -shift;
+		}
+		if (shift > 75) {
+			// Under a quarter of a unit
+			return 0;
+		}
+		long units = shift < 64 ? (productLow >>> shift) | (productHigh << (64 - shift)) : productHigh >>> (shift - 64);
+		long half = shift - 1 < 64 ? productLow >>> (shift - 1) : productHigh >>> (shift - 65);
+		return units + (half & 1);
+	}
+
+	void writeLong(long value) {
+		if (value == Long.MIN_VALUE) {
+			writeAscii(Long.toString(value));
+			return;
+		}
+		if (value < 0) {
+			append('-');
+			value = -value;
+		}
+		int count = 0;
+		do {
+			mDigits[count++] = (byte) ('0' + value % 10);
+			value /= 10;
+		} while (value != 0);
+		ensureCapacity(count);
+		while (count > 0) {
+			mBuffer[mSize++] = mDigits[--count];
+		}
+	}
+
+	private void writeAscii(String s) {
+		int length = s.length();
+		ensureCapacity(length);
+		for (int i = 0; i < length; i++) {
+			mBuffer[mSize++] = (byte) s.charAt(i);
+		}
+	}
+
+	private void append(char c) {
+		ensureCapacity(1);
+		mBuffer[mSize++] = (byte) c;
+	}
+
+	private void ensureCapacity(int extra) {
+		if (mSize + extra > mBuffer.length) {
+			byte[] buffer = new byte[Math.max(mBuffer.length * 2, mSize + extra)];
+			System.arraycopy(mBuffer, 0, buffer, 0, mSize);
+			mBuffer = buffer;
+		}
+	}
+}
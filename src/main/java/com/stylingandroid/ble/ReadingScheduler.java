@@ -0,0 +1,92 @@
+package com.stylingandroid.ble;
+
+/*
+ * Decides which location fixes become uploaded readings. Distance is summed along
+ * the actual path between fixes; a fix is taken once the path since the last taken
+ * fix reaches the minimum distance, but never sooner than the minimum interval, and
+ * at the latest after the staleness interval so stationary units still report.
+ */
+class ReadingScheduler {
+	static final double DEFAULT_MIN_DISTANCE = 100;
+	static final long DEFAULT_MIN_INTERVAL = 5 * 1000;
+	static final long DEFAULT_MAX_STALENESS = 5 * 60 * 1000;
+
+	private static final double EARTH_RADIUS = 6371008.8;
+
+	private double mMinDistance;
+	private long mMinInterval;
+	private long mMaxStaleness;
+
+	private boolean mHasFix = false;
+	private double mLastLatitude;
+	private double mLastLongitude;
+	private long mLastAccepted;
+	private double mDistance = 0;
+
+	ReadingScheduler() {
+		this(DEFAULT_MIN_DISTANCE, DEFAULT_MIN_INTERVAL, DEFAULT_MAX_STALENESS);
+	}
+
+	ReadingScheduler(double minDistance, long minInterval, long maxStaleness) {
+		configure(minDistance, minInterval, maxStaleness);
+	}
+
+	public void configure(double minDistance, long minInterval, long maxStaleness) {
+		mMinDistance = minDistance;
+		mMinInterval = minInterval;
+		mMaxStaleness = maxStaleness;
+	}
+
+	// time is in milliseconds on any monotonic clock, accuracy in meters (0 if unknown)
+	public boolean offer(double latitude, double longitude, float accuracy, long time) {
+		if (!mHasFix) {
+			mHasFix = true;
+			mLastLatitude = latitude;
+			mLastLongitude = longitude;
+			return accept(time);
+		}
+		double step = distance(mLastLatitude, mLastLongitude, latitude, longitude);
+		if (step > accuracy) {
+			// Steps inside the fix's error radius are jitter, not movement
+			mDistance += step;
+			mLastLatitude = latitude;
+			mLastLongitude = longitude;
+		}
+
+		long elapsed = time - mLastAccepted;
+		if (elapsed < mMinInterval) {
+			return false;
+		}
+		if (mDistance >= mMinDistance || elapsed >= mMaxStaleness) {
+			return accept(time);
+		}
+		return false;
+	}
+
+	public double getDistanceSinceLastReading() {
+		return mDistance;
+	}
+
+	public void reset() {
+		mHasFix = false;
+		mDistance = 0;
+	}
+
+	private boolean accept(long time) {
+		mLastAccepted = time;
+		mDistance = 0;
+		return true;
+	}
+
+	// Haversine great-circle distance in meters
+	static double distance(double lat1, double lon1, double lat2, double lon2) {
+		double phi1 = Math.toRadians(lat1);
+		double phi2 = Math.toRadians(lat2);
+		double dPhi = phi2 - phi1;
+		double dLambda = Math.toRadians(lon2 - lon1);
+		double sinPhi = Math.sin(dPhi / 2);
+		double sinLambda = Math.sin(dLambda / 2);
+		double a = sinPhi * sinPhi + Math.cos(phi1) * Math.cos(phi2) * sinLambda * sinLambda;
+		return 2 * EARTH_RADIUS * Math.asin(Math.min(1, Math.sqrt(a)));
+	}
+}
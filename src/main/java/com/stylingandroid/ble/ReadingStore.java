@@ -0,0 +1,95 @@
+package com.stylingandroid.ble;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+/*
+ * Append-only on-disk log of geo-tagged readings. Records have a fixed size so the
+ * upload cursor is a plain byte offset, kept in a side file so draining resumes
+ * where it left off after a crash or reboot.
+ */
+class ReadingStore {
+	private static final String TAG = "ReadingStore";
+
+	static final int RECORD_SIZE = 8 * 6;
+
+	private final RandomAccessFile mData;
+	private final RandomAccessFile mCursorFile;
+	private final ByteBuffer mRecord = ByteBuffer.allocate(RECORD_SIZE);
+	private long mCursor;
+
+	ReadingStore(File dir, String name) throws IOException {
+		mData = new RandomAccessFile(new File(dir, name + ".dat"), "rw");
+		mCursorFile = new RandomAccessFile(new File(dir, name + ".cursor"), "rw");
+		long length = mData.length();
+		if (length % RECORD_SIZE != 0) {
+			// Torn write at the tail from a crash
+			Log.w(TAG, "Truncating partial record in " + name);
+			mData.setLength(length - length % RECORD_SIZE);
+		}
+		mCursor = mCursorFile.length() >= 8 ? mCursorFile.readLong() : 0;
+		if (mCursor < 0 || mCursor > mData.length() || mCursor % RECORD_SIZE != 0) {
+			mCursor = 0;
+		}
+	}
+
+	public synchronized void append(long time, double temperature, double humidity, double light,
+									double latitude, double longitude) throws IOException {
+		mRecord.clear();
+		mRecord.putLong(time);
+		mRecord.putDouble(temperature);
+		mRecord.putDouble(humidity);
+		mRecord.putDouble(light);
+		mRecord.putDouble(latitude);
+		mRecord.putDouble(longitude);
+		mData.seek(mData.length());
+		mData.write(mRecord.array(), 0, RECORD_SIZE);
+	}
+
+	public synchronized int pending() throws IOException {
+		return (int) ((mData.length() - mCursor) / RECORD_SIZE);
+	}
+
+	// Reads up to out.capacity() records from the cursor without consuming them
+	public synchronized int peek(Readings out) throws IOException {
+		return peek(out, 0);
+	}
+
+	// As peek(out), starting offset records past the cursor
+	public synchronized int peek(Readings out, int offset) throws IOException {
+		out.clear();
+		mData.seek(mCursor + (long) offset * RECORD_SIZE);
+		int count = Math.max(0, Math.min(out.capacity(), pending() - offset));
+		for (int i = 0; i < count; i++) {
+			mData.readFully(mRecord.array(), 0, RECORD_SIZE);
+			mRecord.clear();
+			out.add(mRecord.getLong(), mRecord.getDouble(), mRecord.getDouble(), mRecord.getDouble(),
+					mRecord.getDouble(), mRecord.getDouble());
+		}
+		return count;
+	}
+
+	// Marks the first count pending records as delivered
+	public synchronized void commit(int count) throws IOException {
+		mCursor = Math.min(mCursor + (long) count * RECORD_SIZE, mData.length());
+		if (mCursor == mData.length()) {
+			mData.setLength(0);
+			mCursor = 0;
+		}
+		mCursorFile.seek(0);
+		mCursorFile.writeLong(mCursor);
+	}
+
+	public synchronized void close() {
+		try {
+			mData.close();
+			mCursorFile.close();
+		} catch (IOException e) {
+			Log.w(TAG, "Error closing store", e);
+		}
+	}
+}
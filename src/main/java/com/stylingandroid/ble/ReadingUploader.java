@@ -0,0 +1,385 @@
+package com.stylingandroid.ble;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+
+/*
+ * Persists every reading in a ReadingStore and drains the store to the server on a
+ * background thread, a batch at a time. Where a bulk endpoint is configured a batch
+ * goes up as one JSON array in one POST; otherwise each reading is its own POST over
+ * the pooled keep-alive connection, as the original endpoint takes a single object.
+ * Either way the cursor moves once per batch. Readings taken while offline stay on
+ * disk until a later drain succeeds, and readings the server refuses outright are
+ * moved to a quarantine store rather than dropped. Where a server endpoint takes
+ * them, configureAggregation switches to geohash cell summaries instead: a reading
+ * stays in the store until its time window has closed, then goes up folded into its
+ * cell.
+ */
+class ReadingUploader {
+	private static final String TAG = "ReadingUploader";
+
+	static final int DEFAULT_BATCH_SIZE = 100;
+	static final long DEFAULT_FLUSH_INTERVAL = 60 * 1000;
+	private static final long MIN_RETRY_DELAY = 15 * 1000;
+	private static final long MAX_RETRY_DELAY = 15 * 60 * 1000;
+
+	private static ReadingUploader sInstance = null;
+
+	private final File mDir;
+	private final String mUrl;
+	private final Handler mHandler;
+	private final HttpUploader mHttp;
+	private final ConnectivityMonitor mConnectivity;	//null where there is none to ask, uploads are always tried
+	private final ReadingJsonWriter mWriter = new ReadingJsonWriter();
+	private final CellAggregator mCells = new CellAggregator();
+
+	private ReadingStore mStore = null;
+	private ReadingStore mRejected = null;
+	private Readings mBatch;
+	private int mBatchSize = DEFAULT_BATCH_SIZE;
+	private long mFlushInterval = DEFAULT_FLUSH_INTERVAL;
+	private long mRetryDelay = MIN_RETRY_DELAY;
+	private String mBulkUrl = null;
+	private boolean mAggregate = false;
+	private String mCellUrl = null;
+	private boolean mDrainScheduled = false;
+	private volatile long mPending = 0;	//for gauges, the store itself is only touched on mHandler
+
+	private final Runnable mDrainRunnable = new Runnable() {
+		@Override
+		public void run() {
+			drain();
+		}
+	};
+
+	// Apart from mDrainRunnable, which every drain cancels, so a drain queued ahead cannot swallow a flush
+	private final Runnable mFlushRunnable = new Runnable() {
+		@Override
+		public void run() {
+			drain();
+		}
+	};
+
+	public static synchronized ReadingUploader getInstance(Context context) {
+		if (sInstance == null) {
+			sInstance = new ReadingUploader(context.getApplicationContext(), JsonData.SERVER_URL);
+		}
+		return sInstance;
+	}
+
+	ReadingUploader(Context context, String url) {
+		this(context.getFilesDir(), url, HttpUploader.getInstance(), ConnectivityMonitor.getInstance(context));
+	}
+
+	ReadingUploader(File dir, String url, HttpUploader http, ConnectivityMonitor connectivity) {
+		mDir = dir;
+		mUrl = url;
+		mHttp = http;
+		mConnectivity = connectivity;
+		mBatch = new Readings(mBatchSize);
+		HandlerThread thread = new HandlerThread(TAG);
+		thread.start();
+		mHandler = new Handler(thread.getLooper());
+		mHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					mStore = new ReadingStore(mDir, "readings");
+					mRejected = new ReadingStore(mDir, "readings-rejected");
+					mPending = mStore.pending();
+				} catch (IOException e) {
+					Log.e(TAG, "Unable to open reading store", e);
+				}
+				// Pick up whatever a previous process left behind
+				drain();
+			}
+		});
+	}
+
+	public void configure(final int batchSize, final long flushInterval) {
+		mHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				mBatchSize = Math.max(1, batchSize);
+				mFlushInterval = Math.max(0, flushInterval);
+				mBatch = new Readings(mBatchSize);
+			}
+		});
+	}
+
+	/*
+	 * Opt in to batches of up to batchSize readings per POST, which go to url as JSON
+	 * arrays. No url posts each reading on its own to the single-reading endpoint.
+	 */
+	public void configureBulk(final String url) {
+		mHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				mBulkUrl = url;
+			}
+		});
+	}
+
+	/*
+	 * Opt in to cell summaries, which go to url as JSON arrays; the single-reading
+	 * endpoint does not take them. A precision of 0 or no url uploads every reading
+	 * as it is, which is the default.
+	 */
+	public void configureAggregation(final int precision, final long window, final String url) {
+		mHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				mAggregate = precision > 0 && url != null;
+				mCellUrl = mAggregate ? url : null;
+				if (mAggregate) {
+					mCells.configure(precision, window);
+				}
+			}
+		});
+	}
+
+	public void add(final long time, final double temperature, final double humidity, final double light,
+					final double latitude, final double longitude) {
+		mHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				if (mStore == null) {
+					return;
+				}
+				try {
+					mStore.append(time, temperature, humidity, light, latitude, longitude);
+					Metrics.READINGS.inc();
+					mPending = mStore.pending();
+					if (!mAggregate && mStore.pending() >= mBatchSize) {
+						// Cells only go up once their window closes, which the scheduled drain takes care of
+						drain();
+					} else if (!mDrainScheduled) {
+						scheduleDrain(mFlushInterval);
+					}
+				} catch (IOException e) {
+					Log.w(TAG, "Unable to store reading", e);
+				}
+			}
+		});
+	}
+
+	public long getPending() {
+		return mPending;
+	}
+
+	public void flush() {
+		mHandler.post(mFlushRunnable);
+	}
+
+	private void drain() {
+		mHandler.removeCallbacks(mDrainRunnable);
+		mDrainScheduled = false;
+		if (mStore == null) {
+			return;
+		}
+		try {
+			if (mStore.pending() == 0) {
+				return;
+			}
+			if (!isConnected()) {
+				scheduleRetry();
+				return;
+			}
+			boolean drained = mAggregate ? drainCells() : drainReadings();
+			if (!drained) {
+				scheduleRetry();
+				return;
+			}
+			mHttp.closeIdleConnections();
+		} catch (IOException e) {
+			Log.w(TAG, "Upload failed", e);
+			scheduleRetry();
+		}
+	}
+
+	// False as soon as an upload needs retrying
+	private boolean drainReadings() throws IOException {
+		while (mStore.peek(mBatch) > 0) {
+			if (mBulkUrl != null) {
+				int status = upload(mBatch);
+				if (isRejected(status)) {
+					quarantine(mBatch, 0, mBatch.size(), status);
+				} else if (!isSuccess(status)) {
+					return false;
+				}
+				commit(mBatch.size());
+			} else if (!uploadEach(mBatch)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// One POST per reading; the cursor still moves once, past whatever went up before a failure
+	private boolean uploadEach(Readings readings) throws IOException {
+		int done = 0;
+		try {
+			for (; done < readings.size(); done++) {
+				int status = upload(readings, done);
+				if (isRejected(status)) {
+					quarantine(readings, done, done + 1, status);
+				} else if (!isSuccess(status)) {
+					return false;
+				}
+			}
+			return true;
+		} finally {
+			if (done > 0) {
+				commit(done);
+			}
+		}
+	}
+
+	/*
+	 * One closed window per POST: every reading at the cursor from the window of the
+	 * first goes up in one array of cells, however many cells that is, so a cell is
+	 * never split between POSTs. The rest waits for its window to close.
+	 */
+	private boolean drainCells() throws IOException {
+		long closed = mCells.getWindowStart(System.currentTimeMillis());
+		while (mStore.peek(mBatch) > 0) {
+			long window = mCells.getWindowStart(mBatch.times[0]);
+			if (window >= closed) {
+				scheduleDrain(closed + mCells.getWindow() - System.currentTimeMillis());
+				return true;
+			}
+			mCells.clear();
+			int consumed = 0;
+			boolean ended = false;
+			while (!ended && mStore.peek(mBatch, consumed) > 0) {
+				for (int i = 0; i < mBatch.size(); i++) {
+					if (mCells.getWindowStart(mBatch.times[i]) != window) {
+						ended = true;
+						break;
+					}
+					mCells.add(mBatch.times[i], mBatch.temperatures[i], mBatch.humidities[i],
+							mBatch.lights[i], mBatch.latitudes[i], mBatch.longitudes[i]);
+					consumed++;
+				}
+			}
+			int status = upload(mCells);
+			if (isRejected(status)) {
+				quarantine(consumed, status);
+			} else if (!isSuccess(status)) {
+				return false;
+			}
+			commit(consumed);
+		}
+		return true;
+	}
+
+	private static boolean isSuccess(int status) {
+		return status >= 200 && status < 300;
+	}
+
+	// Retrying will not change the server's mind; anything else is sent again later
+	private static boolean isRejected(int status) {
+		return status >= 400 && status < 500 && status != 408 && status != 429;
+	}
+
+	private void quarantine(int count, int status) throws IOException {
+		for (int offset = 0; offset < count; offset += mBatch.size()) {
+			mStore.peek(mBatch, offset);
+			quarantine(mBatch, 0, Math.min(mBatch.size(), count - offset), status);
+		}
+	}
+
+	// Keeps refused readings on disk for inspection; the caller then commits them from the main store
+	private void quarantine(Readings readings, int from, int to, int status) throws IOException {
+		Log.w(TAG, "Server rejected " + (to - from) + " readings: " + status);
+		for (int i = from; i < to; i++) {
+			mRejected.append(readings.times[i], readings.temperatures[i], readings.humidities[i], readings.lights[i],
+					readings.latitudes[i], readings.longitudes[i]);
+		}
+		Metrics.UPLOADS_REJECTED.add(to - from);
+	}
+
+	private void commit(int readings) throws IOException {
+		mStore.commit(readings);
+		mPending = mStore.pending();
+		mRetryDelay = MIN_RETRY_DELAY;
+	}
+
+	private void scheduleDrain(long delay) {
+		mDrainScheduled = true;
+		mHandler.postDelayed(mDrainRunnable, delay);
+	}
+
+	private void scheduleRetry() {
+		scheduleDrain(mRetryDelay);
+		mRetryDelay = Math.min(mRetryDelay * 2, MAX_RETRY_DELAY);
+	}
+
+	// The same fields JsonData always posted, without the timestamp the endpoint never took
+	private int upload(Readings readings, int i) throws IOException {
+		mWriter.reset();
+		mWriter.writeReading(0, readings.temperatures[i], readings.humidities[i], readings.lights[i],
+				readings.latitudes[i], readings.longitudes[i]);
+		int status = post(mUrl);
+		if (isSuccess(status)) {
+			// Fix time to server acknowledgement
+			Metrics.UPLOAD_AGE.recordMillis(System.currentTimeMillis() - readings.times[i]);
+		}
+		return status;
+	}
+
+	private int upload(Readings readings) throws IOException {
+		mWriter.reset();
+		mWriter.writeReadings(readings);
+		int status = post(mBulkUrl);
+		if (isSuccess(status)) {
+			long now = System.currentTimeMillis();
+			for (int i = 0; i < readings.size(); i++) {
+				Metrics.UPLOAD_AGE.recordMillis(now - readings.times[i]);
+			}
+		}
+		return status;
+	}
+
+	private int upload(CellAggregator cells) throws IOException {
+		mWriter.reset();
+		mWriter.writeCells(cells);
+		int status = post(mCellUrl);
+		if (isSuccess(status)) {
+			// Newest fix in the cell to server acknowledgement
+			long now = System.currentTimeMillis();
+			for (int i = 0; i < cells.size(); i++) {
+				Metrics.UPLOAD_AGE.recordMillis(now - cells.getLastTime(i));
+			}
+		}
+		return status;
+	}
+
+	private int post(String url) throws IOException {
+		long start = Metrics.now();
+		int status;
+		try {
+			status = mHttp.post(url, mWriter.getBuffer(), mWriter.size());
+		} catch (IOException e) {
+			Metrics.UPLOADS_FAILED.inc();
+			throw e;
+		}
+		Metrics.HTTP.recordSince(start);
+		if (isSuccess(status)) {
+			Metrics.UPLOADS.inc();
+			Metrics.UPLOAD_BYTES.add(mWriter.size());
+		} else {
+			Metrics.UPLOADS_FAILED.inc();
+		}
+		return status;
+	}
+
+	private boolean isConnected() {
+		return mConnectivity == null || mConnectivity.isConnected();
+	}
+}
@@ -0,0 +1,45 @@
+package com.stylingandroid.ble;
+
+/*
+ * Reusable column buffer of readings, filled from ReadingStore and encoded for upload.
+ */
+class Readings {
+	final long[] times;
+	final double[] temperatures;
+	final double[] humidities;
+	final double[] lights;
+	final double[] latitudes;
+	final double[] longitudes;
+	private int mSize = 0;
+
+	Readings(int capacity) {
+		times = new long[capacity];
+		temperatures = new double[capacity];
+		humidities = new double[capacity];
+		lights = new double[capacity];
+		latitudes = new double[capacity];
+		longitudes = new double[capacity];
+	}
+
+	public int capacity() {
+		return times.length;
+	}
+
+	public int size() {
+		return mSize;
+	}
+
+	public void clear() {
+		mSize = 0;
+	}
+
+	public void add(long time, double temperature, double humidity, double light, double latitude, double longitude) {
+		times[mSize] = time;
+		temperatures[mSize] = temperature;
+		humidities[mSize] = humidity;
+		lights[mSize] = light;
+		latitudes[mSize] = latitude;
+		longitudes[mSize] = longitude;
+		mSize++;
+	}
+}
@@ -0,0 +1,77 @@
+package com.stylingandroid.ble;
+
+import android.os.Bundle;
+
+/*
+ * Packed form of a run of samples as it crosses from BleService to its clients:
+ * parallel primitive arrays, with device id and sensor folded into one int key.
+ */
+class SampleBatch {
+	static final String KEY_TIMES = "KEY_SAMPLE_TIMES";
+	static final String KEY_KEYS = "KEY_SAMPLE_KEYS";
+	static final String KEY_VALUES = "KEY_SAMPLE_VALUES";
+	static final String KEY_DEVICES = "KEY_SAMPLE_DEVICES";
+
+	private final long[] mTimes;
+	private final int[] mKeys;
+	private final float[] mValues;
+	private final String[] mDevices;
+
+	private SampleBatch(long[] times, int[] keys, float[] values, String[] devices) {
+		mTimes = times;
+		mKeys = keys;
+		mValues = values;
+		mDevices = devices;
+	}
+
+	static int key(int device, int sensor) {
+		return (device << 8) | sensor;
+	}
+
+	static Bundle pack(long[] times, int[] keys, float[] values, String[] devices) {
+		Bundle bundle = new Bundle();
+		bundle.putLongArray(KEY_TIMES, times);
+		bundle.putIntArray(KEY_KEYS, keys);
+		bundle.putFloatArray(KEY_VALUES, values);
+		bundle.putStringArray(KEY_DEVICES, devices);
+		return bundle;
+	}
+
+	static SampleBatch unpack(Bundle bundle) {
+		if (bundle == null || !bundle.containsKey(KEY_TIMES)) {
+			return null;
+		}
+		long[] times = bundle.getLongArray(KEY_TIMES);
+		int[] keys = bundle.getIntArray(KEY_KEYS);
+		float[] values = bundle.getFloatArray(KEY_VALUES);
+		if (times == null || keys == null || values == null) {
+			return null;
+		}
+		return new SampleBatch(times, keys, values, bundle.getStringArray(KEY_DEVICES));
+	}
+
+	public int size() {
+		return mTimes.length;
+	}
+
+	public long getTime(int i) {
+		return mTimes[i];
+	}
+
+	public int getDevice(int i) {
+		return mKeys[i] >>> 8;
+	}
+
+	public int getSensor(int i) {
+		return mKeys[i] & 0xFF;
+	}
+
+	public float getValue(int i) {
+		return mValues[i];
+	}
+
+	public String getAddress(int i) {
+		int device = getDevice(i);
+		return mDevices != null && device < mDevices.length ? mDevices[device] : null;
+	}
+}
@@ -0,0 +1,117 @@
+package com.stylingandroid.ble;
+
+import android.os.Bundle;
+import android.os.Handler;
+
+/*
+ * Coalesces samples in preallocated primitive arrays and hands them on as one
+ * packed Bundle when either the batch size or the flush interval is reached. In
+ * latest-only mode a sample replaces any earlier one of the same device and sensor
+ * still waiting in the batch.
+ */
+class SampleBatcher {
+	static final int DEFAULT_BATCH_SIZE = 64;
+	static final long DEFAULT_INTERVAL = 500;
+	static final int MAX_BATCH_SIZE = 1024;
+
+	interface Listener {
+		void onBatch(Bundle batch);
+	}
+
+	private final Handler mHandler;
+	private final Listener mListener;
+
+	private final long[] mTimes = new long[MAX_BATCH_SIZE];
+	private final int[] mKeys = new int[MAX_BATCH_SIZE];
+	private final float[] mValues = new float[MAX_BATCH_SIZE];
+	private int mCount = 0;
+
+	private int mBatchSize = DEFAULT_BATCH_SIZE;
+	private long mInterval = DEFAULT_INTERVAL;
+	private boolean mLatestOnly = false;
+	private boolean mFlushScheduled = false;
+	private String[] mDevices = null;
+
+	private final Runnable mFlushRunnable = new Runnable() {
+		@Override
+		public void run() {
+			flush();
+		}
+	};
+
+	SampleBatcher(Handler handler, Listener listener) {
+		mHandler = handler;
+		mListener = listener;
+	}
+
+	public void configure(int batchSize, long interval) {
+		configure(batchSize, interval, false);
+	}
+
+	public synchronized void configure(int batchSize, long interval, boolean latestOnly) {
+		mBatchSize = Math.max(1, Math.min(batchSize, MAX_BATCH_SIZE));
+		mInterval = Math.max(0, interval);
+		mLatestOnly = latestOnly;
+	}
+
+	public synchronized void setDevices(String[] devices) {
+		mDevices = devices;
+	}
+
+	public void add(long time, int device, int sensor, float value) {
+		boolean full;
+		int key = SampleBatch.key(device, sensor);
+		synchronized (this) {
+			int index = mCount;
+			if (mLatestOnly) {
+				// At most one entry per channel, so the scan is short
+				for (int i = 0; i < mCount; i++) {
+					if (mKeys[i] == key) {
+						index = i;
+						break;
+					}
+				}
+			}
+			mTimes[index] = time;
+			mKeys[index] = key;
+			mValues[index] = value;
+			if (index == mCount) {
+				mCount++;
+			}
+			full = mCount >= mBatchSize;
+			if (!full && !mFlushScheduled) {
+				mFlushScheduled = true;
+				mHandler.postDelayed(mFlushRunnable, mInterval);
+			}
+		}
+		if (full) {
+			flush();
+		}
+	}
+
+	public void flush() {
+		Bundle batch;
+		synchronized (this) {
+			mHandler.removeCallbacks(mFlushRunnable);
+			mFlushScheduled = false;
+			if (mCount == 0) {
+				return;
+			}
+			long[] times = new long[mCount];
+			int[] keys = new int[mCount];
+			float[] values = new float[mCount];
+			System.arraycopy(mTimes, 0, times, 0, mCount);
+			System.arraycopy(mKeys, 0, keys, 0, mCount);
+			System.arraycopy(mValues, 0, values, 0, mCount);
+			batch = SampleBatch.pack(times, keys, values, mDevices);
+			mCount = 0;
+		}
+		mListener.onBatch(batch);
+	}
+
+	public synchronized void clear() {
+		mHandler.removeCallbacks(mFlushRunnable);
+		mFlushScheduled = false;
+		mCount = 0;
+	}
+}
@@ -0,0 +1,224 @@
+package com.stylingandroid.ble;
+
+/*
+ * Drops samples that tell a client nothing new, before they are fanned out, drawn
+ * or recorded. Each stream, one sensor of one tag, is filtered on its own with
+ * its sensor's settings:
+ *
+ * DEADBAND       a sample passes once it is more than the threshold away from the
+ *                last one passed, together with the sample held just before it so
+ *                the jump is not smeared back to the last passed one. Holding the
+ *                last passed value reconstructs the stream to within the threshold,
+ *                interpolating linearly to within twice the threshold.
+ * SWINGING_DOOR  passes the end points of straight runs. Interpolating linearly
+ *                between passed samples reconstructs every dropped one to within
+ *                the threshold. A sample passes late, with its own timestamp, once
+ *                the sample after it no longer fits the run.
+ *
+ * The threshold is the larger of the absolute one and the relative one times the
+ * last passed value. Either mode passes a sample at least once per heartbeat, so a
+ * steady tag still shows it is alive. Only the processor thread filters; settings
+ * can be changed from any thread.
+ *
+ * Clients that do not ask for filtered samples, see Subscription, get the stream
+ * as it is.
+ */
+class SampleFilter {
+	static final int MODE_OFF = 0;
+	static final int MODE_DEADBAND = 1;
+	static final int MODE_SWINGING_DOOR = 2;
+
+	static final long DEFAULT_HEARTBEAT = 5000;	//well inside ReadingFusion's maximum gap
+
+	interface Listener {
+		void onPassed(int sensor, long time, float value);
+	}
+
+	static final class Settings {
+		final int mode;
+		final float absolute;
+		final float relative;
+		final long heartbeat;
+
+		Settings(int mode, float absolute, float relative, long heartbeat) {
+			this.mode = mode;
+			this.absolute = absolute;
+			this.relative = relative;
+			this.heartbeat = heartbeat;
+		}
+
+		float threshold(float reference) {
+			return Math.max(absolute, relative * Math.abs(reference));
+		}
+	}
+
+	// Well below what the display rounds to or the uploader keeps
+	private static final Settings[] DEFAULTS = {
+			new Settings(MODE_DEADBAND, 0.05f, 0, DEFAULT_HEARTBEAT),	//temperature, C
+			new Settings(MODE_DEADBAND, 0.2f, 0, DEFAULT_HEARTBEAT),		//humidity, %
+			new Settings(MODE_DEADBAND, 1f, 0.02f, DEFAULT_HEARTBEAT)	//light, lux
+	};
+
+	private volatile Settings[] mSettings = DEFAULTS.clone();	//copy on write
+
+	// Per stream, indexed by device * SensorType.COUNT + sensor
+	private Settings[] mApplied = new Settings[0];	//settings the stream state was built with
+	private boolean[] mHasLast = new boolean[0];
+	private long[] mLastTime = new long[0];			//last passed sample
+	private float[] mLastValue = new float[0];
+	private boolean[] mHasHeld = new boolean[0];
+	private long[] mHeldTime = new long[0];			//newest sample not passed yet
+	private float[] mHeldValue = new float[0];
+	private double[] mMinSlope = new double[0];		//slopes from the last passed sample that fit the whole run
+	private double[] mMaxSlope = new double[0];
+
+	static boolean isValidMode(int mode) {
+		return mode == MODE_OFF || mode == MODE_DEADBAND || mode == MODE_SWINGING_DOOR;
+	}
+
+	public Settings getSettings(int sensor) {
+		return mSettings[sensor];
+	}
+
+	public void setSettings(int sensor, Settings settings) {
+		Settings[] current = mSettings.clone();
+		current[sensor] = settings != null ? settings : DEFAULTS[sensor];
+		mSettings = current;
+	}
+
+	public void filter(int device, int sensor, long time, float value, Listener listener) {
+		Settings settings = mSettings[sensor];
+		if (settings.mode == MODE_OFF) {
+			listener.onPassed(sensor, time, value);
+			return;
+		}
+		int stream = device * SensorType.COUNT + sensor;
+		ensureCapacity(stream + 1);
+		if (mApplied[stream] != settings) {
+			// New stream or new settings: start over from this sample
+			mApplied[stream] = settings;
+			mHasLast[stream] = false;
+			mHasHeld[stream] = false;
+		}
+		if (!mHasLast[stream]) {
+			pass(stream, sensor, time, value, listener);
+		} else if (settings.mode == MODE_DEADBAND) {
+			deadband(stream, sensor, time, value, settings, listener);
+		} else if (settings.mode == MODE_SWINGING_DOOR) {
+			swingingDoor(stream, sensor, time, value, settings, listener);
+		}
+	}
+
+	private void deadband(int stream, int sensor, long time, float value, Settings settings, Listener listener) {
+		if (Math.abs(value - mLastValue[stream]) > settings.threshold(mLastValue[stream])) {
+			if (mHasHeld[stream]) {
+				// Pins the jump between the held sample and this one, rather than ramping up from the last passed
+				pass(stream, sensor, mHeldTime[stream], mHeldValue[stream], listener);
+			}
+			pass(stream, sensor, time, value, listener);
+			return;
+		}
+		if (mHasHeld[stream]) {
+			// Within the threshold of the last passed sample, like the one replacing it
+			Metrics.SAMPLES_SUPPRESSED.inc();
+		}
+		if (time - mLastTime[stream] >= settings.heartbeat) {
+			pass(stream, sensor, time, value, listener);
+		} else {
+			mHasHeld[stream] = true;
+			mHeldTime[stream] = time;
+			mHeldValue[stream] = value;
+		}
+	}
+
+	private void swingingDoor(int stream, int sensor, long time, float value, Settings settings, Listener listener) {
+		if (mHasHeld[stream] && !fits(stream, time, value)) {
+			// The run ends at the held sample; the new one starts the next
+			pass(stream, sensor, mHeldTime[stream], mHeldValue[stream], listener);
+		} else if (mHasHeld[stream]) {
+			// The held sample is now inside the run and will never be needed
+			Metrics.SAMPLES_SUPPRESSED.inc();
+		}
+		if (time <= mLastTime[stream]) {
+			// No slope to a sample at the same instant; it can only stand on its own
+			pass(stream, sensor, time, value, listener);
+			return;
+		}
+		double dt = time - mLastTime[stream];
+		float threshold = settings.threshold(mLastValue[stream]);
+		double low = (value - threshold - mLastValue[stream]) / dt;
+		double high = (value + threshold - mLastValue[stream]) / dt;
+		if (mHasHeld[stream]) {
+			mMinSlope[stream] = Math.max(mMinSlope[stream], low);
+			mMaxSlope[stream] = Math.min(mMaxSlope[stream], high);
+		} else {
+			mMinSlope[stream] = low;
+			mMaxSlope[stream] = high;
+		}
+		mHasHeld[stream] = true;
+		mHeldTime[stream] = time;
+		mHeldValue[stream] = value;
+		if (time - mLastTime[stream] >= settings.heartbeat) {
+			pass(stream, sensor, time, value, listener);
+		}
+	}
+
+	// Whether a line from the last passed sample to this one stays within the threshold of every held sample
+	private boolean fits(int stream, long time, float value) {
+		if (time <= mLastTime[stream]) {
+			return false;
+		}
+		double slope = (value - mLastValue[stream]) / (double) (time - mLastTime[stream]);
+		return slope >= mMinSlope[stream] && slope <= mMaxSlope[stream];
+	}
+
+	private void pass(int stream, int sensor, long time, float value, Listener listener) {
+		mHasLast[stream] = true;
+		mLastTime[stream] = time;
+		mLastValue[stream] = value;
+		mHasHeld[stream] = false;
+		listener.onPassed(sensor, time, value);
+	}
+
+	private void ensureCapacity(int streams) {
+		if (streams <= mApplied.length) {
+			return;
+		}
+		int size = Math.max(streams, mApplied.length * 2);
+		Settings[] applied = new Settings[size];
+		System.arraycopy(mApplied, 0, applied, 0, mApplied.length);
+		mApplied = applied;
+		mHasLast = grow(mHasLast, size);
+		mLastTime = grow(mLastTime, size);
+		mLastValue = grow(mLastValue, size);
+		mHasHeld = grow(mHasHeld, size);
+		mHeldTime = grow(mHeldTime, size);
+		mHeldValue = grow(mHeldValue, size);
+		mMinSlope = grow(mMinSlope, size);
+		mMaxSlope = grow(mMaxSlope, size);
+	}
+
+	private static boolean[] grow(boolean[] array, int size) {
+		boolean[] grown = new boolean[size];
+		System.arraycopy(array, 0, grown, 0, array.length);
+		return grown;
+	}
+
+	private static long[] grow(long[] array, int size) {
+		long[] grown = new long[size];
+		System.arraycopy(array, 0, grown, 0, array.length);
+		return grown;
+	}
+
+	private static float[] grow(float[] array, int size) {
+		float[] grown = new float[size];
+		System.arraycopy(array, 0, grown, 0, array.length);
+		return grown;
+	}
+
+	private static double[] grow(double[] array, int size) {
+		double[] grown = new double[size];
+		System.arraycopy(array, 0, grown, 0, array.length);
+		return grown;
+	}
+}
@@ -0,0 +1,126 @@
+package com.stylingandroid.ble;
+
+import android.os.Process;
+import android.util.Log;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * The one thread that decodes and fans out samples. GATT callbacks only copy raw
+ * notifications into their session's SampleRing and return, so a slow client can
+ * no longer hold up the binder threads. The thread parks when every ring is empty;
+ * producers unpark it only when it has actually gone to sleep.
+ */
+class SampleProcessor implements Runnable {
+	private static final String TAG = "SampleProcessor";
+	private static final int BURST = 64;	//per ring per pass, so one busy tag cannot starve the rest
+	private static final long IDLE_PARK = TimeUnit.MILLISECONDS.toNanos(100);
+	private static final long STOP_TIMEOUT = 1000;	//ms; a pass over the rings takes far less
+
+	private final SampleRing.Consumer mConsumer;
+	private final Object mLock = new Object();
+	private volatile SampleRing[] mRings = new SampleRing[0];
+	private volatile boolean mRunning = false;
+	private volatile boolean mSleeping = false;
+	private Thread mThread = null;
+
+	SampleProcessor(SampleRing.Consumer consumer) {
+		mConsumer = consumer;
+	}
+
+	public void start() {
+		synchronized (mLock) {
+			if (mThread == null) {
+				mRunning = true;
+				mThread = new Thread(this, TAG);
+				mThread.start();
+			}
+		}
+	}
+
+	// Returns once the thread has finished its last pass, so nothing downstream is called after
+	public void stop() {
+		Thread thread;
+		synchronized (mLock) {
+			thread = mThread;
+			mThread = null;
+			mRunning = false;
+		}
+		if (thread == null) {
+			return;
+		}
+		LockSupport.unpark(thread);
+		try {
+			thread.join(STOP_TIMEOUT);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (thread.isAlive()) {
+			Log.w(TAG, "Processor thread still running after " + STOP_TIMEOUT + "ms");
+		}
+	}
+
+	// Copy on write: the processing loop reads the array without locking
+	public void add(SampleRing ring) {
+		synchronized (mLock) {
+			SampleRing[] rings = new SampleRing[mRings.length + 1];
+			System.arraycopy(mRings, 0, rings, 0, mRings.length);
+			rings[mRings.length] = ring;
+			mRings = rings;
+		}
+	}
+
+	public void remove(SampleRing ring) {
+		synchronized (mLock) {
+			SampleRing[] current = mRings;
+			for (int i = 0; i < current.length; i++) {
+				if (current[i] == ring) {
+					SampleRing[] rings = new SampleRing[current.length - 1];
+					System.arraycopy(current, 0, rings, 0, i);
+					System.arraycopy(current, i + 1, rings, i, current.length - i - 1);
+					mRings = rings;
+					return;
+				}
+			}
+		}
+	}
+
+	public int getDepth() {
+		int depth = 0;
+		for (SampleRing ring : mRings) {
+			depth += ring.size();
+		}
+		return depth;
+	}
+
+	// Called by producers after an offer
+	public void wake() {
+		if (mSleeping) {
+			Thread thread = mThread;
+			if (thread != null) {
+				LockSupport.unpark(thread);
+			}
+		}
+	}
+
+	@Override
+	public void run() {
+		Process.setThreadPriority(Process.THREAD_PRIORITY_DISPLAY);
+		while (mRunning) {
+			int processed = 0;
+			SampleRing[] rings = mRings;
+			for (SampleRing ring : rings) {
+				processed += ring.drain(mConsumer, BURST);
+			}
+			if (processed == 0) {
+				mSleeping = true;
+				// Re-check after announcing the sleep, or an offer in between would be missed
+				if (getDepth() == 0 && mRunning) {
+					LockSupport.parkNanos(this, IDLE_PARK);
+				}
+				mSleeping = false;
+			}
+		}
+	}
+}
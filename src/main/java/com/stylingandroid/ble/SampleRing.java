@@ -0,0 +1,91 @@
+package com.stylingandroid.ble;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Single producer, single consumer ring of raw notifications. The GATT callbacks of
+ * one link are serialised by the stack, so each session's callbacks are the only
+ * producer of its ring and SampleProcessor is the only consumer. Every slot is
+ * preallocated; offering copies the value bytes and never blocks or allocates, and
+ * a full ring drops the notification instead of stalling the binder thread.
+ */
+class SampleRing {
+	static final int DEFAULT_CAPACITY = 1024;
+	static final int MAX_VALUE_LENGTH = 20;	//ATT_MTU of 23 less the notification header
+
+	interface Consumer {
+		// time is elapsedRealtimeNanos at the callback; value is only valid for the duration of the call
+		void onRawSample(CharacteristicDecoder decoder, int device, long time, byte[] value, int length);
+	}
+
+	private final int mMask;
+	private final CharacteristicDecoder[] mDecoders;
+	private final int[] mDevices;
+	private final long[] mTimes;
+	private final byte[][] mValues;
+	private final int[] mLengths;
+
+	private final AtomicLong mHead = new AtomicLong();	//next slot to read, written by the consumer
+	private final AtomicLong mTail = new AtomicLong();	//next slot to write, written by the producer
+	private long mCachedHead = 0;	//producer's last view of mHead
+
+	SampleRing() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	SampleRing(int capacity) {
+		int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+		mMask = size - 1;
+		mDecoders = new CharacteristicDecoder[size];
+		mDevices = new int[size];
+		mTimes = new long[size];
+		mValues = new byte[size][MAX_VALUE_LENGTH];
+		mLengths = new int[size];
+	}
+
+	public int capacity() {
+		return mMask + 1;
+	}
+
+	public int size() {
+		return (int) (mTail.get() - mHead.get());
+	}
+
+	// Producer side only
+	public boolean offer(CharacteristicDecoder decoder, int device, long time, byte[] value) {
+		long tail = mTail.get();
+		if (tail - mCachedHead > mMask) {
+			mCachedHead = mHead.get();
+			if (tail - mCachedHead > mMask) {
+				return false;
+			}
+		}
+		int slot = (int) tail & mMask;
+		int length = value != null ? Math.min(value.length, MAX_VALUE_LENGTH) : 0;
+		if (length > 0) {
+			System.arraycopy(value, 0, mValues[slot], 0, length);
+		}
+		mDecoders[slot] = decoder;
+		mDevices[slot] = device;
+		mTimes[slot] = time;
+		mLengths[slot] = length;
+		// Ordered store: the slot is visible before the consumer can see the new tail
+		mTail.lazySet(tail + 1);
+		return true;
+	}
+
+	// Consumer side only; returns the number of samples handed to the consumer
+	public int drain(Consumer consumer, int max) {
+		long head = mHead.get();
+		long tail = mTail.get();
+		int count = 0;
+		while (head < tail && count < max) {
+			int slot = (int) head & mMask;
+			consumer.onRawSample(mDecoders[slot], mDevices[slot], mTimes[slot], mValues[slot], mLengths[slot]);
+			head++;
+			count++;
+			mHead.lazySet(head);
+		}
+		return count;
+	}
+}
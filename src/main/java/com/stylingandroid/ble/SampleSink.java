@@ -0,0 +1,5 @@
+package com.stylingandroid.ble;
+
+interface SampleSink {
+	void onSample(int sensor, float value);
+}
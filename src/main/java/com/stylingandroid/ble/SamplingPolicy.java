@@ -0,0 +1,64 @@
+package com.stylingandroid.ble;
+
+/*
+ * Picks the SensorTag sampling period from the vehicle's speed so that readings
+ * stay roughly a fixed distance apart: slow at walking pace to spare the radio and
+ * the CPU, fast when driving to keep the spatial resolution. A new period is only
+ * reported once it moves far enough from the current one to be worth a GATT write.
+ */
+class SamplingPolicy {
+	static final int MIN_PERIOD = 100;			//firmware lower limit
+	static final int MAX_PERIOD = 2550;			//one byte of 10ms units
+	static final int DEFAULT_PERIOD = 1000;		//until the first speed is known
+	static final float DEFAULT_SPACING = 10;	//metres between samples
+	private static final float HYSTERESIS = 0.25f;
+
+	private float mSpacing = DEFAULT_SPACING;
+	private int mPeriod = DEFAULT_PERIOD;
+
+	public void configure(float spacing) {
+		mSpacing = spacing;
+	}
+
+	public int getPeriod() {
+		return mPeriod;
+	}
+
+	public void reset() {
+		mPeriod = DEFAULT_PERIOD;
+	}
+
+	// Speed in m/s; returns true when the period changed
+	public boolean onSpeed(float speed) {
+		int period = getPeriod(speed, mSpacing);
+		if (period == mPeriod) {
+			return false;
+		}
+		boolean limit = period == MIN_PERIOD || period == MAX_PERIOD;
+		if (!limit && Math.abs(period - mPeriod) < mPeriod * HYSTERESIS) {
+			return false;
+		}
+		mPeriod = period;
+		return true;
+	}
+
+	static int getPeriod(float speed, float spacing) {
+		if (!(speed > 0)) {
+			return MAX_PERIOD;
+		}
+		float period = spacing * 1000 / speed;
+		if (period <= MIN_PERIOD) {
+			return MIN_PERIOD;
+		}
+		if (period >= MAX_PERIOD) {
+			return MAX_PERIOD;
+		}
+		return Math.round(period / 10) * 10;
+	}
+
+	// The period characteristics take the period in units of 10ms
+	static byte[] encode(int period) {
+		int units = Math.max(MIN_PERIOD, Math.min(MAX_PERIOD, period)) / 10;
+		return new byte[] {(byte) units};
+	}
+}
@@ -0,0 +1,151 @@
+package com.stylingandroid.ble;
+
+import android.bluetooth.le.ScanSettings;
+import android.os.Handler;
+
+/*
+ * Runs short scan windows in the background, alongside any open connections. The
+ * gap between windows snaps back to the minimum while new tags keep turning up and
+ * doubles, up to the mode's maximum, while the neighbourhood stays the same, which
+ * bounds the radio time spent on discovery.
+ */
+class ScanScheduler {
+	public enum Mode {
+		OFF(0, 0, 0, ScanSettings.SCAN_MODE_LOW_POWER),
+		LOW_POWER(2000, 30 * 1000, 5 * 60 * 1000, ScanSettings.SCAN_MODE_LOW_POWER),
+		BALANCED(3000, 10 * 1000, 2 * 60 * 1000, ScanSettings.SCAN_MODE_BALANCED),
+		AGGRESSIVE(5000, 5 * 1000, 30 * 1000, ScanSettings.SCAN_MODE_LOW_LATENCY);
+
+		final long window;
+		final long minInterval;
+		final long maxInterval;
+		final int scanMode;
+
+		Mode(long window, long minInterval, long maxInterval, int scanMode) {
+			this.window = window;
+			this.minInterval = minInterval;
+			this.maxInterval = maxInterval;
+			this.scanMode = scanMode;
+		}
+	}
+
+	interface Listener {
+		// False if Bluetooth is off and no window could be opened
+		boolean isBluetoothReady();
+
+		void onWindowFinished(boolean requested);
+	}
+
+	private final Handler mHandler;
+	private final SensorTagScanner mScanner;
+	private final Listener mListener;
+
+	private Mode mMode = Mode.OFF;
+	private long mInterval;
+	private boolean mInWindow = false;
+	private boolean mRequested = false;
+	private int mNewDevices = 0;
+
+	private final Runnable mStartRunnable = new Runnable() {
+		@Override
+		public void run() {
+			startWindow(mMode.window, mMode.scanMode, false);
+		}
+	};
+
+	private final Runnable mStopRunnable = new Runnable() {
+		@Override
+		public void run() {
+			finishWindow();
+		}
+	};
+
+	ScanScheduler(Handler handler, SensorTagScanner scanner, Listener listener) {
+		mHandler = handler;
+		mScanner = scanner;
+		mListener = listener;
+	}
+
+	public Mode getMode() {
+		return mMode;
+	}
+
+	public void setMode(Mode mode) {
+		mMode = mode;
+		mInterval = mode.minInterval;
+		if (!mInWindow) {
+			mHandler.removeCallbacks(mStartRunnable);
+			if (mode != Mode.OFF) {
+				mHandler.post(mStartRunnable);
+			}
+		}
+	}
+
+	// A window the user asked for; also resets the background back-off
+	public void scanNow(long window) {
+		mInterval = mMode.minInterval;
+		if (mInWindow) {
+			mRequested = true;
+			mHandler.removeCallbacks(mStopRunnable);
+			mHandler.postDelayed(mStopRunnable, window);
+		} else {
+			mHandler.removeCallbacks(mStartRunnable);
+			startWindow(window, ScanSettings.SCAN_MODE_LOW_LATENCY, true);
+		}
+	}
+
+	public void onDeviceAdded() {
+		mNewDevices++;
+	}
+
+	public void stop() {
+		mHandler.removeCallbacks(mStartRunnable);
+		mHandler.removeCallbacks(mStopRunnable);
+		if (mInWindow) {
+			mScanner.stop(false);
+			mInWindow = false;
+		}
+	}
+
+	private void startWindow(long window, int scanMode, boolean requested) {
+		mRequested = requested;
+		mNewDevices = 0;
+		if (!mListener.isBluetoothReady() || !mScanner.start(scanMode)) {
+			if (requested) {
+				mListener.onWindowFinished(true);
+			}
+			scheduleNext(mMode.maxInterval);
+			return;
+		}
+		mInWindow = true;
+		mHandler.postDelayed(mStopRunnable, window);
+	}
+
+	private void finishWindow() {
+		boolean requested = mRequested;
+		mInWindow = false;
+		mRequested = false;
+		if (requested) {
+			// A full-power window: whatever was not heard has gone
+			mScanner.stop(true);
+		} else {
+			mScanner.stop(false);
+			// Low duty windows can miss a tag, so give it two windows before calling it lost
+			mScanner.expireOlderThan(Math.max(SensorTagScanner.DEFAULT_LOST_TIMEOUT, 2 * (mInterval + mMode.window)));
+		}
+		if (mNewDevices > 0) {
+			mInterval = mMode.minInterval;
+		} else {
+			mInterval = Math.min(mInterval * 2, mMode.maxInterval);
+		}
+		mListener.onWindowFinished(requested);
+		scheduleNext(mInterval);
+	}
+
+	private void scheduleNext(long delay) {
+		mHandler.removeCallbacks(mStartRunnable);
+		if (mMode != Mode.OFF && delay > 0) {
+			mHandler.postDelayed(mStartRunnable, delay);
+		}
+	}
+}
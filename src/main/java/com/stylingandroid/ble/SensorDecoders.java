@@ -0,0 +1,67 @@
+package com.stylingandroid.ble;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/*
+ * Registry of decoders keyed by data characteristic UUID.
+ */
+class SensorDecoders {
+	private final Map<UUID, CharacteristicDecoder> mDecoders = new HashMap<UUID, CharacteristicDecoder>();
+
+	public static SensorDecoders createDefault() {
+		SensorDecoders decoders = new SensorDecoders();
+		decoders.register(BleService.UUID_HUMIDITY_DATA, new HumidityDecoder());
+		decoders.register(BleService.UUID_LUXOMETER_DATA, new LuxometerDecoder());
+		return decoders;
+	}
+
+	public void register(UUID characteristic, CharacteristicDecoder decoder) {
+		mDecoders.put(characteristic, decoder);
+	}
+
+	public CharacteristicDecoder get(UUID characteristic) {
+		return mDecoders.get(characteristic);
+	}
+
+	static int uint16(byte[] value, int offset) {
+		return (value[offset] & 0xFF) | ((value[offset + 1] & 0xFF) << 8);
+	}
+
+	// HDC1000: temperature and relative humidity, two little-endian uint16
+	static class HumidityDecoder implements CharacteristicDecoder {
+		@Override
+		public void decode(byte[] value, int length, SampleSink sink) {
+			if (value == null || length < 4) {
+				return;
+			}
+			int t = uint16(value, 0);
+			int h = uint16(value, 2);
+			sink.onSample(SensorType.TEMPERATURE, ((float) t / 65536f) * 165f - 40f);
+			sink.onSample(SensorType.HUMIDITY, ((float) h / 65536f) * 100f);
+		}
+	}
+
+	// OPT3001: 12 bit mantissa, 4 bit exponent, lux = m * 0.01 * 2^e
+	static class LuxometerDecoder implements CharacteristicDecoder {
+		private static final double[] EXPONENTS = new double[16];
+
+		static {
+			for (int e = 0; e < EXPONENTS.length; e++) {
+				EXPONENTS[e] = 0.01d * (1 << e);
+			}
+		}
+
+		@Override
+		public void decode(byte[] value, int length, SampleSink sink) {
+			if (value == null || length < 2) {
+				return;
+			}
+			int lux = uint16(value, 0);
+			int m = lux & 0x0FFF;
+			int e = (lux & 0xF000) >> 12;
+			sink.onSample(SensorType.LIGHT, (float) (m * EXPONENTS[e]));
+		}
+	}
+}
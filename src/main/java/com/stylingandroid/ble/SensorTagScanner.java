@@ -0,0 +1,295 @@
+package com.stylingandroid.ble;
+
+import android.annotation.TargetApi;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.le.BluetoothLeScanner;
+import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
+import android.os.Build;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Finds SensorTags and keeps a table of what is in range. On Lollipop and later the
+ * name filter and result batching run in the controller where the chip supports it;
+ * older releases fall back to startLeScan. Listeners see incremental add, update and
+ * lost events; RSSI updates are rate limited so a busy depot does not flood clients.
+ * A connected tag stops advertising, so tags the listener reports active are never
+ * expired.
+ */
+class SensorTagScanner {
+	private static final String TAG = "SensorTagScanner";
+
+	static final String DEVICE_NAME = "CC1350 SensorTag";
+	static final long DEFAULT_LOST_TIMEOUT = 10 * 1000;
+	private static final long REPORT_DELAY = 1000;
+	private static final long FLUSH_DELAY = REPORT_DELAY;	//flushed batch results arrive asynchronously
+	private static final int RSSI_THRESHOLD = 4;
+	private static final long UPDATE_INTERVAL = 2000;
+
+	static class DiscoveredDevice {
+		final BluetoothDevice device;
+		final String address;
+		int rssi;
+		long lastSeen;
+		int reportedRssi;
+		long reportedAt;
+
+		DiscoveredDevice(BluetoothDevice device, int rssi, long now) {
+			this.device = device;
+			this.address = device.getAddress();
+			this.rssi = rssi;
+			this.lastSeen = now;
+			this.reportedRssi = rssi;
+			this.reportedAt = now;
+		}
+	}
+
+	interface Listener {
+		void onDeviceAdded(DiscoveredDevice device);
+
+		void onDeviceUpdated(DiscoveredDevice device);
+
+		void onDeviceLost(DiscoveredDevice device);
+
+		// True while the tag has a GATT session, connected or reconnecting
+		boolean isActive(String address);
+	}
+
+	private final BluetoothAdapter mAdapter;
+	private final Handler mHandler;
+	private final Listener mListener;
+	private final Map<String, DiscoveredDevice> mDevices = new HashMap<String, DiscoveredDevice>();
+
+	private boolean mScanning = false;
+	private long mScanStarted = 0;
+	private Object mScanCallback = null;
+	private Object mStoppingCallback = null;	//flushed, stopped once its results are in
+	private long mExpireBefore = -1;	//expiry waiting for the flush, -1 if none
+
+	private final BluetoothAdapter.LeScanCallback mLegacyCallback = new BluetoothAdapter.LeScanCallback() {
+		@Override
+		public void onLeScan(BluetoothDevice device, int rssi, byte[] scanRecord) {
+			if (device != null && DEVICE_NAME.equals(device.getName())) {
+				onDevice(device, rssi);
+			}
+		}
+	};
+
+	private final Runnable mFinishStopRunnable = new Runnable() {
+		@Override
+		public void run() {
+			finishStop();
+		}
+	};
+
+	SensorTagScanner(BluetoothAdapter adapter, Handler handler, Listener listener) {
+		mAdapter = adapter;
+		mHandler = handler;
+		mListener = listener;
+	}
+
+	public boolean isScanning() {
+		return mScanning;
+	}
+
+	public boolean start() {
+		return start(Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP ? ScanSettings.SCAN_MODE_LOW_LATENCY : 0);
+	}
+
+	public boolean start(int scanMode) {
+		if (mScanning) {
+			return true;
+		}
+		if (mStoppingCallback != null) {
+			// The new window sees the same tags, so the previous window's expiry can wait for its end
+			mHandler.removeCallbacks(mFinishStopRunnable);
+			mExpireBefore = -1;
+			finishStop();
+		}
+		mScanStarted = SystemClock.elapsedRealtime();
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+			mScanning = startScanner(scanMode);
+		} else {
+			mScanning = mAdapter.startLeScan(mLegacyCallback);
+		}
+		return mScanning;
+	}
+
+	@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+	private boolean startScanner(int scanMode) {
+		BluetoothLeScanner scanner = mAdapter.getBluetoothLeScanner();
+		if (scanner == null) {
+			return false;
+		}
+		List<ScanFilter> filters = new ArrayList<ScanFilter>();
+		filters.add(new ScanFilter.Builder().setDeviceName(DEVICE_NAME).build());
+		ScanSettings.Builder settings = new ScanSettings.Builder().setScanMode(scanMode);
+		if (mAdapter.isOffloadedScanBatchingSupported()) {
+			settings.setReportDelay(REPORT_DELAY);
+		}
+		ScanCallback callback = new ScanCallback() {
+			@Override
+			public void onScanResult(int callbackType, ScanResult result) {
+				onDevice(result.getDevice(), result.getRssi());
+			}
+
+			@Override
+			public void onBatchScanResults(List<ScanResult> results) {
+				for (int i = 0; i < results.size(); i++) {
+					ScanResult result = results.get(i);
+					onDevice(result.getDevice(), result.getRssi());
+				}
+			}
+
+			@Override
+			public void onScanFailed(int errorCode) {
+				Log.w(TAG, "Scan failed: " + errorCode);
+				mScanning = false;
+			}
+		};
+		mScanCallback = callback;
+		scanner.startScan(filters, settings.build(), callback);
+		return true;
+	}
+
+	/*
+	 * Ends the scan window; with expireUnseen, devices not heard during it are reported
+	 * lost. On Lollipop and later the controller's batched results are flushed first
+	 * and the scan keeps its callback until they have been delivered, so expiry only
+	 * runs once they are in.
+	 */
+	public void stop(boolean expireUnseen) {
+		if (!mScanning) {
+			return;
+		}
+		mScanning = false;
+		if (expireUnseen) {
+			mExpireBefore = mScanStarted;
+		}
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && flushScanner()) {
+			mHandler.postDelayed(mFinishStopRunnable, FLUSH_DELAY);
+			return;
+		}
+		if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+			mAdapter.stopLeScan(mLegacyCallback);
+		}
+		finishStop();
+	}
+
+	// False if there was no scan to flush
+	@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+	private boolean flushScanner() {
+		BluetoothLeScanner scanner = mAdapter.getBluetoothLeScanner();
+		Object callback = mScanCallback;
+		mScanCallback = null;
+		if (scanner == null || callback == null) {
+			return false;
+		}
+		scanner.flushPendingScanResults((ScanCallback) callback);
+		mStoppingCallback = callback;
+		return true;
+	}
+
+	private void finishStop() {
+		if (mStoppingCallback != null) {
+			stopScanner(mStoppingCallback);
+			mStoppingCallback = null;
+		}
+		if (mExpireBefore >= 0) {
+			long seenBefore = mExpireBefore;
+			mExpireBefore = -1;
+			expire(seenBefore);
+		}
+	}
+
+	@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+	private void stopScanner(Object callback) {
+		BluetoothLeScanner scanner = mAdapter.getBluetoothLeScanner();
+		if (scanner != null) {
+			scanner.stopScan((ScanCallback) callback);
+		}
+	}
+
+	public void expireOlderThan(long timeout) {
+		long seenBefore = SystemClock.elapsedRealtime() - timeout;
+		if (mStoppingCallback != null) {
+			mExpireBefore = Math.max(mExpireBefore, seenBefore);
+		} else {
+			expire(seenBefore);
+		}
+	}
+
+	private void expire(long seenBefore) {
+		List<DiscoveredDevice> lost = null;
+		synchronized (this) {
+			for (Iterator<DiscoveredDevice> it = mDevices.values().iterator(); it.hasNext(); ) {
+				DiscoveredDevice device = it.next();
+				if (device.lastSeen < seenBefore && !mListener.isActive(device.address)) {
+					it.remove();
+					if (lost == null) {
+						lost = new ArrayList<DiscoveredDevice>();
+					}
+					lost.add(device);
+				}
+			}
+		}
+		if (lost != null) {
+			for (DiscoveredDevice device : lost) {
+				mListener.onDeviceLost(device);
+			}
+		}
+	}
+
+	public synchronized BluetoothDevice getDevice(String address) {
+		DiscoveredDevice device = mDevices.get(address);
+		return device != null ? device.device : null;
+	}
+
+	public synchronized Collection<DiscoveredDevice> getDevices() {
+		return new ArrayList<DiscoveredDevice>(mDevices.values());
+	}
+
+	private void onDevice(BluetoothDevice device, int rssi) {
+		if (device == null) {
+			return;
+		}
+		long now = SystemClock.elapsedRealtime();
+		DiscoveredDevice discovered;
+		boolean added = false;
+		boolean updated = false;
+		synchronized (this) {
+			discovered = mDevices.get(device.getAddress());
+			if (discovered == null) {
+				discovered = new DiscoveredDevice(device, rssi, now);
+				mDevices.put(discovered.address, discovered);
+				added = true;
+			} else {
+				discovered.rssi = rssi;
+				discovered.lastSeen = now;
+				if (Math.abs(rssi - discovered.reportedRssi) >= RSSI_THRESHOLD || now - discovered.reportedAt >= UPDATE_INTERVAL) {
+					discovered.reportedRssi = rssi;
+					discovered.reportedAt = now;
+					updated = true;
+				}
+			}
+		}
+		if (added) {
+			Log.d(TAG, "Added " + device.getName() + ": " + discovered.address);
+			mListener.onDeviceAdded(discovered);
+		} else if (updated) {
+			mListener.onDeviceUpdated(discovered);
+		}
+	}
+}
@@ -0,0 +1,22 @@
+package com.stylingandroid.ble;
+
+/*
+ * Sensor channels carried through the sample pipeline. Plain ints so they can
+ * live in primitive arrays and message args without boxing.
+ */
+final class SensorType {
+	static final int TEMPERATURE = 0;
+	static final int HUMIDITY = 1;
+	static final int LIGHT = 2;
+
+	static final int COUNT = 3;
+
+	private static final String[] NAMES = {"temperature", "humidity", "light"};
+
+	private SensorType() {
+	}
+
+	static String name(int sensor) {
+		return NAMES[sensor];
+	}
+}
@@ -0,0 +1,198 @@
+package com.stylingandroid.ble;
+
+import android.os.ParcelFileDescriptor;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/*
+ * Sample ring in a memory-mapped file, for clients in other processes that want
+ * the full stream at full precision without a Message per batch. BleService is the
+ * only writer; readers map the file read-only through the descriptor handed out at
+ * registration and follow the writer by sequence number, so a slow reader loses
+ * the oldest samples rather than holding up the service.
+ *
+ * Layout, native byte order:
+ *   header  magic, version, capacity, 0, write sequence (long), padded to 64 bytes
+ *   slots   sequence (long), elapsedRealtime ms (long), key (int), value (float)
+ *
+ * Each slot's sequence is cleared before the slot is written and set after it,
+ * so a reader that sees the same sequence before and after reading the slot knows
+ * it was not overwritten half way.
+ *
+ * The ordering is best effort. The Java memory model says nothing about plain
+ * accesses to a mapped buffer, let alone from another process, and this API level
+ * has no fences or acquire reads for them. The writer separates its stores with a
+ * volatile write and the reader separates its loads with a volatile read, of fields
+ * that are otherwise unused; ART and HotSpot emit a barrier for each, which is what
+ * the sequence check relies on. A reader on some other runtime could in principle
+ * accept a torn slot, so clients should treat the ring as a fast path for display
+ * and analysis, not as a record of what was uploaded.
+ */
+class SharedSampleRing {
+	static final int DEFAULT_CAPACITY = 16384;
+	private static final int MAGIC = 0x53414d50;	//"SAMP"
+	private static final int VERSION = 1;
+
+	private static final int HEADER_SIZE = 64;
+	private static final int OFFSET_MAGIC = 0;
+	private static final int OFFSET_VERSION = 4;
+	private static final int OFFSET_CAPACITY = 8;
+	private static final int OFFSET_WRITE_SEQUENCE = 16;
+
+	private static final int SLOT_SIZE = 24;
+	private static final int SLOT_SEQUENCE = 0;
+	private static final int SLOT_TIME = 8;
+	private static final int SLOT_KEY = 16;
+	private static final int SLOT_VALUE = 20;
+
+	private SharedSampleRing() {
+	}
+
+	private static int slot(long sequence, int mask) {
+		return HEADER_SIZE + (int) (sequence & mask) * SLOT_SIZE;
+	}
+
+	static class Writer {
+		private final File mFile;
+		private final RandomAccessFile mAccess;
+		private final MappedByteBuffer mBuffer;
+		private final int mMask;
+		private final int mSize;
+		private long mSequence = 0;
+		private volatile int mFence = 0;
+
+		Writer(File file, int capacity) throws IOException {
+			int slots = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+			mFile = file;
+			mMask = slots - 1;
+			mSize = HEADER_SIZE + slots * SLOT_SIZE;
+			mAccess = new RandomAccessFile(file, "rw");
+			mAccess.setLength(mSize);
+			mBuffer = mAccess.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, mSize);
+			mBuffer.order(ByteOrder.nativeOrder());
+			for (int i = 0; i < slots; i++) {
+				mBuffer.putLong(HEADER_SIZE + i * SLOT_SIZE + SLOT_SEQUENCE, -1);
+			}
+			mBuffer.putLong(OFFSET_WRITE_SEQUENCE, 0);
+			mBuffer.putInt(OFFSET_VERSION, VERSION);
+			mBuffer.putInt(OFFSET_CAPACITY, slots);
+			mFence = 0;
+			mBuffer.putInt(OFFSET_MAGIC, MAGIC);
+		}
+
+		// Single writer, never blocks or allocates
+		public void write(long time, int key, float value) {
+			int base = slot(mSequence, mMask);
+			mBuffer.putLong(base + SLOT_SEQUENCE, -1);
+			mFence = 0;
+			mBuffer.putLong(base + SLOT_TIME, time);
+			mBuffer.putInt(base + SLOT_KEY, key);
+			mBuffer.putFloat(base + SLOT_VALUE, value);
+			mFence = 0;
+			mBuffer.putLong(base + SLOT_SEQUENCE, mSequence);
+			mSequence++;
+			mBuffer.putLong(OFFSET_WRITE_SEQUENCE, mSequence);
+		}
+
+		// A fresh read-only descriptor for one client, which then owns it
+		public ParcelFileDescriptor open() throws FileNotFoundException {
+			return ParcelFileDescriptor.open(mFile, ParcelFileDescriptor.MODE_READ_ONLY);
+		}
+
+		public void close() {
+			try {
+				mAccess.close();
+			} catch (IOException e) {
+				// Nothing left to flush, the file goes anyway
+			}
+			// Clients keep their mapping; the file just loses its name
+			mFile.delete();
+		}
+	}
+
+	static class Reader {
+		// key packs device id and sensor as in SampleBatch; time is elapsedRealtime milliseconds
+		interface Sink {
+			void onSample(long sequence, long time, int key, float value);
+		}
+
+		private final Closeable mOwner;	//what the mapping came from, closed with the reader
+		private final MappedByteBuffer mBuffer;
+		private final int mCapacity;
+		private final int mMask;
+		private long mLost = 0;
+		private volatile int mFence = 0;	//only ever read
+
+		Reader(ParcelFileDescriptor descriptor) throws IOException {
+			this(new FileInputStream(descriptor.getFileDescriptor()).getChannel(), descriptor);
+		}
+
+		Reader(FileChannel channel, Closeable owner) throws IOException {
+			mOwner = owner;
+			mBuffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			mBuffer.order(ByteOrder.nativeOrder());
+			if (mBuffer.getInt(OFFSET_MAGIC) != MAGIC || mBuffer.getInt(OFFSET_VERSION) != VERSION) {
+				throw new IOException("Not a sample ring");
+			}
+			mCapacity = mBuffer.getInt(OFFSET_CAPACITY);
+			mMask = mCapacity - 1;
+		}
+
+		// Keeps the loads after it after the loads before it, see the class comment
+		private int loadFence() {
+			return mFence;
+		}
+
+		public long getWriteSequence() {
+			long sequence = mBuffer.getLong(OFFSET_WRITE_SEQUENCE);
+			loadFence();
+			return sequence;
+		}
+
+		// Samples overwritten before this reader got to them
+		public long getLost() {
+			return mLost;
+		}
+
+		// Hands over everything from sequence on; returns the sequence to continue from
+		public long read(long sequence, Sink sink) {
+			long end = getWriteSequence();
+			if (end - sequence > mCapacity) {
+				mLost += end - mCapacity - sequence;
+				sequence = end - mCapacity;
+			}
+			for (; sequence < end; sequence++) {
+				int base = slot(sequence, mMask);
+				long before = mBuffer.getLong(base + SLOT_SEQUENCE);
+				loadFence();
+				long time = mBuffer.getLong(base + SLOT_TIME);
+				int key = mBuffer.getInt(base + SLOT_KEY);
+				float value = mBuffer.getFloat(base + SLOT_VALUE);
+				loadFence();
+				long after = mBuffer.getLong(base + SLOT_SEQUENCE);
+				if (before != sequence || after != sequence) {
+					mLost++;
+					continue;
+				}
+				sink.onSample(sequence, time, key, value);
+			}
+			return end;
+		}
+
+		public void close() {
+			try {
+				mOwner.close();
+			} catch (IOException e) {
+				// Already closed
+			}
+		}
+	}
+}
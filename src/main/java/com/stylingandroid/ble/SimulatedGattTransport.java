@@ -0,0 +1,535 @@
+package com.stylingandroid.ble;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothProfile;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * A GattTransport with no radio behind it: any number of virtual SensorTags that
+ * replay a recorded trace, or a synthetic one, at a fixed rate (kHz if need be) or at
+ * whatever period the service writes. Connects, writes and the link itself can be made
+ * to fail at random so the reconnect and retry paths get exercised too. Callbacks come
+ * from a private executor thread, as they would from binder threads, so BleService can
+ * be driven under Robolectric, or the transport alone on a plain JVM.
+ */
+class SimulatedGattTransport implements GattTransport {
+	static final long DEFAULT_CONNECT_DELAY = 50;
+	static final long DEFAULT_OPERATION_DELAY = 5;
+	private static final int STATUS_LINK_LOST = 8;		//connection supervision timeout
+	private static final int STATUS_CONNECT_FAILED = 133;	//what the stack reports for most failed connects
+
+	private static final UUID UUID_CCC = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
+	private static final UUID[][] SERVICES = {
+			{BleService.UUID_HUMIDITY_SERVICE, BleService.UUID_HUMIDITY_DATA, BleService.UUID_HUMIDITY_CONF, BleService.UUID_HUMIDITY_PERIOD},
+			{BleService.UUID_LUXOMETER_SERVICE, BleService.UUID_LUXOMETER_DATA, BleService.UUID_LUXOMETER_CONF, BleService.UUID_LUXOMETER_PERIOD}
+	};
+	private static final String LAYOUT;
+
+	static {
+		StringBuilder layout = new StringBuilder();
+		for (UUID[] service : SERVICES) {
+			layout.append(service[0]).append("/0{");
+			for (int i = 1; i < service.length; i++) {
+				layout.append(service[i]).append('/').append(i).append(';');
+			}
+			layout.append('}');
+		}
+		LAYOUT = layout.toString();
+	}
+
+	// Notification frames in the order they are sent; played in a loop
+	static class Trace {
+		private final UUID[] mCharacteristics;
+		private final byte[][] mValues;
+
+		Trace(List<UUID> characteristics, List<byte[]> values) {
+			mCharacteristics = characteristics.toArray(new UUID[characteristics.size()]);
+			mValues = values.toArray(new byte[values.size()][]);
+		}
+
+		public int size() {
+			return mValues.length;
+		}
+
+		public UUID getCharacteristic(int index) {
+			return mCharacteristics[index];
+		}
+
+		public byte[] getValue(int index) {
+			return mValues[index];
+		}
+
+		// One frame per line: the characteristic UUID and the value in hex; # starts a comment
+		static Trace read(Reader reader) throws IOException {
+			List<UUID> characteristics = new ArrayList<UUID>();
+			List<byte[]> values = new ArrayList<byte[]>();
+			BufferedReader in = new BufferedReader(reader);
+			String line;
+			while ((line = in.readLine()) != null) {
+				line = line.trim();
+				if (line.length() == 0 || line.charAt(0) == '#') {
+					continue;
+				}
+				String[] fields = line.split("\\s+");
+				if (fields.length != 2) {
+					throw new IOException("Bad trace line: " + line);
+				}
+				characteristics.add(UUID.fromString(fields[0]));
+				values.add(parseHex(fields[1]));
+			}
+			if (values.isEmpty()) {
+				throw new IOException("Empty trace");
+			}
+			return new Trace(characteristics, values);
+		}
+
+		private static byte[] parseHex(String hex) throws IOException {
+			if (hex.length() % 2 != 0) {
+				throw new IOException("Bad hex value: " + hex);
+			}
+			byte[] value = new byte[hex.length() / 2];
+			for (int i = 0; i < value.length; i++) {
+				int hi = Character.digit(hex.charAt(i * 2), 16);
+				int lo = Character.digit(hex.charAt(i * 2 + 1), 16);
+				if (hi < 0 || lo < 0) {
+					throw new IOException("Bad hex value: " + hex);
+				}
+				value[i] = (byte) ((hi << 4) | lo);
+			}
+			return value;
+		}
+
+		// Random walks of temperature, humidity and light, alternating HDC1000 and OPT3001 frames
+		static Trace synthetic(long seed, int frames) {
+			Random random = new Random(seed);
+			double temperature = 15 + random.nextDouble() * 10;
+			double humidity = 40 + random.nextDouble() * 30;
+			double lux = 100 + random.nextDouble() * 1000;
+			List<UUID> characteristics = new ArrayList<UUID>(frames * 2);
+			List<byte[]> values = new ArrayList<byte[]>(frames * 2);
+			for (int i = 0; i < frames; i++) {
+				temperature = clamp(temperature + random.nextGaussian() * 0.05, -40, 125);
+				humidity = clamp(humidity + random.nextGaussian() * 0.2, 0, 100);
+				lux = clamp(lux * (1 + random.nextGaussian() * 0.02), 0, 80000);
+				characteristics.add(BleService.UUID_HUMIDITY_DATA);
+				values.add(encodeHumidity(temperature, humidity));
+				characteristics.add(BleService.UUID_LUXOMETER_DATA);
+				values.add(encodeLux(lux));
+			}
+			return new Trace(characteristics, values);
+		}
+
+		private static double clamp(double value, double min, double max) {
+			return Math.max(min, Math.min(max, value));
+		}
+
+		static byte[] encodeHumidity(double temperature, double humidity) {
+			int t = (int) Math.min(0xFFFF, Math.round((temperature + 40) / 165 * 65536));
+			int h = (int) Math.min(0xFFFF, Math.round(humidity / 100 * 65536));
+			return new byte[] {(byte) t, (byte) (t >> 8), (byte) h, (byte) (h >> 8)};
+		}
+
+		static byte[] encodeLux(double lux) {
+			int e = 0;
+			double m = lux / 0.01;
+			while (m >= 4096 && e < 15) {
+				m /= 2;
+				e++;
+			}
+			int raw = (e << 12) | (int) Math.min(4095, Math.round(m));
+			return new byte[] {(byte) raw, (byte) (raw >> 8)};
+		}
+	}
+
+	private static class VirtualDevice {
+		final Trace trace;
+		final long fixedPeriodNanos;	//0 to follow the period written by the service
+
+		VirtualDevice(Trace trace, long fixedPeriodNanos) {
+			this.trace = trace;
+			this.fixedPeriodNanos = fixedPeriodNanos;
+		}
+	}
+
+	private final ScheduledExecutorService mExecutor = Executors.newSingleThreadScheduledExecutor();
+	private final Map<String, VirtualDevice> mDevices = new ConcurrentHashMap<String, VirtualDevice>();
+	private final Map<String, SimulatedLink> mLinks = new ConcurrentHashMap<String, SimulatedLink>();
+	private final Random mRandom = new Random();
+	private final AtomicLong mNotifications = new AtomicLong();
+	private final AtomicLong mDrops = new AtomicLong();
+	private final AtomicLong mWriteFailures = new AtomicLong();
+
+	private volatile boolean mEnabled = true;
+	private volatile long mConnectDelay = DEFAULT_CONNECT_DELAY;
+	private volatile long mOperationDelay = DEFAULT_OPERATION_DELAY;
+	private volatile float mConnectFailureRate = 0;
+	private volatile float mWriteFailureRate = 0;
+	private volatile float mDropRate = 0;
+
+	public void addDevice(String address, Trace trace, long periodNanos) {
+		mDevices.put(address, new VirtualDevice(trace, periodNanos));
+	}
+
+	// count tags with addresses 5A:00:00:00:hh:ll, each with its own synthetic trace
+	public List<String> addDevices(int count, int frames, long periodNanos) {
+		List<String> addresses = new ArrayList<String>(count);
+		for (int i = 0; i < count; i++) {
+			String address = String.format("5A:00:00:00:%02X:%02X", (i >> 8) & 0xFF, i & 0xFF);
+			addDevice(address, Trace.synthetic(i, frames), periodNanos);
+			addresses.add(address);
+		}
+		return addresses;
+	}
+
+	public void setEnabled(boolean enabled) {
+		mEnabled = enabled;
+	}
+
+	public void setDelays(long connectDelay, long operationDelay) {
+		mConnectDelay = connectDelay;
+		mOperationDelay = operationDelay;
+	}
+
+	// Probabilities: per connect attempt, per write, and per notification sent
+	public void setFaults(float connectFailureRate, float writeFailureRate, float dropRate) {
+		mConnectFailureRate = connectFailureRate;
+		mWriteFailureRate = writeFailureRate;
+		mDropRate = dropRate;
+	}
+
+	// Drops the link as if the tag had gone out of range
+	public void dropLink(final String address) {
+		mExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				SimulatedLink link = mLinks.get(address);
+				if (link != null) {
+					link.drop(STATUS_LINK_LOST);
+				}
+			}
+		});
+	}
+
+	public long getNotificationCount() {
+		return mNotifications.get();
+	}
+
+	public long getDropCount() {
+		return mDrops.get();
+	}
+
+	public long getWriteFailureCount() {
+		return mWriteFailures.get();
+	}
+
+	public void shutdown() {
+		mExecutor.shutdownNow();
+	}
+
+	@Override
+	public boolean isEnabled() {
+		return mEnabled;
+	}
+
+	@Override
+	public boolean isValidAddress(String address) {
+		return mDevices.containsKey(address);
+	}
+
+	@Override
+	public Link connect(String address, boolean autoConnect, Callback callback) {
+		VirtualDevice device = mDevices.get(address);
+		if (device == null || !mEnabled) {
+			return null;
+		}
+		final SimulatedLink link = new SimulatedLink(address, device, callback);
+		mExecutor.schedule(new Runnable() {
+			@Override
+			public void run() {
+				link.onConnect();
+			}
+		}, mConnectDelay, TimeUnit.MILLISECONDS);
+		return link;
+	}
+
+	private boolean chance(float rate) {
+		return rate > 0 && mRandom.nextFloat() < rate;
+	}
+
+	// All state is touched on the executor thread only, apart from the closed flag
+	private class SimulatedLink implements Link {
+		private final String mAddress;
+		private final VirtualDevice mDevice;
+		private final Callback mCallback;
+		private final Set<UUID> mNotifying = new HashSet<UUID>();
+		private volatile boolean mClosed = false;
+		private boolean mConnected = false;
+		private boolean mDiscovered = false;
+		private long mPeriodNanos = TimeUnit.MILLISECONDS.toNanos(SamplingPolicy.DEFAULT_PERIOD);
+		private ScheduledFuture<?> mStream = null;
+		private int mFrame = 0;
+
+		private final Runnable mStreamRunnable = new Runnable() {
+			@Override
+			public void run() {
+				notifyNext();
+			}
+		};
+
+		SimulatedLink(String address, VirtualDevice device, Callback callback) {
+			mAddress = address;
+			mDevice = device;
+			mCallback = callback;
+		}
+
+		void onConnect() {
+			if (mClosed) {
+				return;
+			}
+			if (!mEnabled || chance(mConnectFailureRate)) {
+				mCallback.onConnectionStateChange(this, STATUS_CONNECT_FAILED, BluetoothProfile.STATE_DISCONNECTED);
+				return;
+			}
+			SimulatedLink old = mLinks.put(mAddress, this);
+			if (old != null && old != this) {
+				old.stopStream();
+			}
+			mConnected = true;
+			mCallback.onConnectionStateChange(this, BluetoothGatt.GATT_SUCCESS, BluetoothProfile.STATE_CONNECTED);
+		}
+
+		void drop(int status) {
+			if (!mConnected || mClosed) {
+				return;
+			}
+			mConnected = false;
+			mNotifying.clear();
+			stopStream();
+			mLinks.remove(mAddress);
+			mDrops.incrementAndGet();
+			mCallback.onConnectionStateChange(this, status, BluetoothProfile.STATE_DISCONNECTED);
+		}
+
+		private void schedule(Runnable runnable) {
+			if (!mClosed) {
+				mExecutor.schedule(runnable, mOperationDelay, TimeUnit.MILLISECONDS);
+			}
+		}
+
+		@Override
+		public String getAddress() {
+			return mAddress;
+		}
+
+		@Override
+		public boolean discoverServices() {
+			if (!mConnected) {
+				return false;
+			}
+			schedule(new Runnable() {
+				@Override
+				public void run() {
+					if (mConnected && !mClosed) {
+						mDiscovered = true;
+						mCallback.onServicesDiscovered(SimulatedLink.this, BluetoothGatt.GATT_SUCCESS);
+					}
+				}
+			});
+			return true;
+		}
+
+		@Override
+		public String getLayout() {
+			return mDiscovered ? LAYOUT : null;
+		}
+
+		@Override
+		public boolean hasCharacteristic(UUID service, UUID characteristic) {
+			for (UUID[] known : SERVICES) {
+				if (known[0].equals(service)) {
+					for (int i = 1; i < known.length; i++) {
+						if (known[i].equals(characteristic)) {
+							return true;
+						}
+					}
+				}
+			}
+			return false;
+		}
+
+		@Override
+		public boolean hasDescriptor(UUID service, UUID characteristic, UUID descriptor) {
+			return UUID_CCC.equals(descriptor) && hasCharacteristic(service, characteristic)
+					&& (BleService.UUID_HUMIDITY_DATA.equals(characteristic) || BleService.UUID_LUXOMETER_DATA.equals(characteristic));
+		}
+
+		@Override
+		public boolean setNotification(UUID service, UUID characteristic, boolean enable) {
+			return hasCharacteristic(service, characteristic);
+		}
+
+		@Override
+		public boolean write(final UUID service, final UUID characteristic, final byte[] value) {
+			if (!mConnected || !hasCharacteristic(service, characteristic)) {
+				return false;
+			}
+			schedule(new Runnable() {
+				@Override
+				public void run() {
+					int status = complete();
+					if (status == BluetoothGatt.GATT_SUCCESS
+							&& (BleService.UUID_HUMIDITY_PERIOD.equals(characteristic) || BleService.UUID_LUXOMETER_PERIOD.equals(characteristic))
+							&& value.length == 1) {
+						setPeriod(TimeUnit.MILLISECONDS.toNanos((value[0] & 0xFF) * 10));
+					}
+					if (mConnected) {
+						mCallback.onOperationComplete(SimulatedLink.this, OP_WRITE_CHARACTERISTIC, characteristic, null, status);
+					}
+				}
+			});
+			return true;
+		}
+
+		@Override
+		public boolean writeDescriptor(UUID service, final UUID characteristic, final UUID descriptor, final byte[] value) {
+			if (!mConnected || !hasDescriptor(service, characteristic, descriptor)) {
+				return false;
+			}
+			schedule(new Runnable() {
+				@Override
+				public void run() {
+					int status = complete();
+					if (status == BluetoothGatt.GATT_SUCCESS) {
+						if (value.length > 0 && value[0] != 0) {
+							mNotifying.add(characteristic);
+						} else {
+							mNotifying.remove(characteristic);
+						}
+						updateStream();
+					}
+					if (mConnected) {
+						mCallback.onOperationComplete(SimulatedLink.this, OP_WRITE_DESCRIPTOR, characteristic, descriptor, status);
+					}
+				}
+			});
+			return true;
+		}
+
+		@Override
+		public boolean read(UUID service, final UUID characteristic) {
+			if (!mConnected || !hasCharacteristic(service, characteristic)) {
+				return false;
+			}
+			schedule(new Runnable() {
+				@Override
+				public void run() {
+					if (mConnected) {
+						mCallback.onOperationComplete(SimulatedLink.this, OP_READ_CHARACTERISTIC, characteristic, null, BluetoothGatt.GATT_SUCCESS);
+					}
+				}
+			});
+			return true;
+		}
+
+		private int complete() {
+			if (chance(mWriteFailureRate)) {
+				mWriteFailures.incrementAndGet();
+				return BluetoothGatt.GATT_FAILURE;
+			}
+			return BluetoothGatt.GATT_SUCCESS;
+		}
+
+		@Override
+		public void disconnect() {
+			mExecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					if (mConnected && !mClosed) {
+						mConnected = false;
+						stopStream();
+						mLinks.remove(mAddress, SimulatedLink.this);
+						mCallback.onConnectionStateChange(SimulatedLink.this, BluetoothGatt.GATT_SUCCESS, BluetoothProfile.STATE_DISCONNECTED);
+					}
+				}
+			});
+		}
+
+		@Override
+		public void close() {
+			mClosed = true;
+			mExecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					mConnected = false;
+					stopStream();
+					mLinks.remove(mAddress, SimulatedLink.this);
+				}
+			});
+		}
+
+		private void setPeriod(long periodNanos) {
+			if (periodNanos > 0 && periodNanos != mPeriodNanos) {
+				mPeriodNanos = periodNanos;
+				if (mStream != null) {
+					stopStream();
+					updateStream();
+				}
+			}
+		}
+
+		private void updateStream() {
+			if (mNotifying.isEmpty() || !mConnected || mClosed) {
+				stopStream();
+			} else if (mStream == null) {
+				long period = mDevice.fixedPeriodNanos > 0 ? mDevice.fixedPeriodNanos : mPeriodNanos;
+				mStream = mExecutor.scheduleAtFixedRate(mStreamRunnable, period, period, TimeUnit.NANOSECONDS);
+			}
+		}
+
+		private void stopStream() {
+			if (mStream != null) {
+				mStream.cancel(false);
+				mStream = null;
+			}
+		}
+
+		private void notifyNext() {
+			if (!mConnected || mClosed) {
+				stopStream();
+				return;
+			}
+			if (chance(mDropRate)) {
+				drop(STATUS_LINK_LOST);
+				return;
+			}
+			Trace trace = mDevice.trace;
+			// Each tick sends the next frame the service has subscribed to
+			for (int i = 0; i < trace.size(); i++) {
+				int frame = mFrame;
+				mFrame = (mFrame + 1) % trace.size();
+				UUID characteristic = trace.getCharacteristic(frame);
+				if (mNotifying.contains(characteristic)) {
+					mNotifications.incrementAndGet();
+					mCallback.onNotification(this, characteristic, trace.getValue(frame));
+					return;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,101 @@
+package com.stylingandroid.ble;
+
+import android.os.Bundle;
+
+/*
+ * What one client wants from the sample stream, as sent in the MSG_REGISTER data
+ * Bundle: which sensors and tags, how often at most, whether every sample or only
+ * the latest value of each channel, and whether samples the SampleFilter drops can
+ * be left out. A Bundle without these keys subscribes to everything at full rate,
+ * as before.
+ */
+class Subscription {
+	static final String KEY_SENSORS = "KEY_SUBSCRIPTION_SENSORS";		//int, bit per SensorType
+	static final String KEY_DEVICES = "KEY_SUBSCRIPTION_DEVICES";		//String[] of MAC addresses
+	static final String KEY_MAX_RATE = "KEY_SUBSCRIPTION_MAX_RATE";		//float, deliveries per second
+	static final String KEY_LATEST_ONLY = "KEY_SUBSCRIPTION_LATEST_ONLY";	//boolean
+	static final String KEY_FILTERED = "KEY_SUBSCRIPTION_FILTERED";		//boolean, batched delivery only
+
+	static final int ALL_SENSORS = (1 << SensorType.COUNT) - 1;
+
+	private final int mSensors;
+	private final String[] mAddresses;
+	private final long mMinInterval;
+	private final boolean mLatestOnly;
+	private final boolean mFiltered;
+	private volatile boolean[] mDevices = null;	//by device id, null for every device
+
+	Subscription(int sensors, String[] addresses, float maxRate, boolean latestOnly, boolean filtered) {
+		mSensors = sensors;
+		mAddresses = addresses;
+		mMinInterval = maxRate > 0 ? (long) Math.ceil(1000 / maxRate) : 0;
+		mLatestOnly = latestOnly;
+		mFiltered = filtered;
+	}
+
+	static Subscription fromBundle(Bundle bundle) {
+		if (bundle == null) {
+			return new Subscription(ALL_SENSORS, null, 0, false, false);
+		}
+		return new Subscription(bundle.getInt(KEY_SENSORS, ALL_SENSORS), bundle.getStringArray(KEY_DEVICES),
+				bundle.getFloat(KEY_MAX_RATE, 0), bundle.getBoolean(KEY_LATEST_ONLY, false),
+				bundle.getBoolean(KEY_FILTERED, false));
+	}
+
+	static Bundle toBundle(int sensors, String[] addresses, float maxRate, boolean latestOnly, boolean filtered) {
+		Bundle bundle = new Bundle();
+		bundle.putInt(KEY_SENSORS, sensors);
+		if (addresses != null) {
+			bundle.putStringArray(KEY_DEVICES, addresses);
+		}
+		bundle.putFloat(KEY_MAX_RATE, maxRate);
+		bundle.putBoolean(KEY_LATEST_ONLY, latestOnly);
+		bundle.putBoolean(KEY_FILTERED, filtered);
+		return bundle;
+	}
+
+	// Milliseconds between deliveries, 0 for no limit
+	public long getMinInterval() {
+		return mMinInterval;
+	}
+
+	public boolean isLatestOnly() {
+		return mLatestOnly;
+	}
+
+	public boolean isFiltered() {
+		return mFiltered;
+	}
+
+	// Called whenever the service assigns a new device id
+	public void setDevices(String[] devices) {
+		if (mAddresses == null) {
+			return;
+		}
+		boolean[] accepted = new boolean[devices.length];
+		for (int i = 0; i < devices.length; i++) {
+			for (String address : mAddresses) {
+				if (address.equalsIgnoreCase(devices[i])) {
+					accepted[i] = true;
+				}
+			}
+		}
+		mDevices = accepted;
+	}
+
+	public boolean accepts(int device, int sensor) {
+		return acceptsSensor(sensor) && acceptsDevice(device);
+	}
+
+	public boolean acceptsSensor(int sensor) {
+		return (mSensors & (1 << sensor)) != 0;
+	}
+
+	public boolean acceptsDevice(int device) {
+		if (mAddresses == null) {
+			return true;
+		}
+		boolean[] devices = mDevices;
+		return devices != null && device < devices.length && devices[device];
+	}
+}
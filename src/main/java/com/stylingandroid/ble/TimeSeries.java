@@ -0,0 +1,90 @@
+package com.stylingandroid.ble;
+
+/*
+ * Fixed-size ring of (time, value) pairs kept in time order, for looking a stream
+ * up at an arbitrary instant. Primitive arrays only; once full, the oldest pair is
+ * overwritten. Not thread safe.
+ */
+class TimeSeries {
+	private final long[] mTimes;
+	private final float[] mValues;
+	private final int mMask;
+	private long mHead = 0;	//sequence of the next pair written
+	private int mCount = 0;
+
+	TimeSeries(int capacity) {
+		int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+		mTimes = new long[size];
+		mValues = new float[size];
+		mMask = size - 1;
+	}
+
+	public int size() {
+		return mCount;
+	}
+
+	public void clear() {
+		mHead = 0;
+		mCount = 0;
+	}
+
+	public void add(long time, float value) {
+		long i = mHead++;
+		if (mCount < mTimes.length) {
+			mCount++;
+		}
+		// A pair can still arrive a little late; slide it back into place
+		long oldest = mHead - mCount;
+		while (i > oldest && mTimes[(int) ((i - 1) & mMask)] > time) {
+			mTimes[(int) (i & mMask)] = mTimes[(int) ((i - 1) & mMask)];
+			mValues[(int) (i & mMask)] = mValues[(int) ((i - 1) & mMask)];
+			i--;
+		}
+		mTimes[(int) (i & mMask)] = time;
+		mValues[(int) (i & mMask)] = value;
+	}
+
+	/*
+	 * Value at time, interpolated linearly between the pairs either side of it when
+	 * they are no more than maxGap apart. Otherwise the nearest pair stands in, as
+	 * long as it is within maxGap of time; NaN when nothing is that close.
+	 */
+	public float valueAt(long time, long maxGap) {
+		if (mCount == 0) {
+			return Float.NaN;
+		}
+		long oldest = mHead - mCount;
+		long after = ceiling(time, oldest);
+		long before = after - 1;
+		if (after < mHead && before >= oldest) {
+			long t0 = mTimes[(int) (before & mMask)];
+			long t1 = mTimes[(int) (after & mMask)];
+			float v0 = mValues[(int) (before & mMask)];
+			float v1 = mValues[(int) (after & mMask)];
+			if (t1 - t0 <= maxGap) {
+				return t1 == t0 ? v1 : v0 + (v1 - v0) * (time - t0) / (t1 - t0);
+			}
+			if (time - t0 <= t1 - time) {
+				return time - t0 <= maxGap ? v0 : Float.NaN;
+			}
+			return t1 - time <= maxGap ? v1 : Float.NaN;
+		}
+		long nearest = after < mHead ? after : before;
+		return Math.abs(mTimes[(int) (nearest & mMask)] - time) <= maxGap ? mValues[(int) (nearest & mMask)] : Float.NaN;
+	}
+
+	// Sequence of the first pair at or after time, mHead if there is none
+	private long ceiling(long time, long oldest) {
+		long low = oldest;
+		long high = mHead;
+		while (low < high) {
+			long mid = (low + high) >>> 1;
+			if (mTimes[(int) (mid & mMask)] < time) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+}
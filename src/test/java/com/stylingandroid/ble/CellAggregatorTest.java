@@ -0,0 +1,66 @@
+package com.stylingandroid.ble;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.io.UnsupportedEncodingException;
+
+import static org.junit.Assert.assertEquals;
+
+public class CellAggregatorTest {
+	private static final long WINDOW = 60 * 1000;
+	private static final long START = 1500000000000L - 1500000000000L % WINDOW;
+
+	@Test
+	public void growsInsteadOfSplittingCells() {
+		CellAggregator cells = new CellAggregator(4);
+		cells.configure(7, WINDOW);
+		// 100 cells along a line of longitude, each visited twice
+		for (int pass = 0; pass < 2; pass++) {
+			for (int i = 0; i < 100; i++) {
+				cells.add(START + pass * 1000 + i, 20 + pass, 50, 100, 51.0 + i * 0.01, -0.1);
+			}
+		}
+		assertEquals(100, cells.size());
+		for (int i = 0; i < cells.size(); i++) {
+			assertEquals(2, cells.getCount(i));
+			assertEquals(20.5, cells.getMean(i, SensorType.TEMPERATURE), 1e-9);
+			assertEquals(Geohash.encode(51.0 + i * 0.01, -0.1, 7), cells.getCell(i));
+		}
+	}
+
+	@Test
+	public void keysCellsByWindow() {
+		CellAggregator cells = new CellAggregator();
+		cells.configure(7, WINDOW);
+		cells.add(START + 1, 20, 50, 100, 51.5, -0.1);
+		cells.add(START + WINDOW - 1, 22, 50, 100, 51.5, -0.1);
+		cells.add(START + WINDOW, 24, 50, 100, 51.5, -0.1);
+		assertEquals(2, cells.size());
+		assertEquals(START, cells.getWindowStartAt(0));
+		assertEquals(START + WINDOW, cells.getWindowStartAt(1));
+		assertEquals(21, cells.getMean(0, SensorType.TEMPERATURE), 1e-9);
+		assertEquals(START + WINDOW - 1, cells.getLastTime(0));
+	}
+
+	@Test
+	public void writesStableCellKey() throws JSONException, UnsupportedEncodingException {
+		CellAggregator cells = new CellAggregator();
+		cells.configure(7, WINDOW);
+		cells.add(START + 10, 20, 50, 100, 51.5, -0.1);
+		cells.add(START + 20, 21, 51, Double.NaN, 51.5, -0.1);
+		ReadingJsonWriter writer = new ReadingJsonWriter();
+		writer.writeCells(cells);
+		JSONObject cell = new JSONArray(new String(writer.getBuffer(), 0, writer.size(), "US-ASCII")).getJSONObject(0);
+		String geohash = Geohash.toString(Geohash.encode(51.5, -0.1, 7), 7);
+		assertEquals(geohash, cell.getString("geohash"));
+		assertEquals(geohash + ":" + START, cell.getString("cell"));
+		assertEquals(START, cell.getLong("timestamp"));
+		assertEquals(2, cell.getInt("count"));
+		assertEquals(20.5, cell.getDouble("temperature"), 0.005);
+		assertEquals(100, cell.getDouble("light"), 0.005);
+		assertEquals(21, cell.getDouble("temperature_max"), 0.005);
+	}
+}
@@ -0,0 +1,146 @@
+package com.stylingandroid.ble;
+
+import android.bluetooth.BluetoothGatt;
+import android.os.Handler;
+import android.os.HandlerThread;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.LooperMode;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+
+/*
+ * Two descriptors of one characteristic through a GattOperationQueue over a link
+ * that only records what it is asked to write. The timeout is long enough that
+ * nothing is retried behind the test's back.
+ */
+@RunWith(RobolectricTestRunner.class)
+@LooperMode(LooperMode.Mode.PAUSED)
+public class GattOperationQueueTest {
+	private static final UUID UUID_CCC = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
+	private static final UUID UUID_USER_DESCRIPTION = UUID.fromString("00002901-0000-1000-8000-00805f9b34fb");
+	private static final byte[] ENABLE = {0x01, 0x00};
+	private static final long NEVER = 60 * 60 * 1000;
+
+	private final List<UUID> mWrites = new ArrayList<UUID>();
+	private HandlerThread mThread;
+	private GattOperationQueue mQueue;
+
+	private final GattTransport.Link mLink = new GattTransport.Link() {
+		@Override
+		public String getAddress() {
+			return "00:11:22:33:44:55";
+		}
+
+		@Override
+		public boolean discoverServices() {
+			return true;
+		}
+
+		@Override
+		public String getLayout() {
+			return null;
+		}
+
+		@Override
+		public boolean hasCharacteristic(UUID service, UUID characteristic) {
+			return true;
+		}
+
+		@Override
+		public boolean hasDescriptor(UUID service, UUID characteristic, UUID descriptor) {
+			return true;
+		}
+
+		@Override
+		public boolean setNotification(UUID service, UUID characteristic, boolean enable) {
+			return true;
+		}
+
+		@Override
+		public boolean write(UUID service, UUID characteristic, byte[] value) {
+			return true;
+		}
+
+		@Override
+		public boolean writeDescriptor(UUID service, UUID characteristic, UUID descriptor, byte[] value) {
+			mWrites.add(descriptor);
+			return true;
+		}
+
+		@Override
+		public boolean read(UUID service, UUID characteristic) {
+			return true;
+		}
+
+		@Override
+		public void disconnect() {
+		}
+
+		@Override
+		public void close() {
+		}
+	};
+
+	@Before
+	public void setUp() {
+		mThread = new HandlerThread("GattOperationQueueTest");
+		mThread.start();
+		mQueue = new GattOperationQueue(mLink, new Handler(mThread.getLooper()), NEVER, 0);
+	}
+
+	@After
+	public void tearDown() {
+		mQueue.close();
+		mThread.quit();
+	}
+
+	@Test
+	public void keepsDescriptorsOfOneCharacteristicApart() {
+		write(UUID_CCC);
+		write(UUID_USER_DESCRIPTION);
+		// The second is queued behind the first rather than folded into it
+		assertEquals(2, mQueue.size());
+
+		// A completion for the other descriptor leaves the write on the air alone
+		complete(UUID_USER_DESCRIPTION);
+		assertEquals(2, mQueue.size());
+
+		complete(UUID_CCC);
+		complete(UUID_USER_DESCRIPTION);
+		assertEquals(0, mQueue.size());
+		assertEquals(2, mWrites.size());
+		assertEquals(UUID_CCC, mWrites.get(0));
+		assertEquals(UUID_USER_DESCRIPTION, mWrites.get(1));
+	}
+
+	@Test
+	public void remembersAcknowledgedValuePerDescriptor() {
+		write(UUID_CCC);
+		complete(UUID_CCC);
+		// Same value to the same descriptor: already there, nothing to send
+		write(UUID_CCC);
+		assertEquals(0, mQueue.size());
+		// Same value to another descriptor still goes out
+		write(UUID_USER_DESCRIPTION);
+		assertEquals(1, mQueue.size());
+		assertEquals(2, mWrites.size());
+	}
+
+	private void write(UUID descriptor) {
+		mQueue.writeDescriptor(BleService.UUID_HUMIDITY_SERVICE, BleService.UUID_HUMIDITY_DATA, descriptor, ENABLE);
+	}
+
+	private void complete(UUID descriptor) {
+		mQueue.onComplete(GattTransport.OP_WRITE_DESCRIPTOR, BleService.UUID_HUMIDITY_DATA, descriptor,
+				BluetoothGatt.GATT_SUCCESS);
+	}
+}
@@ -0,0 +1,230 @@
+package com.stylingandroid.ble;
+
+import android.bluetooth.BluetoothGattDescriptor;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.LooperMode;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/*
+ * Drives GattSession end to end through SimulatedGattTransport: connect, discovery,
+ * sensor subscription, streaming, and recovery from dropped links and failed
+ * connects. Sessions run on a HandlerThread of their own. The simulator keeps real
+ * time, so while waiting the test moves Robolectric's clock along with it for the
+ * session's timeouts and back-off.
+ */
+@RunWith(RobolectricTestRunner.class)
+@LooperMode(LooperMode.Mode.PAUSED)
+public class GattSessionSimulationTest {
+	private static final UUID UUID_CCC = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
+	private static final byte[] ENABLE_SENSOR = {0x01};
+	private static final long PERIOD = TimeUnit.MILLISECONDS.toNanos(10);
+	private static final long TIMEOUT = 20 * 1000;
+	private static final long STEP = 5;
+
+	private final Map<String, GattSession> mSessions = new ConcurrentHashMap<String, GattSession>();
+	private final Map<String, AtomicInteger> mNotifications = new ConcurrentHashMap<String, AtomicInteger>();
+	private final SensorDecoders mDecoders = SensorDecoders.createDefault();
+	private final float[] mLastValues = new float[SensorType.COUNT];
+
+	private HandlerThread mThread;
+	private Handler mHandler;
+	private SimulatedGattTransport mTransport;
+	private KnownDevices mKnownDevices;
+
+	private final SampleSink mSink = new SampleSink() {
+		@Override
+		public void onSample(int sensor, float value) {
+			mLastValues[sensor] = value;
+		}
+	};
+
+	// What BleService does with transport callbacks, minus the processor thread
+	private final GattTransport.Callback mCallback = new GattTransport.Callback() {
+		@Override
+		public void onConnectionStateChange(GattTransport.Link link, int status, int newState) {
+			GattSession session = mSessions.get(link.getAddress());
+			if (session != null) {
+				session.onConnectionStateChange(link, status, newState);
+			}
+		}
+
+		@Override
+		public void onServicesDiscovered(GattTransport.Link link, int status) {
+			GattSession session = mSessions.get(link.getAddress());
+			if (session != null) {
+				session.onServicesDiscovered(link, status);
+			}
+		}
+
+		@Override
+		public void onOperationComplete(GattTransport.Link link, int type, UUID characteristic, UUID descriptor, int status) {
+			GattSession session = mSessions.get(link.getAddress());
+			if (session != null) {
+				session.onOperationComplete(type, characteristic, descriptor, status);
+			}
+		}
+
+		@Override
+		public void onNotification(GattTransport.Link link, UUID characteristic, byte[] value) {
+			GattSession session = mSessions.get(link.getAddress());
+			if (session != null && session.getLink() == link) {
+				session.onNotification();
+				synchronized (mLastValues) {
+					mDecoders.get(characteristic).decode(value, value.length, mSink);
+				}
+				mNotifications.get(link.getAddress()).incrementAndGet();
+			}
+		}
+	};
+
+	private final GattSession.Listener mListener = new GattSession.Listener() {
+		@Override
+		public void onStateChanged(GattSession session, GattSession.State state) {
+		}
+
+		@Override
+		public void onSubscribe(GattSession session, GattTransport.Link link) {
+			enableSensor(session, link, BleService.UUID_HUMIDITY_SERVICE, BleService.UUID_HUMIDITY_DATA, BleService.UUID_HUMIDITY_CONF);
+			enableSensor(session, link, BleService.UUID_LUXOMETER_SERVICE, BleService.UUID_LUXOMETER_DATA, BleService.UUID_LUXOMETER_CONF);
+		}
+	};
+
+	@Before
+	public void setUp() {
+		mThread = new HandlerThread("GattSessionSimulationTest");
+		mThread.start();
+		mHandler = new Handler(mThread.getLooper());
+		mTransport = new SimulatedGattTransport();
+		mTransport.setDelays(5, 1);
+		mKnownDevices = new KnownDevices(RuntimeEnvironment.application);
+	}
+
+	@After
+	public void tearDown() {
+		for (GattSession session : mSessions.values()) {
+			session.close();
+		}
+		mTransport.shutdown();
+		mThread.quit();
+	}
+
+	@Test
+	public void streamsFromEveryTag() throws InterruptedException {
+		List<GattSession> sessions = connect(mTransport.addDevices(4, 100, PERIOD));
+		for (GattSession session : sessions) {
+			awaitState(session, GattSession.State.STREAMING);
+			awaitNotifications(session.getAddress(), 20);
+			assertTrue(session.getFirstSampleTime() >= 0);
+		}
+		synchronized (mLastValues) {
+			assertTrue(mLastValues[SensorType.TEMPERATURE] > -40 && mLastValues[SensorType.TEMPERATURE] < 125);
+			assertTrue(mLastValues[SensorType.HUMIDITY] >= 0 && mLastValues[SensorType.HUMIDITY] <= 100);
+			assertTrue(mLastValues[SensorType.LIGHT] > 0);
+		}
+	}
+
+	@Test
+	public void reconnectsAfterDroppedLink() throws InterruptedException {
+		GattSession session = connect(mTransport.addDevices(1, 100, PERIOD)).get(0);
+		awaitState(session, GattSession.State.STREAMING);
+		mTransport.dropLink(session.getAddress());
+		awaitReconnects(session, 1);
+		awaitState(session, GattSession.State.STREAMING);
+		int before = mNotifications.get(session.getAddress()).get();
+		awaitNotifications(session.getAddress(), before + 20);
+		assertEquals(1, mTransport.getDropCount());
+		assertTrue(session.getLastReconnectTime() >= 0);
+	}
+
+	@Test
+	public void retriesFailedConnects() throws InterruptedException {
+		// Low enough that the jittered back-off stays well inside the timeout
+		mTransport.setFaults(0.3f, 0, 0);
+		List<GattSession> sessions = connect(mTransport.addDevices(2, 100, PERIOD));
+		for (GattSession session : sessions) {
+			awaitState(session, GattSession.State.STREAMING);
+		}
+	}
+
+	@Test
+	public void disconnectsOnRequest() throws InterruptedException {
+		GattSession session = connect(mTransport.addDevices(1, 100, PERIOD)).get(0);
+		awaitState(session, GattSession.State.STREAMING);
+		session.disconnect();
+		awaitState(session, GattSession.State.DISCONNECTED);
+		int stopped = mNotifications.get(session.getAddress()).get();
+		for (int i = 0; i < 20; i++) {
+			step();
+		}
+		assertEquals(stopped, mNotifications.get(session.getAddress()).get());
+	}
+
+	private List<GattSession> connect(List<String> addresses) {
+		List<GattSession> sessions = new ArrayList<GattSession>(addresses.size());
+		for (int i = 0; i < addresses.size(); i++) {
+			String address = addresses.get(i);
+			GattSession session = new GattSession(address, i, mTransport, mCallback, mHandler, mKnownDevices, mListener);
+			mNotifications.put(address, new AtomicInteger());
+			mSessions.put(address, session);
+			session.connect();
+			sessions.add(session);
+		}
+		return sessions;
+	}
+
+	private static void enableSensor(GattSession session, GattTransport.Link link, UUID service, UUID data, UUID conf) {
+		link.setNotification(service, data, true);
+		session.write(service, conf, ENABLE_SENSOR);
+		session.writeDescriptor(service, data, UUID_CCC, BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
+	}
+
+	private static void step() throws InterruptedException {
+		Thread.sleep(STEP);
+		SystemClock.setCurrentTimeMillis(SystemClock.uptimeMillis() + STEP);
+	}
+
+	private static void awaitState(GattSession session, GattSession.State state) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + TIMEOUT;
+		while (session.getState() != state) {
+			assertTrue(session.getAddress() + " stuck in " + session.getState() + ", waiting for " + state,
+					System.currentTimeMillis() < deadline);
+			step();
+		}
+	}
+
+	private static void awaitReconnects(GattSession session, int reconnects) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + TIMEOUT;
+		while (session.getReconnects() < reconnects) {
+			assertTrue(session.getAddress() + " did not reconnect", System.currentTimeMillis() < deadline);
+			step();
+		}
+	}
+
+	private void awaitNotifications(String address, int count) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + TIMEOUT;
+		while (mNotifications.get(address).get() < count) {
+			assertTrue(address + " sent " + mNotifications.get(address).get() + " notifications",
+					System.currentTimeMillis() < deadline);
+			step();
+		}
+	}
+}
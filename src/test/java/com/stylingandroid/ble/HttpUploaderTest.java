@@ -0,0 +1,111 @@
+package com.stylingandroid.ble;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class HttpUploaderTest {
+	private static final byte[] BODY = "{\"temperature\":21.5,\"humidity\":40}".getBytes();
+	private static final int READINGS = 200;
+
+	private StandInServer mServer;
+	private String mUrl;
+
+	@Before
+	public void setUp() throws IOException {
+		mServer = new StandInServer();
+		mUrl = mServer.getUrl("/v2/weather");
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		mServer.close();
+	}
+
+	@Test
+	public void gzipsBodyAndSaysSo() throws IOException {
+		HttpUploader uploader = new HttpUploader(1, 5000, 5000, true);
+		assertEquals(200, uploader.post(mUrl, BODY, BODY.length));
+		StandInServer.Request request = mServer.take();
+		assertEquals("gzip", request.header("content-encoding"));
+		assertEquals("application/json", request.header("content-type"));
+		assertArrayEquals(BODY, StandInServer.gunzip(request.body));
+		assertEquals("{}", HttpUploader.toString(uploader.getResponse()));
+	}
+
+	@Test
+	public void sendsPlainBodyWithoutGzip() throws IOException {
+		HttpUploader uploader = new HttpUploader(1, 5000, 5000, false);
+		assertEquals(200, uploader.post(mUrl, BODY, BODY.length));
+		StandInServer.Request request = mServer.take();
+		assertNull(request.header("content-encoding"));
+		assertArrayEquals(BODY, request.body);
+	}
+
+	@Test
+	public void reusesPooledConnection() throws IOException {
+		HttpUploader uploader = new HttpUploader(2, 5000, 5000, true);
+		for (int i = 0; i < 10; i++) {
+			assertEquals(200, uploader.post(mUrl, BODY, BODY.length));
+		}
+		assertEquals(10, mServer.getRequests());
+		assertEquals(1, mServer.getConnections());
+	}
+
+	@Test
+	public void returnsErrorStatusAndKeepsConnection() throws IOException {
+		HttpUploader uploader = new HttpUploader(1, 5000, 5000, true);
+		mServer.setStatus(422);
+		assertEquals(422, uploader.post(mUrl, BODY, BODY.length));
+		mServer.setStatus(200);
+		assertEquals(200, uploader.post(mUrl, BODY, BODY.length));
+		assertEquals(1, mServer.getConnections());
+	}
+
+	/*
+	 * Upload latency per reading against the local server, one POST per reading and
+	 * all of them in one array, both over a warm pooled connection. Loopback leaves
+	 * only the per-request cost, which the array pays once.
+	 */
+	@Test
+	public void measuresLatencyPerReading() throws IOException {
+		HttpUploader uploader = new HttpUploader(1, 5000, 5000, true);
+		ReadingJsonWriter writer = new ReadingJsonWriter();
+		writeReading(writer, 0);
+		assertEquals(200, uploader.post(mUrl, writer.getBuffer(), writer.size()));
+
+		long start = System.nanoTime();
+		for (int i = 0; i < READINGS; i++) {
+			writer.reset();
+			writeReading(writer, i);
+			assertEquals(200, uploader.post(mUrl, writer.getBuffer(), writer.size()));
+		}
+		long single = (System.nanoTime() - start) / READINGS;
+
+		start = System.nanoTime();
+		writer.reset();
+		writer.beginArray();
+		for (int i = 0; i < READINGS; i++) {
+			writeReading(writer, i);
+		}
+		writer.endArray();
+		assertEquals(200, uploader.post(mUrl, writer.getBuffer(), writer.size()));
+		long batched = (System.nanoTime() - start) / READINGS;
+
+		assertEquals(READINGS + 2, mServer.getRequests());
+		assertEquals(1, mServer.getConnections());
+		assertTrue("per reading: " + single + " ns posted singly, " + batched + " ns in one array",
+				batched < single);
+	}
+
+	private static void writeReading(ReadingJsonWriter writer, int i) {
+		writer.writeReading(1500000000000L + i, 20 + i * 0.01, 40, 120, 51.5, -0.1);
+	}
+}
@@ -0,0 +1,96 @@
+package com.stylingandroid.ble;
+
+import android.location.Location;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Locale;
+
+/*
+ * Encoding throughput and allocation per 10k readings through ReadingJsonWriter,
+ * one object at a time and as one array, against the JSONObject that JsonData
+ * builds. Printed rather than asserted so slow hosts do not fail a build, and kept
+ * out of the unit test run: run main() from the IDE on the test classpath.
+ */
+public class ReadingJsonWriterBenchmark {
+	private static final int READINGS = 10000;
+	private static final int WARMUP = 5;
+	private static final int ROUNDS = 20;
+
+	private final Location mLocation = new Location("gps");
+	private final ReadingJsonWriter mWriter = new ReadingJsonWriter(256);
+	private final Readings mReadings = new Readings(READINGS);
+	private long mBytes;
+
+	public static void main(String[] args) throws UnsupportedEncodingException {
+		new ReadingJsonWriterBenchmark().writerAgainstJsonObject();
+	}
+
+	@Ignore("Benchmark, run by hand through main()")
+	@Test
+	public void writerAgainstJsonObject() throws UnsupportedEncodingException {
+		mLocation.setLatitude(51.4779234);
+		mLocation.setLongitude(-0.0014123);
+		for (int i = 0; i < READINGS; i++) {
+			mReadings.add(1500000000000L + i, 20 + i % 10 * 0.01, 40.5, 1234.56,
+					mLocation.getLatitude(), mLocation.getLongitude());
+		}
+		for (int i = 0; i < WARMUP; i++) {
+			writer();
+			array();
+			jsonObject();
+		}
+		report("ReadingJsonWriter", 0);
+		report("ReadingJsonWriter array", 1);
+		report("JSONObject", 2);
+		System.out.println("(" + mBytes + " bytes)");
+	}
+
+	private void report(String name, int path) throws UnsupportedEncodingException {
+		long allocated = SensorDecodersBenchmark.allocatedBytes();
+		long start = System.nanoTime();
+		for (int i = 0; i < ROUNDS; i++) {
+			switch (path) {
+				case 0:
+					writer();
+					break;
+				case 1:
+					array();
+					break;
+				default:
+					jsonObject();
+					break;
+			}
+		}
+		long elapsed = System.nanoTime() - start;
+		double perBatch = allocated < 0 ? Double.NaN
+				: (double) (SensorDecodersBenchmark.allocatedBytes() - allocated) / ROUNDS;
+		System.out.println(String.format(Locale.US, "%s: %.0f ns per reading, %.0f bytes allocated per %d readings",
+				name, (double) elapsed / (ROUNDS * READINGS), perBatch, READINGS));
+	}
+
+	private void writer() {
+		for (int i = 0; i < READINGS; i++) {
+			mWriter.reset();
+			mWriter.writeReading(mReadings.times[i], mReadings.temperatures[i], mReadings.humidities[i],
+					mReadings.lights[i], mReadings.latitudes[i], mReadings.longitudes[i]);
+			mBytes += mWriter.size();
+		}
+	}
+
+	private void array() {
+		mWriter.reset();
+		mWriter.writeReadings(mReadings);
+		mBytes += mWriter.size();
+	}
+
+	private void jsonObject() throws UnsupportedEncodingException {
+		for (int i = 0; i < READINGS; i++) {
+			// What the upload path did before the writer
+			mBytes += new JsonData(mReadings.temperatures[i], mReadings.humidities[i], mReadings.lights[i], mLocation)
+					.getData().toString().getBytes("UTF-8").length;
+		}
+	}
+}
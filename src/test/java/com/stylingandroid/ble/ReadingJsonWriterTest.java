@@ -0,0 +1,178 @@
+package com.stylingandroid.ble;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.io.UnsupportedEncodingException;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class ReadingJsonWriterTest {
+	private final ReadingJsonWriter mWriter = new ReadingJsonWriter(4);
+
+	@Test
+	public void writesNonFiniteAsNull() {
+		assertEquals("null", writeDouble(Double.NaN, 2));
+		assertEquals("null", writeDouble(Double.POSITIVE_INFINITY, 2));
+		assertEquals("null", writeDouble(Double.NEGATIVE_INFINITY, 7));
+	}
+
+	@Test
+	public void writesNegatives() {
+		assertEquals("-1.5", writeDouble(-1.5, 2));
+		assertEquals("-40", writeDouble(-40, 2));
+		assertEquals("-0.07", writeDouble(-0.07, 2));
+		assertEquals("-122.4194155", writeDouble(-122.4194155, 7));
+	}
+
+	@Test
+	public void dropsSignOfNegativeZero() {
+		assertEquals("0", writeDouble(-0.0, 2));
+		assertEquals("0", writeDouble(-0.001, 2));
+	}
+
+	@Test
+	public void carriesRoundingIntoIntegerPart() {
+		assertEquals("1", writeDouble(0.999, 2));
+		assertEquals("20", writeDouble(19.996, 2));
+		assertEquals("-100", writeDouble(-99.9999, 3));
+		assertEquals("0.1", writeDouble(0.0999, 2));
+	}
+
+	@Test
+	public void stripsTrailingZeros() {
+		assertEquals("21.5", writeDouble(21.5, 2));
+		assertEquals("0.05", writeDouble(0.05, 7));
+		assertEquals("3", writeDouble(3, 0));
+	}
+
+	@Test
+	public void roundsAtEachDecimalCount() {
+		double[] values = {3.14159265358, -2.718281828, 51.47792345678, 0.123456789};
+		for (double value : values) {
+			for (int decimals = 0; decimals <= 9; decimals++) {
+				String expected = new BigDecimal(value).setScale(decimals, RoundingMode.HALF_UP)
+						.stripTrailingZeros().toPlainString();
+				assertEquals(value + " at " + decimals, expected, writeDouble(value, decimals));
+			}
+		}
+	}
+
+	@Test
+	public void roundsTheExactBinaryValue() {
+		// Just below the half in binary, where scaling in floating point rounds up
+		assertEquals("0.1", writeDouble(0.15, 1));
+		assertEquals("1.4", writeDouble(1.45, 1));
+		assertEquals("2.67", writeDouble(2.675, 2));
+		assertEquals("1", writeDouble(1.005, 2));
+		assertEquals("1.0049999", writeDouble(1.00499995, 7));
+		assertEquals("0.28", writeDouble(0.285, 2));
+		// Exact halves, as 1/8 degree steps are, go up
+		assertEquals("0.13", writeDouble(0.125, 2));
+		assertEquals("20.13", writeDouble(20.125, 2));
+		assertEquals("-0.13", writeDouble(-0.125, 2));
+		assertEquals("1", writeDouble(0.5, 0));
+		assertEquals("0", writeDouble(Double.MIN_VALUE, 9));
+	}
+
+	@Test
+	public void roundsEitherSideOfEveryHalf() {
+		for (int decimals = 0; decimals <= 9; decimals++) {
+			for (long n = 0; n < 2000; n++) {
+				double half = (n + 0.5) / Math.pow(10, decimals);
+				assertRounded(Math.nextDown(half), decimals);
+				assertRounded(half, decimals);
+				assertRounded(Math.nextUp(half), decimals);
+				assertRounded(-half, decimals);
+			}
+		}
+	}
+
+	@Test
+	public void roundsRandomValuesLikeBigDecimal() {
+		Random random = new Random(7);
+		for (int i = 0; i < 200000; i++) {
+			int decimals = random.nextInt(10);
+			// Up to the largest magnitude the integer path takes at this many decimals
+			double value = (random.nextDouble() - 0.5) * Math.pow(10, random.nextInt(18 - decimals));
+			assertRounded(value, decimals);
+		}
+	}
+
+	@Test
+	public void fallsBackForHugeValues() {
+		assertEquals(Double.toString(1e30), writeDouble(1e30, 2));
+	}
+
+	@Test
+	public void writesLongs() {
+		mWriter.reset();
+		mWriter.writeLong(Long.MIN_VALUE);
+		assertEquals(Long.toString(Long.MIN_VALUE), text());
+		mWriter.reset();
+		mWriter.writeLong(-1234567890123L);
+		assertEquals("-1234567890123", text());
+		mWriter.reset();
+		mWriter.writeLong(0);
+		assertEquals("0", text());
+	}
+
+	@Test
+	public void roundTripsReadingsThroughJson() throws JSONException {
+		Readings readings = new Readings(3);
+		readings.add(1500000000000L, 21.456, 40.1, 1234.5, 51.4779234, -0.0014123);
+		readings.add(1500000001000L, -5.25, 99.999, 0, -33.8688197, 151.2092955);
+		readings.add(0, Double.NaN, 0.004, 65535, 0, 0);
+		mWriter.reset();
+		mWriter.writeReadings(readings);
+		JSONArray array = new JSONArray(text());
+		assertEquals(readings.size(), array.length());
+		for (int i = 0; i < readings.size(); i++) {
+			JSONObject object = array.getJSONObject(i);
+			assertField(readings.temperatures[i], object, "temperature", ReadingJsonWriter.SENSOR_DECIMALS);
+			assertField(readings.humidities[i], object, "humidity", ReadingJsonWriter.SENSOR_DECIMALS);
+			assertField(readings.lights[i], object, "light", ReadingJsonWriter.SENSOR_DECIMALS);
+			assertField(readings.latitudes[i], object, "latitude", ReadingJsonWriter.COORDINATE_DECIMALS);
+			assertField(readings.longitudes[i], object, "longitude", ReadingJsonWriter.COORDINATE_DECIMALS);
+			if (readings.times[i] > 0) {
+				assertEquals(readings.times[i], object.getLong("timestamp"));
+			} else {
+				assertFalse(object.has("timestamp"));
+			}
+		}
+	}
+
+	private static void assertField(double expected, JSONObject object, String name, int decimals) throws JSONException {
+		if (Double.isNaN(expected)) {
+			assertEquals(JSONObject.NULL, object.get(name));
+		} else {
+			assertEquals(name, expected, object.getDouble(name), 0.5 / Math.pow(10, decimals) + 1e-12);
+		}
+	}
+
+	private void assertRounded(double value, int decimals) {
+		String expected = new BigDecimal(value).setScale(decimals, RoundingMode.HALF_UP)
+				.stripTrailingZeros().toPlainString();
+		assertEquals(new BigDecimal(value) + " at " + decimals, expected, writeDouble(value, decimals));
+	}
+
+	private String writeDouble(double value, int decimals) {
+		mWriter.reset();
+		mWriter.writeDouble(value, decimals);
+		return text();
+	}
+
+	private String text() {
+		try {
+			return new String(mWriter.getBuffer(), 0, mWriter.size(), "US-ASCII");
+		} catch (UnsupportedEncodingException e) {
+			throw new AssertionError(e);
+		}
+	}
+}
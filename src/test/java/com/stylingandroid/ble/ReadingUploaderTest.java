@@ -0,0 +1,160 @@
+package com.stylingandroid.ble;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.LooperMode;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/*
+ * Drains a ReadingStore in a temporary directory to a StandInServer. The uploader
+ * runs on its own HandlerThread, so the test waits on the server and on the pending
+ * count rather than on the looper.
+ */
+@RunWith(RobolectricTestRunner.class)
+@LooperMode(LooperMode.Mode.PAUSED)
+public class ReadingUploaderTest {
+	private static final long START = 1500000000000L;
+	private static final long NEVER = 60 * 60 * 1000;	//flush interval that leaves draining to the test
+	private static final long TIMEOUT = 10 * 1000;
+
+	@Rule
+	public final TemporaryFolder mFolder = new TemporaryFolder();
+
+	private StandInServer mServer;
+	private File mDir;
+
+	@Before
+	public void setUp() throws IOException {
+		mServer = new StandInServer();
+		mDir = mFolder.newFolder();
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		mServer.close();
+	}
+
+	@Test
+	public void postsBatchesAsArrays() throws Exception {
+		ReadingUploader uploader = newUploader();
+		uploader.configure(10, NEVER);
+		uploader.configureBulk(mServer.getUrl("/v2/weather/bulk"));
+		for (int i = 0; i < 25; i++) {
+			add(uploader, i);
+		}
+		uploader.flush();
+		awaitDrained(uploader, 3);
+
+		int reading = 0;
+		int[] sizes = {10, 10, 5};
+		for (int size : sizes) {
+			StandInServer.Request request = mServer.take();
+			assertEquals("/v2/weather/bulk", request.path);
+			JSONArray array = new JSONArray(request.text());
+			assertEquals(size, array.length());
+			for (int i = 0; i < size; i++, reading++) {
+				assertReading(reading, array.getJSONObject(i));
+				assertEquals(START + reading, array.getJSONObject(i).getLong("timestamp"));
+			}
+		}
+		assertEquals(3, mServer.getRequests());
+		assertEquals(1, mServer.getConnections());
+		assertEquals(0, pending("readings"));
+	}
+
+	@Test
+	public void resumesFromCursorAfterRestart() throws Exception {
+		// What a previous process left: 12 readings, of which the first 5 went up
+		ReadingStore store = new ReadingStore(mDir, "readings");
+		for (int i = 0; i < 12; i++) {
+			store.append(START + i, i, 50, 100, 51.5, -0.1);
+		}
+		store.commit(5);
+		store.close();
+
+		// Without a bulk endpoint each reading is a POST of its own
+		ReadingUploader uploader = newUploader();
+		awaitDrained(uploader, 7);
+		for (int i = 5; i < 12; i++) {
+			StandInServer.Request request = mServer.take();
+			assertEquals("/v2/weather", request.path);
+			assertReading(i, new JSONObject(request.text()));
+		}
+		assertEquals(7, mServer.getRequests());
+		assertEquals(0, pending("readings"));
+	}
+
+	@Test
+	public void quarantinesRejectedBatch() throws Exception {
+		mServer.setStatus(422);
+		ReadingUploader uploader = newUploader();
+		uploader.configure(10, NEVER);
+		uploader.configureBulk(mServer.getUrl("/v2/weather/bulk"));
+		for (int i = 0; i < 10; i++) {
+			add(uploader, i);
+		}
+		awaitDrained(uploader, 1);
+		assertEquals(0, pending("readings"));
+
+		ReadingStore rejected = new ReadingStore(mDir, "readings-rejected");
+		Readings readings = new Readings(20);
+		assertEquals(10, rejected.peek(readings));
+		for (int i = 0; i < 10; i++) {
+			assertEquals(START + i, readings.times[i]);
+			assertEquals(i, readings.temperatures[i], 0);
+		}
+		rejected.close();
+
+		// The server taking readings again is unaffected by the quarantine
+		mServer.setStatus(200);
+		add(uploader, 10);
+		uploader.flush();
+		awaitDrained(uploader, 2);
+		assertEquals(10, pending("readings-rejected"));
+	}
+
+	private ReadingUploader newUploader() {
+		return new ReadingUploader(mDir, mServer.getUrl("/v2/weather"), new HttpUploader(1, 5000, 5000, true), null);
+	}
+
+	private static void add(ReadingUploader uploader, int i) {
+		uploader.add(START + i, i, 50, 100, 51.5, -0.1);
+	}
+
+	private static void assertReading(int i, JSONObject reading) throws JSONException {
+		assertEquals(i, reading.getDouble("temperature"), 0);
+		assertEquals(50, reading.getDouble("humidity"), 0);
+		assertEquals(51.5, reading.getDouble("latitude"), 0);
+	}
+
+	private void awaitDrained(ReadingUploader uploader, int requests) throws InterruptedException {
+		assertTrue("no upload", mServer.awaitRequests(requests, TIMEOUT));
+		long deadline = System.currentTimeMillis() + TIMEOUT;
+		while (uploader.getPending() > 0) {
+			assertTrue("readings left pending", System.currentTimeMillis() < deadline);
+			Thread.sleep(5);
+		}
+	}
+
+	private int pending(String name) throws IOException {
+		ReadingStore store = new ReadingStore(mDir, name);
+		try {
+			return store.pending();
+		} finally {
+			store.close();
+		}
+	}
+}
@@ -0,0 +1,146 @@
+package com.stylingandroid.ble;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SampleFilterTest {
+	private static final long PERIOD = 100;
+	private static final long HEARTBEAT = 5000;
+	private static final float THRESHOLD = 0.1f;
+	private static final int SAMPLES = 20000;
+	private static final double EPSILON = 1e-4;	//float rounding of the samples themselves
+
+	private static class Recorder implements SampleFilter.Listener {
+		final List<Long> times = new ArrayList<Long>();
+		final List<Float> values = new ArrayList<Float>();
+
+		@Override
+		public void onPassed(int sensor, long time, float value) {
+			times.add(time);
+			values.add(value);
+		}
+
+		// Linear between the passed samples either side of time
+		double interpolate(long time) {
+			int i = indexAfter(time);
+			if (times.get(i) == time || i == 0) {
+				return values.get(i);
+			}
+			double fraction = (time - times.get(i - 1)) / (double) (times.get(i) - times.get(i - 1));
+			return values.get(i - 1) + fraction * (values.get(i) - values.get(i - 1));
+		}
+
+		// The last passed value at or before time
+		double hold(long time) {
+			int i = indexAfter(time);
+			return times.get(i) == time ? values.get(i) : values.get(i - 1);
+		}
+
+		long lastTime() {
+			return times.get(times.size() - 1);
+		}
+
+		private int indexAfter(long time) {
+			int i = 0;
+			while (times.get(i) < time) {
+				i++;
+			}
+			return i;
+		}
+	}
+
+	// A random walk with the odd step, as a door opening or a lamp switching on
+	private static float[] signal(long seed) {
+		Random random = new Random(seed);
+		float[] values = new float[SAMPLES];
+		float value = 20;
+		for (int i = 0; i < SAMPLES; i++) {
+			value += (float) (random.nextGaussian() * 0.03);
+			if (random.nextInt(200) == 0) {
+				value += (float) (random.nextGaussian() * 3);
+			}
+			values[i] = value;
+		}
+		return values;
+	}
+
+	private static Recorder run(int mode, float[] values) {
+		SampleFilter filter = new SampleFilter();
+		filter.setSettings(SensorType.TEMPERATURE, new SampleFilter.Settings(mode, THRESHOLD, 0, HEARTBEAT));
+		Recorder recorder = new Recorder();
+		for (int i = 0; i < values.length; i++) {
+			filter.filter(0, SensorType.TEMPERATURE, i * PERIOD, values[i], recorder);
+		}
+		return recorder;
+	}
+
+	private static void assertOrdered(Recorder recorder) {
+		for (int i = 1; i < recorder.times.size(); i++) {
+			assertTrue(recorder.times.get(i) > recorder.times.get(i - 1));
+			assertTrue("heartbeat missed at " + recorder.times.get(i),
+					recorder.times.get(i) - recorder.times.get(i - 1) <= HEARTBEAT + PERIOD);
+		}
+	}
+
+	@Test
+	public void deadbandReconstructsWithinBound() {
+		for (long seed = 0; seed < 10; seed++) {
+			float[] values = signal(seed);
+			Recorder recorder = run(SampleFilter.MODE_DEADBAND, values);
+			assertOrdered(recorder);
+			assertTrue(recorder.times.size() < SAMPLES / 2);
+			for (int i = 0; i * PERIOD <= recorder.lastTime(); i++) {
+				assertEquals(values[i], recorder.hold(i * PERIOD), THRESHOLD + EPSILON);
+				assertEquals(values[i], recorder.interpolate(i * PERIOD), 2 * THRESHOLD + EPSILON);
+			}
+		}
+	}
+
+	@Test
+	public void deadbandPassesTheSampleBeforeAJump() {
+		float[] values = new float[40];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = i < 30 ? 20 : 25;
+		}
+		Recorder recorder = run(SampleFilter.MODE_DEADBAND, values);
+		assertEquals(3, recorder.times.size());
+		assertEquals(29 * PERIOD, (long) recorder.times.get(1));
+		assertEquals(20, recorder.interpolate(29 * PERIOD), 0);
+	}
+
+	@Test
+	public void swingingDoorReconstructsWithinThreshold() {
+		for (long seed = 0; seed < 10; seed++) {
+			float[] values = signal(seed);
+			Recorder recorder = run(SampleFilter.MODE_SWINGING_DOOR, values);
+			assertOrdered(recorder);
+			assertTrue(recorder.times.size() < SAMPLES / 2);
+			for (int i = 0; i * PERIOD <= recorder.lastTime(); i++) {
+				assertEquals(values[i], recorder.interpolate(i * PERIOD), THRESHOLD + EPSILON);
+			}
+		}
+	}
+
+	@Test
+	public void offPassesEverything() {
+		float[] values = signal(1);
+		Recorder recorder = run(SampleFilter.MODE_OFF, values);
+		assertEquals(SAMPLES, recorder.times.size());
+	}
+
+	@Test
+	public void validatesModes() {
+		assertTrue(SampleFilter.isValidMode(SampleFilter.MODE_OFF));
+		assertTrue(SampleFilter.isValidMode(SampleFilter.MODE_DEADBAND));
+		assertTrue(SampleFilter.isValidMode(SampleFilter.MODE_SWINGING_DOOR));
+		assertFalse(SampleFilter.isValidMode(-1));
+		assertFalse(SampleFilter.isValidMode(3));
+	}
+}
@@ -0,0 +1,68 @@
+package com.stylingandroid.ble;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Locale;
+
+/*
+ * Decode cost and allocation per notification, printed rather than asserted so slow
+ * hosts do not fail a build; SensorDecodersTest asserts the zero allocation. Kept
+ * out of the unit test run: run main() from the IDE on the test classpath.
+ */
+public class SensorDecodersBenchmark {
+	private static final int WARMUP = 200000;
+	private static final int ITERATIONS = 2000000;
+
+	private float mLast;
+	private final SampleSink mSink = new SampleSink() {
+		@Override
+		public void onSample(int sensor, float value) {
+			mLast += value;
+		}
+	};
+
+	public static void main(String[] args) {
+		new SensorDecodersBenchmark().decodeRegistry();
+	}
+
+	@Ignore("Benchmark, run by hand through main()")
+	@Test
+	public void decodeRegistry() {
+		SensorDecoders decoders = SensorDecoders.createDefault();
+		byte[] humidity = {(byte) 0x00, (byte) 0x66, (byte) 0x00, (byte) 0x80};
+		byte[] luxometer = {(byte) 0x10, (byte) 0x32};
+		run(decoders, humidity, luxometer, WARMUP);
+		long allocated = allocatedBytes();
+		long start = System.nanoTime();
+		run(decoders, humidity, luxometer, ITERATIONS);
+		long elapsed = System.nanoTime() - start;
+		double perNotification = allocated < 0 ? Double.NaN : (double) (allocatedBytes() - allocated) / (2 * ITERATIONS);
+		System.out.println(String.format(Locale.US, "SensorDecoders: %.1f ns, %.3f bytes allocated per notification (%f)",
+				(double) elapsed / (2 * ITERATIONS), perNotification, mLast));
+	}
+
+	private void run(SensorDecoders decoders, byte[] humidity, byte[] luxometer, int count) {
+		for (int i = 0; i < count; i++) {
+			// Look up by UUID each time, as onCharacteristicChanged does
+			decoders.get(BleService.UUID_HUMIDITY_DATA).decode(humidity, humidity.length, mSink);
+			decoders.get(BleService.UUID_LUXOMETER_DATA).decode(luxometer, luxometer.length, mSink);
+		}
+	}
+
+	// Allocated by this thread so far, as SensorDecodersTest counts it; -1 where the JVM cannot tell
+	static long allocatedBytes() {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+			return -1;
+		}
+		com.sun.management.ThreadMXBean counter = (com.sun.management.ThreadMXBean) threads;
+		if (!counter.isThreadAllocatedMemorySupported()) {
+			return -1;
+		}
+		counter.setThreadAllocatedMemoryEnabled(true);
+		return counter.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+}
@@ -0,0 +1,81 @@
+package com.stylingandroid.ble;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.assertEquals;
+
+public class SensorDecodersTest {
+	private static final byte[] HUMIDITY = {(byte) 0x00, (byte) 0x66, (byte) 0x00, (byte) 0x80};
+	private static final byte[] LUXOMETER = {(byte) 0x10, (byte) 0x32};
+
+	private final float[] mValues = new float[SensorType.COUNT];
+	private final SampleSink mSink = new SampleSink() {
+		@Override
+		public void onSample(int sensor, float value) {
+			mValues[sensor] = value;
+		}
+	};
+
+	private SensorDecoders mDecoders;
+
+	@Before
+	public void setUp() {
+		mDecoders = SensorDecoders.createDefault();
+	}
+
+	@Test
+	public void decodesHumidity() {
+		mDecoders.get(BleService.UUID_HUMIDITY_DATA).decode(HUMIDITY, HUMIDITY.length, mSink);
+		assertEquals(0x6600 / 65536f * 165f - 40f, mValues[SensorType.TEMPERATURE], 1e-4f);
+		assertEquals(50f, mValues[SensorType.HUMIDITY], 1e-4f);
+	}
+
+	@Test
+	public void decodesLuxometerAgainstPow() {
+		for (int e = 0; e < 16; e++) {
+			for (int m = 0; m < 0x1000; m += 0x111) {
+				int raw = (e << 12) | m;
+				byte[] value = {(byte) raw, (byte) (raw >> 8)};
+				mDecoders.get(BleService.UUID_LUXOMETER_DATA).decode(value, value.length, mSink);
+				assertEquals((float) (m * 0.01d * Math.pow(2, e)), mValues[SensorType.LIGHT], 0f);
+			}
+		}
+	}
+
+	@Test
+	public void ignoresShortValues() {
+		mValues[SensorType.LIGHT] = -1f;
+		mDecoders.get(BleService.UUID_LUXOMETER_DATA).decode(LUXOMETER, 1, mSink);
+		mDecoders.get(BleService.UUID_LUXOMETER_DATA).decode(null, 0, mSink);
+		assertEquals(-1f, mValues[SensorType.LIGHT], 0f);
+	}
+
+	@Test
+	public void decodesWithoutAllocating() {
+		Assume.assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+		threads.setThreadAllocatedMemoryEnabled(true);
+		CharacteristicDecoder humidity = mDecoders.get(BleService.UUID_HUMIDITY_DATA);
+		CharacteristicDecoder luxometer = mDecoders.get(BleService.UUID_LUXOMETER_DATA);
+		long thread = Thread.currentThread().getId();
+		// Warm up so class loading and compilation stay out of the count
+		decode(humidity, luxometer, 100000);
+		long before = threads.getThreadAllocatedBytes(thread);
+		decode(humidity, luxometer, 100000);
+		long allocated = threads.getThreadAllocatedBytes(thread) - before;
+		// Allow for the counter's own bookkeeping, far less than one object per sample
+		assertEquals(0, allocated / 100000);
+	}
+
+	private void decode(CharacteristicDecoder humidity, CharacteristicDecoder luxometer, int count) {
+		for (int i = 0; i < count; i++) {
+			humidity.decode(HUMIDITY, HUMIDITY.length, mSink);
+			luxometer.decode(LUXOMETER, LUXOMETER.length, mSink);
+		}
+	}
+}
@@ -0,0 +1,152 @@
+package com.stylingandroid.ble;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/*
+ * Writes and reads through a mapped temporary file, as BleService and a client in
+ * another process do, with both ends in this one.
+ */
+public class SharedSampleRingTest {
+	private static final int CAPACITY = 16;
+	// From the layout in the class comment
+	private static final int HEADER_SIZE = 64;
+	private static final int SLOT_SIZE = 24;
+
+	@Rule
+	public final TemporaryFolder mFolder = new TemporaryFolder();
+
+	private File mFile;
+	private SharedSampleRing.Writer mWriter;
+	private SharedSampleRing.Reader mReader;
+	private final List<Long> mSequences = new ArrayList<Long>();
+	private final List<Float> mValues = new ArrayList<Float>();
+
+	private final SharedSampleRing.Reader.Sink mSink = new SharedSampleRing.Reader.Sink() {
+		@Override
+		public void onSample(long sequence, long time, int key, float value) {
+			assertEquals(1000 + sequence, time);
+			assertEquals(SampleBatch.key((int) (sequence % 3), SensorType.HUMIDITY), key);
+			mSequences.add(sequence);
+			mValues.add(value);
+		}
+	};
+
+	@Before
+	public void setUp() throws IOException {
+		mFile = new File(mFolder.getRoot(), "ring");
+		mWriter = new SharedSampleRing.Writer(mFile, CAPACITY);
+		FileInputStream in = new FileInputStream(mFile);
+		mReader = new SharedSampleRing.Reader(in.getChannel(), in);
+	}
+
+	@After
+	public void tearDown() {
+		mReader.close();
+		mWriter.close();
+	}
+
+	@Test
+	public void readsEverythingWritten() {
+		write(0, 10);
+		assertEquals(10, mReader.read(0, mSink));
+		assertEquals(range(0, 10), mSequences);
+		assertEquals(5f, mValues.get(5), 0);
+		assertEquals(0, mReader.getLost());
+		// Nothing new
+		assertEquals(10, mReader.read(10, mSink));
+		assertEquals(10, mSequences.size());
+	}
+
+	@Test
+	public void skipsToTheOldestSlotAfterWrapping() {
+		write(0, 40);
+		assertEquals(40, mReader.read(0, mSink));
+		assertEquals(range(40 - CAPACITY, 40), mSequences);
+		assertEquals(40 - CAPACITY, mReader.getLost());
+	}
+
+	@Test
+	public void rejectsSlotsOverwrittenWhileReading() {
+		write(0, CAPACITY);
+		// The writer laps the reader while it handles the first sample
+		long next = mReader.read(0, new SharedSampleRing.Reader.Sink() {
+			@Override
+			public void onSample(long sequence, long time, int key, float value) {
+				if (sequence == 0) {
+					write(CAPACITY, 2 * CAPACITY);
+				}
+				mSink.onSample(sequence, time, key, value);
+			}
+		});
+		assertEquals(CAPACITY, next);
+		assertEquals(range(0, 1), mSequences);
+		assertEquals(CAPACITY - 1, mReader.getLost());
+
+		mSequences.clear();
+		assertEquals(2 * CAPACITY, mReader.read(next, mSink));
+		assertEquals(range(CAPACITY, 2 * CAPACITY), mSequences);
+		assertEquals(CAPACITY - 1, mReader.getLost());
+	}
+
+	@Test
+	public void skipsSlotCaughtHalfWritten() throws IOException {
+		write(0, 4);
+		// What a reader sees while the writer is between its two sequence stores
+		RandomAccessFile access = new RandomAccessFile(mFile, "rw");
+		try {
+			MappedByteBuffer buffer = access.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, access.length());
+			buffer.order(ByteOrder.nativeOrder());
+			buffer.putLong(HEADER_SIZE + 2 * SLOT_SIZE, -1);
+		} finally {
+			access.close();
+		}
+		assertEquals(4, mReader.read(0, mSink));
+		assertEquals(Arrays.asList(0L, 1L, 3L), mSequences);
+		assertEquals(1, mReader.getLost());
+	}
+
+	@Test(expected = IOException.class)
+	public void refusesFileThatIsNotARing() throws IOException {
+		File other = mFolder.newFile();
+		RandomAccessFile access = new RandomAccessFile(other, "rw");
+		access.setLength(HEADER_SIZE);
+		access.close();
+		FileInputStream in = new FileInputStream(other);
+		try {
+			new SharedSampleRing.Reader(in.getChannel(), in);
+		} finally {
+			in.close();
+		}
+	}
+
+	private void write(long from, long to) {
+		for (long sequence = from; sequence < to; sequence++) {
+			mWriter.write(1000 + sequence, SampleBatch.key((int) (sequence % 3), SensorType.HUMIDITY), sequence);
+		}
+	}
+
+	private static List<Long> range(long from, long to) {
+		List<Long> range = new ArrayList<Long>();
+		for (long i = from; i < to; i++) {
+			range.add(i);
+		}
+		return range;
+	}
+}
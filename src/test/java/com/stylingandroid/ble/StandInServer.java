@@ -0,0 +1,179 @@
+package com.stylingandroid.ble;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+/*
+ * Minimal keep-alive HTTP/1.1 server for upload tests: reads Content-Length bodies,
+ * answers {} with a settable status and counts how many TCP connections the client
+ * opened.
+ */
+class StandInServer implements Runnable {
+	static class Request {
+		final List<String> headers = new ArrayList<String>();
+		String path;
+		byte[] body;
+
+		String header(String name) {
+			for (String header : headers) {
+				int colon = header.indexOf(':');
+				if (colon > 0 && header.substring(0, colon).trim().equalsIgnoreCase(name)) {
+					return header.substring(colon + 1).trim();
+				}
+			}
+			return null;
+		}
+
+		// The body as sent, gunzipped if the client said it was gzipped
+		String text() throws IOException {
+			byte[] bytes = "gzip".equals(header("content-encoding")) ? gunzip(body) : body;
+			return new String(bytes, "UTF-8");
+		}
+	}
+
+	private final ServerSocket mSocket = new ServerSocket(0);
+	private final AtomicInteger mConnections = new AtomicInteger();
+	private final AtomicInteger mRequests = new AtomicInteger();
+	private final List<Request> mReceived = new ArrayList<Request>();
+	private volatile int mStatus = 200;
+
+	StandInServer() throws IOException {
+		Thread thread = new Thread(this, "StandInServer");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	String getUrl(String path) {
+		return "http://127.0.0.1:" + mSocket.getLocalPort() + path;
+	}
+
+	int getConnections() {
+		return mConnections.get();
+	}
+
+	int getRequests() {
+		return mRequests.get();
+	}
+
+	void setStatus(int status) {
+		mStatus = status;
+	}
+
+	synchronized Request take() {
+		return mReceived.remove(0);
+	}
+
+	// Blocks until count requests have arrived in all, false on timeout
+	boolean awaitRequests(int count, long timeout) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeout;
+		while (mRequests.get() < count) {
+			if (System.currentTimeMillis() > deadline) {
+				return false;
+			}
+			Thread.sleep(5);
+		}
+		return true;
+	}
+
+	void close() throws IOException {
+		mSocket.close();
+	}
+
+	@Override
+	public void run() {
+		while (!mSocket.isClosed()) {
+			try {
+				final Socket socket = mSocket.accept();
+				mConnections.incrementAndGet();
+				Thread handler = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						serve(socket);
+					}
+				});
+				handler.setDaemon(true);
+				handler.start();
+			} catch (IOException e) {
+				return;
+			}
+		}
+	}
+
+	private void serve(Socket socket) {
+		try {
+			DataInputStream in = new DataInputStream(socket.getInputStream());
+			OutputStream out = socket.getOutputStream();
+			Request request;
+			while ((request = read(in)) != null) {
+				synchronized (this) {
+					mReceived.add(request);
+				}
+				// Count before answering so the client never sees a response ahead of the count
+				mRequests.incrementAndGet();
+				out.write(String.format(Locale.US, "HTTP/1.1 %d Status\r\nContent-Type: application/json\r\n"
+						+ "Content-Length: 2\r\n\r\n{}", mStatus).getBytes("US-ASCII"));
+				out.flush();
+			}
+			socket.close();
+		} catch (IOException e) {
+			// Client went away
+		}
+	}
+
+	static byte[] gunzip(byte[] body) throws IOException {
+		InputStream in = new GZIPInputStream(new ByteArrayInputStream(body));
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] chunk = new byte[256];
+		int read;
+		while ((read = in.read(chunk)) != -1) {
+			out.write(chunk, 0, read);
+		}
+		return out.toByteArray();
+	}
+
+	private static Request read(DataInputStream in) throws IOException {
+		Request request = new Request();
+		String line = readLine(in);
+		if (line == null) {
+			return null;
+		}
+		String[] requestLine = line.split(" ");
+		request.path = requestLine.length > 1 ? requestLine[1] : "";
+		int length = 0;
+		while ((line = readLine(in)) != null && line.length() > 0) {
+			request.headers.add(line);
+		}
+		String contentLength = request.header("content-length");
+		if (contentLength != null) {
+			length = Integer.parseInt(contentLength);
+		}
+		request.body = new byte[length];
+		in.readFully(request.body);
+		return request;
+	}
+
+	private static String readLine(InputStream in) throws IOException {
+		StringBuilder line = new StringBuilder();
+		int c;
+		while ((c = in.read()) != -1) {
+			if (c == '\n') {
+				return line.toString();
+			}
+			if (c != '\r') {
+				line.append((char) c);
+			}
+		}
+		return line.length() > 0 ? line.toString() : null;
+	}
+}